@@ -0,0 +1,86 @@
+package starbeast3.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.tree.BinaryTree;
+
+
+/**
+ * Store/restore and traversal of a gene tree, as the object graph Tree and as the array backed BinaryTree
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BinaryTreeBenchmark {
+
+
+	@Param({"Tree", "BinaryTree"})
+	public String treeClass;
+
+	Tree tree;
+	beast.base.inference.State state;
+	long sample;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		final Tree geneTree = (Tree) model.getAll(GeneTreeForSpeciesTreeDistribution.class).get(0).getGeneTree();
+		if (treeClass.equals("BinaryTree")) {
+			BinaryTree binaryTree = new BinaryTree();
+			binaryTree.assignFrom(geneTree);
+			tree = binaryTree;
+		} else {
+			tree = geneTree.copy();
+		}
+
+		// A state of its own, so that editing the tree stores it
+		state = new beast.base.inference.State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		sample = 0;
+	}
+
+
+	// Move a node height and reject, as most gene tree proposals end
+	@Benchmark
+	public double proposeAndReject() {
+		state.store(sample++);
+		StarBeast3Model.perturbNodeHeight(tree);
+		final double height = tree.getRoot().getHeight();
+		state.restore();
+		tree.setEverythingDirty(false);
+		return height;
+	}
+
+
+	// Sum of branch lengths, as a stand in for the per-branch loops of the clock and gene tree distributions
+	@Benchmark
+	public double traverse() {
+		double length = 0;
+		for (Node node : tree.getNodesAsArray()) {
+			length += node.getLength();
+		}
+		return length;
+	}
+
+
+}
@@ -0,0 +1,96 @@
+package starbeast3.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.util.Randomizer;
+import starbeast3.evolution.branchratemodel.StarBeast3Clock;
+import starbeast3.evolution.branchratemodel.UCRelaxedClockModelSB3;
+
+
+/**
+ * Species tree and gene tree branch rates, after a change which requires them to be recalculated
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClockBenchmark {
+
+
+	UCRelaxedClockModelSB3 speciesClock;
+	Node[] speciesNodes;
+
+	StarBeast3Clock geneClock;
+	Tree geneTree;
+	Node[] geneNodes;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		speciesClock = model.getAll(UCRelaxedClockModelSB3.class).get(0);
+		speciesNodes = ((Tree) speciesClock.treeInput.get()).getNodesAsArray();
+
+		geneClock = model.getAll(StarBeast3Clock.class).get(0);
+		geneTree = (Tree) geneClock.getGeneTreePrior().getGeneTree();
+		geneNodes = geneTree.getNodesAsArray();
+	}
+
+
+	// Touch one species branch rate, so that the rates need updating
+	private void perturbSpeciesRates() {
+		final int i = Randomizer.nextInt(speciesNodes.length);
+		if (speciesClock.realRatesInput.get() != null) {
+			speciesClock.realRatesInput.get().setValue(i, speciesClock.realRatesInput.get().getValue(i));
+		} else if (speciesClock.quantilesInput.get() != null) {
+			speciesClock.quantilesInput.get().setValue(i, speciesClock.quantilesInput.get().getValue(i));
+		} else if (speciesClock.discreteRatesInput.get() != null) {
+			speciesClock.discreteRatesInput.get().setValue(i, speciesClock.discreteRatesInput.get().getValue(i));
+		}
+	}
+
+
+	@Benchmark
+	public double speciesTreeRates(StarBeast3Model model) {
+		model.store();
+		perturbSpeciesRates();
+		model.checkDirtiness();
+		double sum = 0;
+		for (Node node : speciesNodes) {
+			sum += speciesClock.getRateForBranch(node);
+		}
+		model.reject();
+		return sum;
+	}
+
+
+	@Benchmark
+	public double geneTreeRates(StarBeast3Model model) {
+		model.store();
+		StarBeast3Model.perturbNodeHeight(geneTree);
+		model.checkDirtiness();
+		double sum = 0;
+		for (Node node : geneNodes) {
+			sum += geneClock.getRateForBranch(node);
+		}
+		model.reject();
+		return sum;
+	}
+
+
+}
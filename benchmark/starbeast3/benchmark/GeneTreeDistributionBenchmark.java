@@ -0,0 +1,78 @@
+package starbeast3.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Tree;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+
+
+/**
+ * Gene tree prior under the multispecies coalescent, after a change to one gene tree node height
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeneTreeDistributionBenchmark {
+
+
+	@Param({"0"})
+	public int locus;
+
+	GeneTreeForSpeciesTreeDistribution gene;
+	Tree geneTree;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		gene = model.getAll(GeneTreeForSpeciesTreeDistribution.class).get(locus);
+		geneTree = (Tree) gene.getGeneTree();
+	}
+
+
+	@Benchmark
+	public double calculateLogP(StarBeast3Model model) {
+		model.store();
+		StarBeast3Model.perturbNodeHeight(geneTree);
+		model.checkDirtiness();
+		double logP = gene.calculateLogP();
+		model.reject();
+		return logP;
+	}
+
+
+	// The gene tree to species tree mapping is updated lazily, the first time it is needed
+	@Benchmark
+	public Object update(StarBeast3Model model) {
+		model.store();
+		StarBeast3Model.perturbNodeHeight(geneTree);
+		model.checkDirtiness();
+		Object speciesNode = gene.mapGeneNodeToSpeciesNode(0);
+		model.reject();
+		return speciesNode;
+	}
+
+
+	@Benchmark
+	public void storeRestore() {
+		gene.store();
+		gene.restore();
+	}
+
+
+}
@@ -0,0 +1,123 @@
+package starbeast3.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.util.Randomizer;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.operators.JoinHeightIndex;
+import starbeast3.tree.SpeciesTree;
+
+
+/**
+ * The maximum height bound of NodeReheight2, after a change to one gene tree node height, for a random split of the
+ * species tree leaves. The join height index against the walk of every gene tree which NodeReheight2 used before it
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeReheightBoundBenchmark {
+
+
+	List<GeneTreeForSpeciesTreeDistribution> genes;
+	JoinHeightIndex index;
+	int speciesLeafCount;
+	int[] order;
+	int[] leftLeaves;
+	int[] rightLeaves;
+	boolean[] isLeft;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		genes = model.getAll(GeneTreeForSpeciesTreeDistribution.class);
+		speciesLeafCount = model.getAll(SpeciesTree.class).get(0).getLeafNodeCount();
+		index = new JoinHeightIndex(speciesLeafCount);
+		index.update(genes);
+		order = new int[speciesLeafCount];
+		leftLeaves = new int[speciesLeafCount];
+		rightLeaves = new int[speciesLeafCount];
+		isLeft = new boolean[speciesLeafCount];
+	}
+
+
+	// Perturb a random gene tree, and split the species tree leaves at random
+	private int perturb(StarBeast3Model model) {
+		model.store();
+		StarBeast3Model.perturbNodeHeight((Tree) genes.get(Randomizer.nextInt(genes.size())).getGeneTree());
+		model.checkDirtiness();
+		for (int i = 0; i < speciesLeafCount; i++) {
+			final int j = Randomizer.nextInt(i + 1);
+			order[i] = order[j];
+			order[j] = i;
+		}
+		final int leftCount = 1 + Randomizer.nextInt(speciesLeafCount - 1);
+		for (int i = 0; i < speciesLeafCount; i++) {
+			isLeft[order[i]] = i < leftCount;
+			if (i < leftCount) leftLeaves[i] = order[i];
+			else rightLeaves[i - leftCount] = order[i];
+		}
+		return leftCount;
+	}
+
+
+	@Benchmark
+	public double joinHeightIndex(StarBeast3Model model) {
+		final int leftCount = perturb(model);
+		index.update(genes);
+		double maxHeight = index.getMaxHeight(leftLeaves, leftCount, rightLeaves, speciesLeafCount - leftCount, Double.POSITIVE_INFINITY);
+		model.reject();
+		return maxHeight;
+	}
+
+
+	@Benchmark
+	public double geneTreeRecursion(StarBeast3Model model) {
+		perturb(model);
+		double maxHeight = Double.POSITIVE_INFINITY;
+		for (GeneTreeForSpeciesTreeDistribution gene : genes) {
+			maxHeight = Math.min(maxHeight, recurseMaxHeight(gene.getGeneTree().getRoot(), gene.getTipNumberMap()));
+		}
+		model.reject();
+		return maxHeight;
+	}
+
+
+	// Bits 1 and 2 are set if there are gene tree leaves on the left and on the right below the node, as in the old RelativePosition
+	private int side;
+
+	private double recurseMaxHeight(Node node, int[] leafNodeMap) {
+		if (node.isLeaf()) {
+			side = isLeft[leafNodeMap[node.getNr()]] ? 1 : 2;
+			return Double.POSITIVE_INFINITY;
+		}
+		double maxHeight = recurseMaxHeight(node.getLeft(), leafNodeMap);
+		final int leftSide = side;
+		maxHeight = Math.min(maxHeight, recurseMaxHeight(node.getRight(), leafNodeMap));
+		final int rightSide = side;
+		if (leftSide != 3 && rightSide != 3 && leftSide != rightSide) {
+			maxHeight = Math.min(maxHeight, node.getHeight());
+		}
+		side = leftSide | rightSide;
+		return maxHeight;
+	}
+
+
+}
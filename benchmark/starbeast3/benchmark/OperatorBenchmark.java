@@ -0,0 +1,70 @@
+package starbeast3.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.inference.Operator;
+import starbeast3.operators.ConstantDistanceOperatorSpeciesTree;
+import starbeast3.operators.PopSizeGibbsSampler;
+
+
+/**
+ * A full proposal by a species tree operator: propose, recalculate the posterior, and reject
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OperatorBenchmark {
+
+
+	Operator popSizeGibbsSampler;
+	Operator constantDistanceOperator;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		popSizeGibbsSampler = model.getAll(PopSizeGibbsSampler.class).get(0);
+		constantDistanceOperator = model.getAll(ConstantDistanceOperatorSpeciesTree.class).get(0);
+	}
+
+
+	private double proposeAndReject(StarBeast3Model model, Operator operator) {
+		model.store();
+		double logHR = operator.proposal();
+		double logP = Double.NEGATIVE_INFINITY;
+		if (logHR != Double.NEGATIVE_INFINITY) {
+			model.checkDirtiness();
+			logP = model.posterior.calculateLogP();
+		}
+		model.reject();
+		return logP;
+	}
+
+
+	@Benchmark
+	public double popSizeGibbsSampler(StarBeast3Model model) {
+		return proposeAndReject(model, popSizeGibbsSampler);
+	}
+
+
+	@Benchmark
+	public double constantDistanceOperatorSpeciesTree(StarBeast3Model model) {
+		return proposeAndReject(model, constantDistanceOperator);
+	}
+
+
+}
@@ -0,0 +1,84 @@
+package starbeast3.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.Uniform;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.Operator;
+import starbeast3.core.ParallelMCMC;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+
+
+/**
+ * Throughput of the inner MCMC loop of a ParallelMCMC over a single gene tree, under its multispecies coalescent prior only.
+ * The density is cheap, so this mostly measures the per-step overhead of the chain
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParallelMCMCBenchmark {
+
+
+	private static final int CHAIN_LENGTH = 1000;
+
+	ParallelMCMC mcmc;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		GeneTreeForSpeciesTreeDistribution gene = model.getAll(GeneTreeForSpeciesTreeDistribution.class).get(0);
+		Tree geneTree = (Tree) gene.getGeneTree();
+
+		List<Operator> operators = new ArrayList<>();
+		Uniform uniform = new Uniform();
+		uniform.initByName("tree", geneTree, "weight", 30.0);
+		operators.add(uniform);
+		Exchange narrow = new Exchange();
+		narrow.initByName("tree", geneTree, "weight", 15.0);
+		operators.add(narrow);
+
+		List<Distribution> distrs = new ArrayList<>();
+		distrs.add(gene);
+		CompoundDistribution sampleDistr = new CompoundDistribution();
+		sampleDistr.initByName("distribution", distrs);
+
+		beast.base.inference.State state = new beast.base.inference.State();
+		state.initByName("stateNode", geneTree);
+
+		mcmc = new ParallelMCMC();
+		mcmc.initByName("state", state, "operator", operators, "distribution", sampleDistr, "chainLength", (long) CHAIN_LENGTH, "robust", false);
+		mcmc.setOtherState(model.state);
+	}
+
+
+	// Reports steps per second
+	@Benchmark
+	@OperationsPerInvocation(CHAIN_LENGTH)
+	public long doLoop() throws Exception {
+		mcmc.run();
+		return mcmc.getChainLength();
+	}
+
+
+}
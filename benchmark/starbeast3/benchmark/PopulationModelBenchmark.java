@@ -0,0 +1,84 @@
+package starbeast3.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import beast.base.util.Randomizer;
+import starbeast3.evolution.speciation.ConstantPopulations;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+
+
+/**
+ * Density of the coalescent times within a single species tree branch
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PopulationModelBenchmark {
+
+
+	@Param({"2", "10", "50"})
+	public int lineages;
+
+	ConstantPopulations populationModel;
+	GeneTreeForSpeciesTreeDistribution gene;
+	int speciesNodeCount;
+	double[] coalescentTimes;
+	int k;
+	double branchBottom, branchTop;
+
+
+	@Setup(Level.Trial)
+	public void setup(StarBeast3Model model) {
+		populationModel = model.getAll(ConstantPopulations.class).get(0);
+		gene = model.getAll(GeneTreeForSpeciesTreeDistribution.class).get(0);
+		speciesNodeCount = gene.speciesTreeInput.get().getNodeCount();
+
+		// Sorted coalescent times, all but one lineage coalescing within the branch
+		k = lineages - 1;
+		branchBottom = 0.1;
+		branchTop = 1.0;
+		coalescentTimes = new double[k];
+		for (int i = 0; i < k; i++) {
+			coalescentTimes[i] = branchBottom + Randomizer.nextDouble() * (branchTop - branchBottom);
+		}
+		Arrays.sort(coalescentTimes);
+	}
+
+
+	@Benchmark
+	public double calculateBranchLogP() {
+		return populationModel.calculateBranchLogP(lineages, 2.0, 0.5, branchBottom, coalescentTimes, 0, k, branchTop);
+	}
+
+
+	// All species tree branches of one gene tree, read in place from the gene tree distribution
+	@Benchmark
+	public double calculateBranchLogPGeneTree() {
+		final double[] times = gene.getSortedCoalescentTimes();
+		double logP = 0;
+		for (int i = 0; i < speciesNodeCount; i++) {
+			logP += populationModel.calculateBranchLogP(gene.getLineageCount(i), gene.getPloidy(), 0.5, gene.getBranchBottomHeight(i), 
+					times, gene.getCoalescentTimesOffset(i), gene.getCoalescentCount(i), gene.getBranchTopHeight(i));
+		}
+		return logP;
+	}
+
+
+}
@@ -0,0 +1,170 @@
+package starbeast3.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import beast.base.core.BEASTInterface;
+import beast.base.core.Input;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Distribution;
+import beast.base.inference.MCMC;
+import beast.base.inference.StateNodeInitialiser;
+import beast.base.parser.XMLParser;
+import beast.base.util.Randomizer;
+import starbeast3.simulation.DirectSimulator;
+
+
+/**
+ * Shared benchmark fixture. Parses a StarBeast3 analysis, initialises its state, and then replaces the
+ * species tree and gene trees with a draw from the multispecies coalescent using DirectSimulator, so that
+ * the benchmarks run on synthetic trees of a realistic size and shape.
+ */
+@State(Scope.Benchmark)
+public class StarBeast3Model {
+
+
+	@Param({"examples/barrows.xml"})
+	public String xml;
+
+	@Param({"127"})
+	public long seed;
+
+	public MCMC mcmc;
+	public beast.base.inference.State state;
+	public Distribution posterior;
+
+	private Map<String, BEASTInterface> idMap;
+	private List<BEASTInterface> objects;
+	private long sampleNr;
+
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+
+		Randomizer.setSeed(seed);
+		XMLParser parser = new XMLParser();
+		mcmc = (MCMC) parser.parseFile(new File(xml));
+
+		// Index every object in the model
+		idMap = new HashMap<>();
+		objects = new ArrayList<>();
+		collect(mcmc, new HashSet<>());
+
+		// Initialise the state as MCMC would
+		for (StateNodeInitialiser initialiser : mcmc.initialisersInput.get()) {
+			initialiser.initStateNodes();
+		}
+
+		// Simulate the species tree and gene trees
+		DirectSimulator simulator = new DirectSimulator();
+		simulator.initByName("distribution", get("speciescoalescent"), "nSamples", 1);
+		simulator.doASimulation();
+
+		state = mcmc.startStateInput.get();
+		posterior = mcmc.posteriorInput.get();
+		state.initialise();
+		state.setPosterior(posterior);
+		state.setEverythingDirty(true);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		posterior.calculateLogP();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+		sampleNr = 0;
+	}
+
+
+	private void collect(BEASTInterface obj, Set<BEASTInterface> visited) {
+		if (!visited.add(obj)) return;
+		objects.add(obj);
+		if (obj.getID() != null) idMap.put(obj.getID(), obj);
+		for (Input<?> input : obj.getInputs().values()) {
+			Object value = input.get();
+			if (value instanceof BEASTInterface) {
+				collect((BEASTInterface) value, visited);
+			} else if (value instanceof List) {
+				for (Object o : (List<?>) value) {
+					if (o instanceof BEASTInterface) collect((BEASTInterface) o, visited);
+				}
+			}
+		}
+	}
+
+
+	public BEASTInterface get(String id) {
+		BEASTInterface obj = idMap.get(id);
+		if (obj == null) throw new IllegalArgumentException("Cannot find " + id + " in " + xml);
+		return obj;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	public <T> List<T> getAll(Class<T> c) {
+		List<T> list = new ArrayList<>();
+		for (BEASTInterface obj : objects) {
+			if (c.isInstance(obj)) list.add((T) obj);
+		}
+		if (list.isEmpty()) throw new IllegalArgumentException("Cannot find any " + c.getSimpleName() + " in " + xml);
+		return list;
+	}
+
+
+	/**
+	 * Store the state before a proposal
+	 */
+	public void store() {
+		state.store(sampleNr++);
+	}
+
+
+	/**
+	 * Propagate the dirtiness of the proposal through the calculation nodes
+	 */
+	public void checkDirtiness() {
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+	}
+
+
+	/**
+	 * Reject the proposal, as the MCMC does
+	 */
+	public void reject() {
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+
+	/**
+	 * Move the height of a random internal non-root node of the tree uniformly between its children and parent
+	 * @param tree
+	 */
+	public static void perturbNodeHeight(Tree tree) {
+		final int leafCount = tree.getLeafNodeCount();
+		final int internalCount = tree.getInternalNodeCount();
+		if (internalCount <= 1) return;
+
+		// Skip over the root, which need not be the last node
+		int nr = leafCount + Randomizer.nextInt(internalCount - 1);
+		if (nr >= tree.getRoot().getNr()) nr++;
+		Node node = tree.getNode(nr);
+		final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		final double upper = node.getParent().getHeight();
+		node.setHeight(lower + Randomizer.nextDouble() * (upper - lower));
+	}
+
+
+}
@@ -0,0 +1,288 @@
+package starbeast3.core;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.Operator;
+import starbeast3.operators.MultiStepOperator;
+
+
+@Description("Logs the chain lengths and running runtime estimates of the parallel chains of a MultiStepOperator, and where the time goes: "
+		+ "steps per second, barrier wait and thread idle ratio, dispatch overhead and chain length updates, and optionally the cost "
+		+ "and acceptance of each operator within each chain. Rates are over the interval since the previous log. "
+		+ "The chains keep their own counters, which are only merged here, so logging does not slow the chains down. "
+		+ "The totals over the whole run can also be written to a json or csv file when the analysis ends.")
+public class ChainCostLogger extends CalculationNode implements Loggable, Function {
+
+
+	final public Input<MultiStepOperator> operatorInput = new Input<>("operator", "The operator whose chains will be logged", Validate.REQUIRED);
+	final public Input<Boolean> perOperatorInput = new Input<>("perOperator", "Whether to also log the cost and acceptance of each operator within each chain", false);
+	final public Input<String> fileInput = new Input<>("file", "If specified, the totals over the run are written to this file at the end, "
+			+ "as json if the file name ends with .json and as csv otherwise");
+
+
+	// Counters at the previous log
+	private long lastLogTime;
+	private long lastDispatchCount, lastDispatchOverhead, lastThreadBusyTime, lastThreadAvailableTime;
+	private long[] lastSteps, lastLoopTimes, lastBarrierWaits;
+	private long[][] lastProposals, lastAcceptances;
+
+
+	@Override
+	public void initAndValidate() {
+		// nothing to do
+	}
+
+
+	private String getPrefix() {
+		if (getID() == null || getID().matches("\\s*")) {
+			return getLabel(operatorInput.get(), -1);
+		}
+		return getID();
+	}
+
+
+	/**
+	 * The operators of the parallel chains are made by the MultiStepOperator and usually have no ID, so those are
+	 * labelled by their class and their position within the chain
+	 * @param op
+	 * @param j position of the operator within its chain, or -1 for the MultiStepOperator itself
+	 * @return
+	 */
+	private static String getLabel(Operator op, int j) {
+		if (op.getID() == null || op.getID().matches("\\s*")) {
+			return op.getClass().getSimpleName() + (j < 0 ? "" : String.valueOf(j+1));
+		}
+		return op.getID();
+	}
+
+
+	@Override
+	public void init(PrintStream out) {
+		final String id = getPrefix();
+		List<ParallelMCMC> mcmcs = operatorInput.get().getParallelMCMCs();
+		out.print(id + ".stepsPerSecond\t");
+		out.print(id + ".dispatchOverhead\t");
+		out.print(id + ".idleRatio\t");
+		out.print(id + ".chainLengthUpdates\t");
+		for (int i = 0; i < mcmcs.size(); i++) {
+			out.print(id + ".chainLength." + (i+1) + "\t");
+			out.print(id + ".nsPerStep." + (i+1) + "\t");
+			out.print(id + ".nsPerRun." + (i+1) + "\t");
+			out.print(id + ".stepsPerSecond." + (i+1) + "\t");
+			out.print(id + ".barrierWait." + (i+1) + "\t");
+			if (perOperatorInput.get()) {
+				List<Operator> operators = mcmcs.get(i).operatorsInput.get();
+				for (int j = 0; j < operators.size(); j++) {
+					final String label = getLabel(operators.get(j), j);
+					out.print(id + ".nsPerStep." + (i+1) + "." + label + "\t");
+					out.print(id + ".acceptance." + (i+1) + "." + label + "\t");
+				}
+			}
+		}
+
+		// Take the counters as they are now, so that the first interval starts here
+		final int n = mcmcs.size();
+		lastSteps = new long[n];
+		lastLoopTimes = new long[n];
+		lastBarrierWaits = new long[n];
+		lastProposals = new long[n][];
+		lastAcceptances = new long[n][];
+		for (int i = 0; i < n; i++) {
+			final int operatorCount = mcmcs.get(i).operatorsInput.get().size();
+			lastProposals[i] = new long[operatorCount];
+			lastAcceptances[i] = new long[operatorCount];
+		}
+		takeSnapshot();
+	}
+
+
+	private void takeSnapshot() {
+		MultiStepOperator operator = operatorInput.get();
+		List<ParallelMCMC> mcmcs = operator.getParallelMCMCs();
+		lastLogTime = System.nanoTime();
+		lastDispatchCount = operator.getDispatchCount();
+		lastDispatchOverhead = operator.getDispatchOverhead();
+		lastThreadBusyTime = operator.getThreadBusyTime();
+		lastThreadAvailableTime = operator.getThreadAvailableTime();
+		for (int i = 0; i < mcmcs.size(); i++) {
+			ParallelMCMC mcmc = mcmcs.get(i);
+			lastSteps[i] = mcmc.getTotalSteps();
+			lastLoopTimes[i] = mcmc.getTotalLoopTime();
+			lastBarrierWaits[i] = operator.getBarrierWaitTime(i);
+			for (int j = 0; j < lastProposals[i].length; j++) {
+				lastProposals[i][j] = mcmc.getOperatorProposalCount(j);
+				lastAcceptances[i][j] = mcmc.getOperatorAcceptCount(j);
+			}
+		}
+	}
+
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		MultiStepOperator operator = operatorInput.get();
+		List<ParallelMCMC> mcmcs = operator.getParallelMCMCs();
+
+		// Merge the counters of the chains
+		final double seconds = (System.nanoTime() - lastLogTime) / 1e9;
+		long steps = 0;
+		for (int i = 0; i < mcmcs.size(); i++) {
+			steps += mcmcs.get(i).getTotalSteps() - lastSteps[i];
+		}
+		final long dispatches = operator.getDispatchCount() - lastDispatchCount;
+		final long available = operator.getThreadAvailableTime() - lastThreadAvailableTime;
+		out.print(ratio(steps, seconds) + "\t");
+		out.print(ratio(operator.getDispatchOverhead() - lastDispatchOverhead, dispatches) + "\t");
+		out.print((available > 0 ? 1.0 - ratio(operator.getThreadBusyTime() - lastThreadBusyTime, available) : 0) + "\t");
+		out.print(operator.getChainLengthUpdateCount() + "\t");
+
+		for (int i = 0; i < mcmcs.size(); i++) {
+			ParallelMCMC mcmc = mcmcs.get(i);
+			out.print(mcmc.getChainLength() + "\t");
+			out.print(mcmc.getStepCost() + "\t");
+			out.print(mcmc.getRunCost() + "\t");
+
+			// Steps per second while the chain is running
+			out.print(ratio(mcmc.getTotalSteps() - lastSteps[i], (mcmc.getTotalLoopTime() - lastLoopTimes[i]) / 1e9) + "\t");
+			out.print(ratio(operator.getBarrierWaitTime(i) - lastBarrierWaits[i], dispatches) + "\t");
+			if (perOperatorInput.get()) {
+				for (int j = 0; j < lastProposals[i].length; j++) {
+					out.print(mcmc.getOperatorCost(j) + "\t");
+					out.print(ratio(mcmc.getOperatorAcceptCount(j) - lastAcceptances[i][j], mcmc.getOperatorProposalCount(j) - lastProposals[i][j]) + "\t");
+				}
+			}
+		}
+
+		takeSnapshot();
+	}
+
+
+	private static double ratio(double numerator, double denominator) {
+		return denominator > 0 ? numerator / denominator : 0;
+	}
+
+
+	@Override
+	public void close(PrintStream out) {
+		final String fileName = fileInput.get();
+		if (fileName == null || fileName.matches("\\s*")) return;
+		try (PrintStream dump = new PrintStream(fileName)) {
+			if (fileName.toLowerCase().endsWith(".json")) {
+				writeJSON(dump);
+			} else {
+				writeCSV(dump);
+			}
+		} catch (FileNotFoundException e) {
+			Log.err.println("ChainCostLogger: could not write to " + fileName + ": " + e.getMessage());
+		}
+	}
+
+
+	// One row per chain and operator, with the totals over the run
+	private void writeCSV(PrintStream out) {
+		MultiStepOperator operator = operatorInput.get();
+		List<ParallelMCMC> mcmcs = operator.getParallelMCMCs();
+		out.println("chain,operator,steps,loopTime,barrierWait,proposals,accepted,timedSteps,timedTime");
+		for (int i = 0; i < mcmcs.size(); i++) {
+			ParallelMCMC mcmc = mcmcs.get(i);
+			out.println((i+1) + ",," + mcmc.getTotalSteps() + "," + mcmc.getTotalLoopTime() + "," + operator.getBarrierWaitTime(i) + ",,,,");
+			List<Operator> operators = mcmc.operatorsInput.get();
+			for (int j = 0; j < operators.size(); j++) {
+				out.println((i+1) + "," + csvString(getLabel(operators.get(j), j)) + ",,,," + mcmc.getOperatorProposalCount(j) + "," + mcmc.getOperatorAcceptCount(j)
+						+ "," + mcmc.getOperatorTimedCount(j) + "," + mcmc.getOperatorTimedTime(j));
+			}
+		}
+	}
+
+
+	private void writeJSON(PrintStream out) {
+		MultiStepOperator operator = operatorInput.get();
+		List<ParallelMCMC> mcmcs = operator.getParallelMCMCs();
+		out.println("{");
+		out.println("  \"operator\": " + jsonString(getLabel(operator, -1)) + ",");
+		out.println("  \"dispatches\": " + operator.getDispatchCount() + ",");
+		out.println("  \"dispatchTime\": " + operator.getDispatchTime() + ",");
+		out.println("  \"dispatchOverhead\": " + operator.getDispatchOverhead() + ",");
+		out.println("  \"threadBusyTime\": " + operator.getThreadBusyTime() + ",");
+		out.println("  \"threadAvailableTime\": " + operator.getThreadAvailableTime() + ",");
+		out.println("  \"chainLengthUpdates\": " + operator.getChainLengthUpdateCount() + ",");
+		out.println("  \"chains\": [");
+		for (int i = 0; i < mcmcs.size(); i++) {
+			ParallelMCMC mcmc = mcmcs.get(i);
+			out.println("    {");
+			out.println("      \"chainLength\": " + mcmc.getChainLength() + ",");
+			out.println("      \"steps\": " + mcmc.getTotalSteps() + ",");
+			out.println("      \"loopTime\": " + mcmc.getTotalLoopTime() + ",");
+			out.println("      \"barrierWait\": " + operator.getBarrierWaitTime(i) + ",");
+			out.println("      \"operators\": [");
+			List<Operator> operators = mcmc.operatorsInput.get();
+			for (int j = 0; j < operators.size(); j++) {
+				out.println("        {\"id\": " + jsonString(getLabel(operators.get(j), j)) + ", \"proposals\": " + mcmc.getOperatorProposalCount(j)
+						+ ", \"accepted\": " + mcmc.getOperatorAcceptCount(j) + ", \"timedSteps\": " + mcmc.getOperatorTimedCount(j)
+						+ ", \"timedTime\": " + mcmc.getOperatorTimedTime(j) + "}" + (j < operators.size() - 1 ? "," : ""));
+			}
+			out.println("      ]");
+			out.println("    }" + (i < mcmcs.size() - 1 ? "," : ""));
+		}
+		out.println("  ]");
+		out.println("}");
+	}
+
+
+	// Quoted if it has a comma, quote or line break
+	private static String csvString(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+
+	private static String jsonString(String value) {
+		StringBuilder b = new StringBuilder("\"");
+		for (int k = 0; k < value.length(); k++) {
+			final char c = value.charAt(k);
+			switch (c) {
+				case '"': b.append("\\\""); break;
+				case '\\': b.append("\\\\"); break;
+				case '\n': b.append("\\n"); break;
+				case '\r': b.append("\\r"); break;
+				case '\t': b.append("\\t"); break;
+				default:
+					if (c < 0x20) {
+						b.append(String.format("\\u%04x", (int) c));
+					} else {
+						b.append(c);
+					}
+			}
+		}
+		return b.append('"').toString();
+	}
+
+
+	@Override
+	public int getDimension() {
+		return 3 * operatorInput.get().getParallelMCMCs().size();
+	}
+
+
+	@Override
+	public double getArrayValue(int dim) {
+		ParallelMCMC mcmc = operatorInput.get().getParallelMCMCs().get(dim / 3);
+		switch (dim % 3) {
+			case 0: return mcmc.getChainLength();
+			case 1: return mcmc.getStepCost();
+			default: return mcmc.getRunCost();
+		}
+	}
+
+
+}
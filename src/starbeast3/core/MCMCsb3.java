@@ -11,6 +11,7 @@ import beast.base.core.Log;
 import beast.base.util.Randomizer;
 import starbeast3.operators.MultiStepOperator;
 import starbeast3.operators.MultiStepOperatorSchedule;
+import starbeast3.util.ChainRandomizer;
 
 @Description("Variant of MCMC that takes MultiStepOperators in account")
 public class MCMCsb3 extends MCMC {
@@ -22,6 +23,9 @@ public class MCMCsb3 extends MCMC {
 		}
 		
 		
+		// Reseed the random number streams of the parallel chains for this analysis
+		ChainRandomizer.reset();
+		
         int corrections = 0;
         final boolean isStochastic = posterior.isStochastic();
         
@@ -0,0 +1,152 @@
+package starbeast3.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.PopulationModel;
+import starbeast3.tree.SpeciesTree;
+
+
+@Description("Compound distribution which calculates its dirty distributions in parallel on the shared worker pool. "
+		+ "Use it for the gene tree priors and the tree likelihoods, which are independent across loci. "
+		+ "The log densities are summed in a fixed order, so the result does not depend on the number of threads.")
+public class ParallelCompoundDistribution extends CompoundDistribution {
+
+
+	final public Input<Integer> minDirtyInput = new Input<>("minDirty", "minimum number of dirty distributions for which to calculate in parallel", 2);
+
+
+	// Weight of the most recent runtime in the running cost estimate
+	private static final double COST_DECAY = 0.2;
+
+
+	private Distribution[] distributions;
+
+	// Running runtime estimate of each distribution, and all distributions sorted by decreasing cost
+	private double[] cost;
+	private int[] order;
+
+	// The dirty distributions of the current call, in order of decreasing cost
+	private int[] dirty;
+	private int dirtyCount;
+	private Runnable[] tasks;
+	private double[] childLogP;
+
+	// Population models and species trees shared by the gene tree distributions
+	private List<PopulationModel> popModels;
+	private List<SpeciesTree> speciesTrees;
+
+
+	@Override
+	public void initAndValidate() {
+		super.initAndValidate();
+
+		List<Distribution> distrs = pDistributions.get();
+		final int n = distrs.size();
+		distributions = distrs.toArray(new Distribution[n]);
+		cost = new double[n];
+		order = new int[n];
+		dirty = new int[n];
+		childLogP = new double[n];
+		tasks = new Runnable[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			final int k = i;
+			tasks[i] = () -> calculateChildLogP(dirty[k]);
+		}
+
+		popModels = new ArrayList<>();
+		speciesTrees = new ArrayList<>();
+		for (Distribution d : distributions) {
+			if (d instanceof GeneTreeForSpeciesTreeDistribution) {
+				GeneTreeForSpeciesTreeDistribution gene = (GeneTreeForSpeciesTreeDistribution) d;
+				PopulationModel popModel = gene.popModelInput.get();
+				if (popModel != null && !popModels.contains(popModel)) {
+					popModels.add(popModel);
+					speciesTrees.add(gene.speciesTreeInput.get());
+				}
+			}
+		}
+	}
+
+
+	@Override
+	public double calculateLogP() {
+		logP = 0;
+		if (ignoreInput.get()) return logP;
+
+		// Find the dirty distributions, most expensive first
+		dirtyCount = 0;
+		for (int i : order) {
+			if (distributions[i].isDirtyCalculation()) {
+				dirty[dirtyCount++] = i;
+			}
+		}
+
+		if (dirtyCount >= minDirtyInput.get() && ProgramStatus.m_nThreads > 1) {
+			prepareSharedNodes();
+			SharedWorkerPool.getInstance().invokeAll(tasks, dirtyCount);
+			sortByCost();
+		} else {
+			for (int k = 0; k < dirtyCount; k++) {
+				calculateChildLogP(dirty[k]);
+			}
+		}
+
+		// Sum in the order of the distributions
+		for (int i = 0; i < distributions.length; i++) {
+			if (distributions[i].isDirtyCalculation()) {
+				logP += childLogP[i];
+			} else {
+				logP += distributions[i].getCurrentLogP();
+			}
+			if (Double.isInfinite(logP) || Double.isNaN(logP)) {
+				return logP;
+			}
+		}
+		return logP;
+	}
+
+
+	private void calculateChildLogP(int i) {
+		final long start = System.nanoTime();
+		childLogP[i] = distributions[i].calculateLogP();
+		cost[i] += COST_DECAY * ((System.nanoTime() - start) - cost[i]);
+	}
+
+
+	/**
+	 * The population models update their per-branch dirtiness lazily, the first time a gene asks for it.
+	 * Do that on this thread, before the genes are calculated in parallel
+	 */
+	private void prepareSharedNodes() {
+		for (int j = 0; j < popModels.size(); j++) {
+			popModels.get(j).isDirtyBranch(speciesTrees.get(j).getRoot());
+		}
+	}
+
+
+	/**
+	 * Insertion sort of the distributions by decreasing cost. The order changes little between calls,
+	 * so this is close to linear time
+	 */
+	private void sortByCost() {
+		for (int i = 1; i < order.length; i++) {
+			final int d = order[i];
+			int j = i - 1;
+			while (j >= 0 && cost[order[j]] < cost[d]) {
+				order[j+1] = order[j];
+				j--;
+			}
+			order[j+1] = d;
+		}
+	}
+
+
+}
@@ -0,0 +1,126 @@
+package starbeast3.core;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import beast.base.inference.Operator;
+import beast.base.inference.StateNode;
+import beast.base.util.Randomizer;
+import starbeast3.util.ChainRandomizer;
+
+
+/**
+ * Runs independent per-locus work, such as the gene tree part of a species tree proposal, in parallel on the SharedWorkerPool.
+ *
+ * The loci are split into a few contiguous chunks per thread, so that a slow locus does not hold up the others.
+ * Call startEditing on the gene trees first. Each locus must only touch its own gene tree and its own slots of any
+ * result arrays, which the caller reduces in locus order afterwards, so the result does not depend on the number of threads.
+ *
+ * If the per-locus work draws random numbers, use forEachRandom. Every locus then gets its own stream, split off a
+ * seed drawn from the BEAST Randomizer on the calling thread, and bound to ChainRandomizer while the locus runs.
+ */
+public class ParallelLoci {
+
+	// Number of chunks per thread
+	private static final int CHUNKS_PER_THREAD = 4;
+
+
+	public interface LocusTask {
+		void run(int locus);
+	}
+
+
+	private final SharedWorkerPool pool;
+	private final Runnable[] chunks;
+
+	// The current call
+	private LocusTask task;
+	private int locusCount;
+	private int chunkCount;
+	private SplittableRandom[] streams = new SplittableRandom[0];
+	private boolean useStreams;
+
+
+	public ParallelLoci() {
+		pool = SharedWorkerPool.getInstance();
+		chunks = new Runnable[CHUNKS_PER_THREAD * (pool.getWorkerCount() + 1)];
+		for (int c = 0; c < chunks.length; c++) {
+			final int chunk = c;
+			chunks[c] = () -> runChunk(chunk);
+		}
+	}
+
+
+	/**
+	 * Run task.run(0), ..., task.run(n-1) in parallel and return once all have finished
+	 * @param n
+	 * @param task
+	 */
+	public void forEach(int n, LocusTask task) {
+		run(n, task, false);
+	}
+
+
+	/**
+	 * As forEach, but each locus draws its random numbers from its own stream through ChainRandomizer
+	 * @param n
+	 * @param task
+	 */
+	public void forEachRandom(int n, LocusTask task) {
+		if (streams.length < n) {
+			streams = new SplittableRandom[n];
+		}
+		final SplittableRandom master = new SplittableRandom(Randomizer.nextLong());
+		for (int i = 0; i < n; i++) {
+			streams[i] = master.split();
+		}
+		run(n, task, true);
+	}
+
+
+	/**
+	 * Mark these state nodes as edited, on the calling thread. The State keeps one list of the state nodes
+	 * edited by a proposal, which must not be appended to by the worker threads
+	 * @param stateNodes
+	 * @param operator
+	 */
+	public static void startEditing(List<? extends StateNode> stateNodes, Operator operator) {
+		for (StateNode stateNode : stateNodes) {
+			stateNode.startEditing(operator);
+		}
+	}
+
+
+	private void run(int n, LocusTask task, boolean useStreams) {
+		if (n <= 0) return;
+		this.task = task;
+		this.locusCount = n;
+		this.useStreams = useStreams;
+		this.chunkCount = Math.min(n, chunks.length);
+		try {
+			pool.invokeAll(chunks, chunkCount);
+		} finally {
+			this.task = null;
+		}
+	}
+
+
+	private void runChunk(int chunk) {
+		final int from = (int) ((long) chunk * locusCount / chunkCount);
+		final int to = (int) ((long) (chunk + 1) * locusCount / chunkCount);
+		for (int i = from; i < to; i++) {
+			if (useStreams) {
+				final SplittableRandom previous = ChainRandomizer.bind(streams[i]);
+				try {
+					task.run(i);
+				} finally {
+					ChainRandomizer.unbind(previous);
+				}
+			} else {
+				task.run(i);
+			}
+		}
+	}
+
+
+}
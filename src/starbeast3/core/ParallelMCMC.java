@@ -5,6 +5,7 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.HashSet;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -22,7 +23,7 @@ import beast.base.inference.StateNode;
 import beast.base.inference.CompoundDistribution;
 import beast.base.inference.Evaluator;
 import beast.base.core.Log;
-import beast.base.util.Randomizer;
+import starbeast3.util.ChainRandomizer;
 
 @Description("Implements MCMC without logging, or resume and suppresses all screen output. Used for ParallelMCMCOperator.")
 public class ParallelMCMC extends MCMC {
@@ -49,6 +50,37 @@ public class ParallelMCMC extends MCMC {
     private long targetRuntime = -1;
     private long numStepsInChain;
     private long startTime;
+    
+    
+    // Online cost model. Exponentially weighted running estimates of the runtime, which keep updating as the chain settles
+    private static final double COST_DECAY = 0.1;
+    private static final int OPERATOR_TIMING_INTERVAL = 64; // time one in every this many steps, per operator
+    private double nsPerStep = 0; // cost of a single step
+    private double nsPerRun = 0; // fixed cost of a call to run(), independent of the chain length
+    private double[] operatorNsPerStep;
+    private long loopNanos;
+    
+    // Cumulative counters for ChainCostLogger. They are only written by the thread running this chain,
+    // and are read between runs, so they need no synchronisation
+    private long totalSteps;
+    private long totalLoopNanos;
+    private long[] operatorProposals;
+    private long[] operatorAcceptances;
+    private long[] operatorTimedNanos;
+    private long[] operatorTimedSteps;
+    
+    // Check whether the target runtime is over only once every this many steps, so that the clock is not read on every step
+    private static final int RUNTIME_CHECK_INTERVAL = 64;
+    private long startNanos;
+    
+    // Reused by every step whose operator has an evaluator distribution
+    private final StepEvaluator stepEvaluator = new StepEvaluator();
+    
+    // Random number stream of this chain, for operator selection, the accept/reject step and any operators that use ChainRandomizer
+    private SplittableRandom random;
+    private int randomEpoch;
+    private double[] cumulativeOperatorWeights;
+    private int selectedOperatorIndex;
 
 	public void setOtherState(State otherState) {
 		this.otherState = otherState;
@@ -84,6 +116,16 @@ public class ParallelMCMC extends MCMC {
     		this.runtimes = new double[nregressionInput.get()];
     	}
     	
+    	this.operatorNsPerStep = new double[operatorsInput.get().size()];
+    	this.operatorProposals = new long[operatorsInput.get().size()];
+    	this.operatorAcceptances = new long[operatorsInput.get().size()];
+    	this.operatorTimedNanos = new long[operatorsInput.get().size()];
+    	this.operatorTimedSteps = new long[operatorsInput.get().size()];
+    	this.random = ChainRandomizer.newStream();
+    	this.randomEpoch = ChainRandomizer.getEpoch();
+    	
+    	this.cumulativeOperatorWeights = new double[operatorsInput.get().size()];
+    	
     	this.robust = robustInput.get();
     	state = startStateInput.get();
     	otherStateNr = new int[state.stateNodeInput.get().size()];
@@ -200,15 +242,18 @@ public class ParallelMCMC extends MCMC {
     	
 
     	
+    	final long runStartTime = System.nanoTime();
+    	
     	// Regression
     	startTime = 0;
     	if (this.doRegression && !this.finishedRegression) {
     		
     		startTime = System.currentTimeMillis();
+    		startNanos = System.nanoTime();
     		
     		// Sample chain length, measure runtime
     		if (targetRuntime <= 0) {
-	    		chainLength = Randomizer.nextInt((int)(5*this.initChainLength));
+	    		chainLength = random.nextInt((int)(5*this.initChainLength));
 	    		this.chainLengths[this.regressionNr] = chainLength;
     		}
     		
@@ -234,7 +279,19 @@ public class ParallelMCMC extends MCMC {
         logAlpha = 0;
         debugFlag = Boolean.valueOf(System.getProperty("beast.debug"));
 
-        doLoop();
+        // Operators that use ChainRandomizer will draw from this chain's stream
+        SplittableRandom previousStream = ChainRandomizer.bind(random);
+        try {
+        	doLoop();
+        } finally {
+        	ChainRandomizer.unbind(previousStream);
+        }
+        
+        // Update the cost model
+        if (numStepsInChain > 0) {
+        	double runNanos = System.nanoTime() - runStartTime - loopNanos;
+        	updateCost(runNanos, 1.0 * loopNanos / numStepsInChain);
+        }
         
         // Log the runtime
         if (this.doRegression && !this.finishedRegression) {
@@ -289,17 +346,26 @@ public class ParallelMCMC extends MCMC {
         }
         
         numStepsInChain = 0;
+        final long loopStartTime = System.nanoTime();
         for (long sampleNr = sampleCount; sampleNr <= chainLength + sampleCount; sampleNr++) {
         	
         	
         	// Time over?
-        	if (this.doRegression && !this.finishedRegression && this.targetRuntime > 0) {
-        		long runTime = System.currentTimeMillis() - startTime;
+        	if (this.doRegression && !this.finishedRegression && this.targetRuntime > 0 && numStepsInChain % RUNTIME_CHECK_INTERVAL == 0) {
+        		long runTime = (System.nanoTime() - startNanos) / 1000000;
         		if (runTime > this.targetRuntime) break;
         	}
         	
         	
-            final Operator operator = propagateState(sampleNr);
+            // Time a subset of the steps, to estimate the cost of each operator
+            final Operator operator;
+            if (numStepsInChain % OPERATOR_TIMING_INTERVAL == 0) {
+            	final long stepStartTime = System.nanoTime();
+            	operator = propagateState(sampleNr);
+            	updateOperatorCost(selectedOperatorIndex, System.nanoTime() - stepStartTime);
+            } else {
+            	operator = propagateState(sampleNr);
+            }
             //System.err.print("\n" + sampleNr + " " + operator.getName()+ ":");
 
             if (this.robust && (debugFlag && sampleNr % 3 == 0 || sampleNr % 10000 == 0)) {
@@ -360,6 +426,9 @@ public class ParallelMCMC extends MCMC {
             numStepsInChain++;
             
         }
+        loopNanos = System.nanoTime() - loopStartTime;
+        totalLoopNanos += loopNanos;
+        totalSteps += numStepsInChain;
         if (corrections > 0) {
         	Log.err.println("\n\nNB: " + corrections + " posterior calculation corrections were required. This analysis may not be valid!\n\n");
         }
@@ -386,7 +455,8 @@ public class ParallelMCMC extends MCMC {
 //            	operatorSchedule.storeToFile();
 //            }
 
-        final Operator operator = operatorSchedule.selectOperator();
+        final Operator operator = selectOperator();
+        operatorProposals[selectedOperatorIndex]++;
 
         if (printDebugInfo) System.err.print("\n" + sampleNr + " " + operator.getName()+ ":");
 
@@ -394,27 +464,9 @@ public class ParallelMCMC extends MCMC {
         Evaluator evaluator = null;
 
         if (evaluatorDistribution != null) {
-            evaluator = new Evaluator() {
-                @Override
-                public double evaluate() {
-                    double logP = 0.0;
-
-                    state.storeCalculationNodes();
-                    state.checkCalculationNodesDirtiness();
-
-                    try {
-                        logP = evaluatorDistribution.calculateLogP();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        System.exit(1);
-                    }
-
-                    state.restore();
-                    state.store(sampleNr);
-
-                    return logP;
-                }
-            };
+        	stepEvaluator.distribution = evaluatorDistribution;
+        	stepEvaluator.sampleNr = sampleNr;
+        	evaluator = stepEvaluator;
         }
         final double logHastingsRatio = operator.proposal(evaluator);
 
@@ -430,10 +482,11 @@ public class ParallelMCMC extends MCMC {
             logAlpha = newLogLikelihood - oldLogLikelihood + logHastingsRatio; //CHECK HASTINGS
             if (printDebugInfo) System.err.print(logAlpha + " " + newLogLikelihood + " " + oldLogLikelihood);
 
-            if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+            if (logAlpha >= 0 || random.nextDouble() < Math.exp(logAlpha)) {
                 // accept
                 oldLogLikelihood = newLogLikelihood;
                 state.acceptCalculationNodes();
+                operatorAcceptances[selectedOperatorIndex]++;
 
                 if (sampleNr >= 0) {
                     operator.accept();
@@ -464,6 +517,71 @@ public class ParallelMCMC extends MCMC {
         return operator;
     }
 
+    /**
+     * Take a new random number stream if ChainRandomizer has been reseeded since this chain took its stream,
+     * eg. at the start of the analysis. This is called from the analysis thread, in a fixed order, before the chains run
+     */
+    public void refreshRandomStream() {
+    	if (this.randomEpoch != ChainRandomizer.getEpoch()) {
+    		this.random = ChainRandomizer.newStream();
+    		this.randomEpoch = ChainRandomizer.getEpoch();
+    	}
+    }
+    
+    
+    /**
+     * Sample an operator in proportion to its weight, as the operator schedule does, but using this chain's random number stream.
+     * The weights are read on every call, so that reweighting of the operators is not missed
+     * @return
+     */
+    private Operator selectOperator() {
+    	final List<Operator> operators = operatorsInput.get();
+    	double weightSum = 0;
+    	for (int i = 0; i < cumulativeOperatorWeights.length; i++) {
+    		weightSum += operators.get(i).getWeight();
+    		cumulativeOperatorWeights[i] = weightSum;
+    	}
+    	final double u = random.nextDouble() * weightSum;
+    	int i = 0;
+    	while (i < cumulativeOperatorWeights.length - 1 && u >= cumulativeOperatorWeights[i]) {
+    		i++;
+    	}
+    	selectedOperatorIndex = i;
+    	return operators.get(i);
+    }
+    
+    
+    /**
+     * Evaluates the operator's evaluator distribution at the proposed state, and then restores the state.
+     * A single instance is reused across steps, instead of allocating a new one per step
+     */
+    private class StepEvaluator extends Evaluator {
+    	
+    	Distribution distribution;
+    	long sampleNr;
+    	
+        @Override
+        public double evaluate() {
+            double logP = 0.0;
+
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+
+            try {
+                logP = distribution.calculateLogP();
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+
+            state.restore();
+            state.store(sampleNr);
+
+            return logP;
+        }
+    }
+    
+
     private boolean isTooDifferent(double logLikelihood, double originalLogP) {
     	//return Math.abs((logLikelihood - originalLogP)/originalLogP) > 1e-6;
     	return Math.abs(logLikelihood - originalLogP) > 1e-6;
@@ -601,6 +719,149 @@ public class ParallelMCMC extends MCMC {
 	public long getChainLength() {
 		return this.chainLength;
 	}
+	
+	
+	public void setChainLength(long chainLength) {
+		this.chainLength = chainLength;
+	}
+	
+	
+	private void updateCost(double runNanos, double stepNanos) {
+		if (nsPerStep == 0) {
+			nsPerRun = runNanos;
+			nsPerStep = stepNanos;
+		} else {
+			nsPerRun = (1 - COST_DECAY) * nsPerRun + COST_DECAY * runNanos;
+			nsPerStep = (1 - COST_DECAY) * nsPerStep + COST_DECAY * stepNanos;
+		}
+	}
+	
+	
+	private void updateOperatorCost(int i, long stepNanos) {
+		operatorTimedNanos[i] += stepNanos;
+		operatorTimedSteps[i]++;
+		if (operatorNsPerStep[i] == 0) {
+			operatorNsPerStep[i] = stepNanos;
+		} else {
+			operatorNsPerStep[i] = (1 - COST_DECAY) * operatorNsPerStep[i] + COST_DECAY * stepNanos;
+		}
+	}
+	
+	
+	/**
+	 * Running estimate of the cost of a single step (ns), or 0 if the chain has not been run yet
+	 * @return
+	 */
+	public double getStepCost() {
+		return nsPerStep;
+	}
+	
+	
+	/**
+	 * Whether this chain has been run, so that the running cost estimates can be used
+	 * @return
+	 */
+	public boolean hasCostEstimate() {
+		return nsPerStep > 0;
+	}
+	
+	
+	/**
+	 * Running estimate of the fixed cost of a chain (ns), ie. setting up and tearing down the state
+	 * @return
+	 */
+	public double getRunCost() {
+		return nsPerRun;
+	}
+	
+	
+	/**
+	 * Running estimate of the cost of a step by the i-th operator (ns)
+	 * @param i
+	 * @return
+	 */
+	public double getOperatorCost(int i) {
+		return operatorNsPerStep[i];
+	}
+	
+	
+	/**
+	 * Total number of steps taken by this chain
+	 * @return
+	 */
+	public long getTotalSteps() {
+		return totalSteps;
+	}
+	
+	
+	/**
+	 * Total time (ns) spent in the MCMC loop of this chain, excluding setting up and tearing down the state
+	 * @return
+	 */
+	public long getTotalLoopTime() {
+		return totalLoopNanos;
+	}
+	
+	
+	/**
+	 * Number of proposals made by the i-th operator
+	 * @param i
+	 * @return
+	 */
+	public long getOperatorProposalCount(int i) {
+		return operatorProposals[i];
+	}
+	
+	
+	/**
+	 * Number of accepted proposals of the i-th operator
+	 * @param i
+	 * @return
+	 */
+	public long getOperatorAcceptCount(int i) {
+		return operatorAcceptances[i];
+	}
+	
+	
+	/**
+	 * Total time (ns) of the timed steps of the i-th operator. One in every OPERATOR_TIMING_INTERVAL steps is timed
+	 * @param i
+	 * @return
+	 */
+	public long getOperatorTimedTime(int i) {
+		return operatorTimedNanos[i];
+	}
+	
+	
+	/**
+	 * Number of timed steps of the i-th operator
+	 * @param i
+	 * @return
+	 */
+	public long getOperatorTimedCount(int i) {
+		return operatorTimedSteps[i];
+	}
+	
+	
+	/**
+	 * Predict the runtime (ns) of a chain of this length from the running cost estimates
+	 * @param chainLen
+	 * @return
+	 */
+	public double predictRuntime(long chainLen) {
+		return nsPerRun + nsPerStep * chainLen;
+	}
+	
+	
+	/**
+	 * Set the chain length such that the predicted runtime is targetRuntime (ns), using the running cost estimates
+	 * Unlike setChainlengthToTargetRuntime, this can be called repeatedly during the analysis
+	 * @param targetRuntime
+	 */
+	public void setChainLengthToRuntime(double targetRuntime) {
+		if (nsPerStep <= 0) return;
+		this.chainLength = (long) Math.max(MIN_CHAIN_LENGTH, (targetRuntime - nsPerRun) / nsPerStep);
+	}
 
 
 
@@ -0,0 +1,234 @@
+package starbeast3.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import beast.base.core.Log;
+import beast.base.core.ProgramStatus;
+
+
+/**
+ * A process-wide pool of long-lived worker threads, shared by all MultiStepOperators so that
+ * several operators in one analysis do not each create their own pool and oversubscribe the cores.
+ *
+ * Work is handed over through a reusable counter barrier instead of a new latch per call, and idle workers
+ * spin briefly before parking, so that short parallel MCMC chains are not dominated by thread wake-up latency.
+ * The calling thread takes part in the work. Tasks are claimed from a shared index, so a thread which finishes
+ * early takes the next remaining task.
+ */
+public class SharedWorkerPool {
+
+	// Number of times to spin before parking a thread
+	private static final int SPIN_ITERATIONS = 1 << 14;
+
+	private static SharedWorkerPool instance = null;
+
+
+	/**
+	 * Get the shared pool, creating it the first time. The pool has one fewer worker than the number of
+	 * threads available to BEAST, since the calling thread also runs tasks
+	 * @return
+	 */
+	public static synchronized SharedWorkerPool getInstance() {
+		if (instance == null) {
+			instance = new SharedWorkerPool(Math.max(0, ProgramStatus.m_nThreads - 1));
+		}
+		return instance;
+	}
+
+
+	private final Worker[] workers;
+
+	// Whether a batch is in flight. This is deliberately not a reentrant lock, so that a task which calls
+	// invokeAll again from the calling thread runs its own tasks serially instead of replacing the current batch
+	private final AtomicBoolean dispatching = new AtomicBoolean(false);
+
+	// Whether a call from a thread outside the current batch has been run serially because the pool was busy
+	private final AtomicBoolean contentionReported = new AtomicBoolean(false);
+
+	// The current batch of tasks
+	private volatile Runnable[] tasks;
+	private volatile int taskCount;
+	private final AtomicInteger nextTask = new AtomicInteger();
+	private final AtomicInteger busyWorkers = new AtomicInteger();
+	private volatile Thread caller;
+	private volatile Throwable failure;
+
+
+	private SharedWorkerPool(int nrOfWorkers) {
+		workers = new Worker[nrOfWorkers];
+		for (int i = 0; i < nrOfWorkers; i++) {
+			workers[i] = new Worker("starbeast3-worker-" + i);
+			workers[i].start();
+		}
+	}
+
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+
+	/**
+	 * Run tasks[0], ..., tasks[n-1] in parallel and return once all have finished.
+	 * If the pool is already busy the tasks are run on the calling thread. That is expected for a nested call from one
+	 * of the tasks, but a call from another thread loses its parallelism, which is reported once.
+	 * If a task throws, the remaining tasks are not started, and the exception is rethrown once all threads have
+	 * stopped working on the batch.
+	 * @param tasks
+	 * @param n
+	 */
+	public void invokeAll(Runnable[] tasks, int n) {
+		invokeAll(tasks, n, workers.length + 1);
+	}
+
+
+	/**
+	 * As above, but using at most maxThreads threads (including the calling thread).
+	 * Tasks are claimed in index order, so putting the most expensive ones first gives the best balance
+	 * @param tasks
+	 * @param n
+	 * @param maxThreads
+	 */
+	public void invokeAll(Runnable[] tasks, int n, int maxThreads) {
+
+		if (n <= 1 || maxThreads <= 1 || workers.length == 0) {
+			runSerially(tasks, n);
+			return;
+		}
+		if (!dispatching.compareAndSet(false, true)) {
+			if (!isInBatch(Thread.currentThread()) && contentionReported.compareAndSet(false, true)) {
+				Log.warning.println("SharedWorkerPool: " + Thread.currentThread().getName() + " found the pool busy with the tasks of another thread, "
+						+ "so its tasks run serially. This is reported only once.");
+			}
+			runSerially(tasks, n);
+			return;
+		}
+
+		try {
+
+			this.tasks = tasks;
+			this.taskCount = n;
+			this.failure = null;
+			this.caller = Thread.currentThread();
+			nextTask.set(0);
+
+			// Wake up just enough workers
+			final int helpers = Math.min(Math.min(workers.length, maxThreads - 1), n - 1);
+			busyWorkers.set(helpers);
+			for (int w = 0; w < helpers; w++) {
+				workers[w].wake();
+			}
+
+			// Help out. A failure here must not skip the wait below, since the workers are still using this batch
+			try {
+				runTasks();
+			} catch (Throwable e) {
+				failure = e;
+				nextTask.set(n);
+			}
+
+			// Wait for the workers to finish
+			int spins = 0;
+			while (busyWorkers.get() > 0) {
+				if (spins < SPIN_ITERATIONS) {
+					spins++;
+					Thread.onSpinWait();
+				} else {
+					LockSupport.park(this);
+				}
+			}
+
+			this.tasks = null;
+			final Throwable failure = this.failure;
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			if (failure != null) {
+				throw new RuntimeException(failure);
+			}
+
+		} finally {
+			dispatching.set(false);
+		}
+
+	}
+
+
+	private static void runSerially(Runnable[] tasks, int n) {
+		for (int i = 0; i < n; i++) {
+			tasks[i].run();
+		}
+	}
+
+
+	// Whether the thread is running tasks of the current batch, so that a call from it is a nested call
+	private boolean isInBatch(Thread thread) {
+		return thread == caller || thread instanceof Worker;
+	}
+
+
+	// Claim and run tasks until there are none left
+	private void runTasks() {
+		final Runnable[] tasks = this.tasks;
+		final int n = this.taskCount;
+		int i;
+		while ((i = nextTask.getAndIncrement()) < n) {
+			tasks[i].run();
+		}
+	}
+
+
+	private class Worker extends Thread {
+
+		private volatile boolean hasWork = false;
+
+		Worker(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		void wake() {
+			hasWork = true;
+			LockSupport.unpark(this);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+
+				// Spin, then park, until there is work
+				int spins = 0;
+				while (!hasWork) {
+					if (spins < SPIN_ITERATIONS) {
+						spins++;
+						Thread.onSpinWait();
+					} else {
+						LockSupport.park(this);
+					}
+				}
+				hasWork = false;
+
+				try {
+					runTasks();
+				} catch (Throwable e) {
+					failure = e;
+
+					// Stop handing out the remaining tasks of the failed batch
+					nextTask.set(taskCount);
+				}
+
+				if (busyWorkers.decrementAndGet() == 0) {
+					LockSupport.unpark(caller);
+				}
+			}
+		}
+
+	}
+
+
+}
@@ -43,6 +43,17 @@ public class StarBeast3Clock extends BranchRateModel.Base {
     protected double[] branchRates;
     protected double[] storedBranchRates;
     protected boolean needsUpdate;
+    
+    // Species tree rates and gene tree rate used by the last update, so that the next update
+    // only needs to recompute the gene branches which overlap species branches whose rates have changed
+    protected double[] lastSpeciesRates;
+    protected double[] storedLastSpeciesRates;
+    protected double lastGeneTreeRate;
+    protected double storedLastGeneTreeRate;
+    protected boolean[] speciesRateChanged;
+    
+    // Recompute every gene branch at the next update
+    protected boolean fullUpdate;
 
     GTKPrior kernel;
     GTKPointerTree pointer;
@@ -114,6 +125,7 @@ public class StarBeast3Clock extends BranchRateModel.Base {
         branchRates = new double[geneNodeCount];
         storedBranchRates = new double[geneNodeCount];
         needsUpdate = true;
+        fullUpdate = true;
         
         
     }
@@ -154,6 +166,14 @@ public class StarBeast3Clock extends BranchRateModel.Base {
     @Override
     public void store() {
         System.arraycopy(branchRates, 0, storedBranchRates, 0, branchRates.length);
+        if (lastSpeciesRates != null) {
+        	System.arraycopy(lastSpeciesRates, 0, storedLastSpeciesRates, 0, lastSpeciesRates.length);
+        }
+        storedLastGeneTreeRate = lastGeneTreeRate;
+        
+        // The gene tree only keeps track of the nodes modified since its last store, so if an update 
+        // is still pending from before that then those modifications are no longer known
+        if (needsUpdate) fullUpdate = true;
         super.store();
     }
 
@@ -162,32 +182,95 @@ public class StarBeast3Clock extends BranchRateModel.Base {
         double[] tmpRatesArray = branchRates;
         branchRates = storedBranchRates;
         storedBranchRates = tmpRatesArray;
+        
+        tmpRatesArray = lastSpeciesRates;
+        lastSpeciesRates = storedLastSpeciesRates;
+        storedLastSpeciesRates = tmpRatesArray;
+        lastGeneTreeRate = storedLastGeneTreeRate;
         super.restore();
     }
 
+    /**
+     * Recompute the rates of the gene branches which may have changed. The gene tree nodes are not marked dirty here:
+     * the tree likelihood compares the rate times length of every branch with its last value, and only recalculates
+     * the transition probabilities of the branches whose value has changed
+     */
     protected void update() {
     	geneTree = this.getGeneTreePrior();
         final double geneTreeRate = meanRate.getArrayValue();
         final double[] speciesTreeRates = speciesTreeRatesX.getRatesArray();
-        final double[] speciesOccupancy = geneTree.getSpeciesOccupancy();
-
-        final int speciesNodeCount = speciesTreeRates.length;
-        for (int i = 0; i < geneNodeCount - 1; i++) {
-            double weightedSum = 0.0;
-            double branchLength = 0.0;
-            for (int j = 0; j < speciesNodeCount; j++) {
-                // System.out.println(String.format("%d, %d: %f, %f", i, j, speciesTreeRates[j], speciesOccupancy[i * speciesNodeCount + j]));
-                weightedSum += speciesTreeRates[j] * speciesOccupancy[i * speciesNodeCount + j];
-                branchLength += speciesOccupancy[i * speciesNodeCount + j];
-            }
-
-            branchRates[i] = geneTreeRate * weightedSum / branchLength;
+        
+        if (lastSpeciesRates == null || lastSpeciesRates.length != speciesTreeRates.length) {
+        	lastSpeciesRates = new double[speciesTreeRates.length];
+        	storedLastSpeciesRates = new double[speciesTreeRates.length];
+        	speciesRateChanged = new boolean[speciesTreeRates.length];
+        	fullUpdate = true;
         }
+        
+        // A gene tree kernel may swap the gene tree prior, and a new gene tree rate affects every branch
+        final int modifiedCount = geneTree.getModifiedGeneNodeCount();
+        if (this.kernel != null || modifiedCount < 0 || geneTreeRate != lastGeneTreeRate) {
+        	fullUpdate = true;
+        }
+        
+        
+        if (fullUpdate) {
+	        for (int i = 0; i < geneNodeCount - 1; i++) {
+	        	updateBranchRate(i, geneTreeRate, speciesTreeRates);
+	        }
+	        
+        } else {
+        	
+        	// Species branches whose rates have changed
+        	boolean anySpeciesRateChanged = false;
+        	for (int s = 0; s < speciesTreeRates.length; s++) {
+        		speciesRateChanged[s] = speciesTreeRates[s] != lastSpeciesRates[s];
+        		anySpeciesRateChanged |= speciesRateChanged[s];
+        	}
+        	
+        	// Gene branches whose occupancy has changed
+        	for (int m = 0; m < modifiedCount; m++) {
+        		final int i = geneTree.getModifiedGeneNode(m);
+        		if (i < geneNodeCount - 1) updateBranchRate(i, geneTreeRate, speciesTreeRates);
+        	}
+        	
+        	// Gene branches which overlap a species branch whose rate has changed
+        	if (anySpeciesRateChanged) {
+        		for (int i = 0; i < geneNodeCount - 1; i++) {
+        			final int occupancyCount = geneTree.getOccupancyCount(i);
+        			for (int k = 0; k < occupancyCount; k++) {
+        				if (speciesRateChanged[geneTree.getOccupancySpeciesNr(i, k)]) {
+        					updateBranchRate(i, geneTreeRate, speciesTreeRates);
+        					break;
+        				}
+        			}
+        		}
+        	}
+        }
+        
         // set the rate for the root branch of this gene to equal the input mean rate
         branchRates[geneNodeCount - 1] = geneTreeRate;
-
+        
+        System.arraycopy(speciesTreeRates, 0, lastSpeciesRates, 0, speciesTreeRates.length);
+        lastGeneTreeRate = geneTreeRate;
+        fullUpdate = false;
         needsUpdate = false;
     }
+    
+    
+    // Rate of the branch above gene node i, averaged over the species branches it overlaps
+    private void updateBranchRate(int i, double geneTreeRate, double[] speciesTreeRates) {
+    	double weightedSum = 0.0;
+        double branchLength = 0.0;
+        final int occupancyCount = geneTree.getOccupancyCount(i);
+        for (int k = 0; k < occupancyCount; k++) {
+            final double occupancy = geneTree.getOccupancyLength(i, k);
+            weightedSum += speciesTreeRates[geneTree.getOccupancySpeciesNr(i, k)] * occupancy;
+            branchLength += occupancy;
+        }
+        branchRates[i] = geneTreeRate * weightedSum / branchLength;
+    }
+    
 
     @Override
     public double getRateForBranch(Node node) {
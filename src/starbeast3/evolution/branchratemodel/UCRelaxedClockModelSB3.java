@@ -10,8 +10,6 @@ package starbeast3.evolution.branchratemodel;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.ExponentialDistribution;
 import org.apache.commons.math.distribution.ExponentialDistributionImpl;
-import org.apache.commons.math.distribution.NormalDistribution;
-import org.apache.commons.math.distribution.NormalDistributionImpl;
 
 import beast.base.core.Input;
 import beast.base.core.Log;
@@ -24,6 +22,7 @@ import beast.base.inference.StateNode;
 import beast.base.inference.distribution.ParametricDistribution;
 import beast.base.util.Randomizer;
 import orc.consoperators.PiecewiseLinearDistribution;
+import starbeast3.math.distributions.InverseCDFLookup;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 
 public class UCRelaxedClockModelSB3 extends BranchRateModel.Base implements BranchRateModelSB3 {
@@ -62,6 +61,9 @@ public class UCRelaxedClockModelSB3 extends BranchRateModel.Base implements Bran
     private double storedLogNormalStdev;
     private double[] binRates;
     private double[] storedBinRates;
+    
+    // Standard normal quantiles of the lognormal bins, which do not depend on the stdev
+    private double[] standardNormalBinQuantiles;
     private double[] ratesArray;
     private double[] storedRatesArray;
 
@@ -372,20 +374,12 @@ public class UCRelaxedClockModelSB3 extends BranchRateModel.Base implements Bran
              			if (binRatesNeedsUpdate || noCache) {
              	            // set the mean in real space to equal 1
              	            currentLogNormalStdev = stdevInput.get().getValue();
-             	            
-             	            // Mean in log space
-             	            final double M = Math.log(MEAN_CLOCK_RATE) - (0.5 * currentLogNormalStdev * currentLogNormalStdev);
-             	            final NormalDistribution normalDistr = new NormalDistributionImpl(M, currentLogNormalStdev);
-
-             	            try {
-             	                for (int i = 0; i < nBins; i++) {
-             	                	
-             	                	// Discrete LogNormal distributed rates
-             	                    binRates[i] = Math.exp(normalDistr.inverseCumulativeProbability((i + 0.5) / nBins));
-             	                }
-             	            } catch (MathException e) {
-             	                throw new RuntimeException("Failed to compute inverse cumulative probability!");
+             	            if (standardNormalBinQuantiles == null || standardNormalBinQuantiles.length != nBins) {
+             	            	standardNormalBinQuantiles = InverseCDFLookup.getStandardNormalBinQuantiles(nBins);
              	            }
+             	            
+             	            // Discrete LogNormal distributed rates
+             	            InverseCDFLookup.getLogNormalBinRates(standardNormalBinQuantiles, MEAN_CLOCK_RATE, currentLogNormalStdev, binRates);
              	        }
              			
              			break;
@@ -406,47 +400,17 @@ public class UCRelaxedClockModelSB3 extends BranchRateModel.Base implements Bran
 	        // Update quantiles using a linear approximation (but only the quantiles which are being used)
 	        case quantiles: {
 	        	
-	        	for (int i = 0; i < binRates.length; i++) {
-                    binRates[i] = 0;
-                }
+	        	// The cached lattice is only stale if the distribution has changed
+	        	if (binRatesNeedsUpdate || noCache) {
+		        	for (int i = 0; i < binRates.length; i++) {
+	                    binRates[i] = 0;
+	                }
+	        	}
 	        	
 	        	for (int nodeNumber = 0; nodeNumber < nEstimatedRates; nodeNumber++) {
 					
-				    // Use cached rates
-				    double q = quantiles.getValue(nodeNumber);
-				    double v = q * (binRates.length - 1);
-				    int i = (int) v;
-				    
-				    // Make sure cached rates are calculated
-				    if (binRates[i] == 0.0) {
-				        try {
-				        	if (i > 0) {
-				        		binRates[i] = quantileDistribution.inverseCumulativeProbability(((double)i) / (binRates.length-1));
-				        	} else {
-				        		binRates[i] = quantileDistribution.inverseCumulativeProbability(0.1 / (binRates.length-1));
-				        	}
-				        } catch (MathException e) {
-				            throw new RuntimeException("Failed to compute inverse cumulative probability!");
-				        }
-				    }
-				    if (i < binRates.length - 1 && binRates[i + 1] == 0.0) {
-				        try {
-				        	if (i < binRates.length - 2) {
-				        		binRates[i + 1] = quantileDistribution.inverseCumulativeProbability(((double)(i + 1)) / (binRates.length-1));
-				        	} else {
-				        		binRates[i + 1] = quantileDistribution.inverseCumulativeProbability((binRates.length - 1 - 0.1) / (binRates.length-1));
-				        	}
-				        } catch (MathException e) {
-				            throw new RuntimeException("Failed to compute inverse cumulative probability!");
-				        }
-				    }
-				    
-				    // Calculate piecewise linear approximation
-				    double r = binRates[i];
-				    if (i < binRates.length - 1) {
-				    	r += (binRates[i+1] - binRates[i]) * (v - i);
-				    }
-				    //System.out.println(nodeNumber + ": q = " + q + " rate = " + r);
+				    // Calculate piecewise linear approximation, using cached rates where possible
+				    double r = InverseCDFLookup.getInterpolatedRate(quantileDistribution, quantiles.getValue(nodeNumber), binRates);
 				    ratesArray[nodeNumber] = r;
 				    
 				}
@@ -0,0 +1,129 @@
+package starbeast3.evolution.speciation;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.CalculationNode;
+
+
+
+@Description("Sufficient statistics of the constant population multispecies coalescent, summed across loci for each species tree branch. "
+		+ "Only the loci whose gene tree or species tree has changed are gathered again, and their change is added to the branch sums, "
+		+ "so population size moves and analytical integration over population sizes cost O(branches) instead of O(branches x loci). "
+		+ "Loci are checked against the tree versions of their distributions whenever the statistics are read, so this "
+		+ "does not need to be in the posterior. If it is, a rejected proposal restores the statistics without gathering again.")
+public class CoalescentStatistics extends CalculationNode {
+
+
+	final public Input<List<GeneTreeForSpeciesTreeDistribution>> genesInput = new Input<>("gene", "gene tree for species tree distribution for each of the genes", new ArrayList<>(), Validate.REQUIRED);
+
+
+	private List<GeneTreeForSpeciesTreeDistribution> genes;
+	private MultiLocusCoalescent coalescent;
+
+
+	@Override
+	public void initAndValidate() {
+		genes = genesInput.get();
+		if (genes.size() == 0) {
+			throw new IllegalArgumentException("CoalescentStatistics: Please provide at least one gene tree");
+		}
+		coalescent = new MultiLocusCoalescent(genes.get(0).speciesTreeInput.get().getNodeCount());
+	}
+
+
+	/**
+	 * @return The statistics, brought up to date with the gene trees and species tree.
+	 * Callers that read several branches should read them from this, so that the loci are only checked once
+	 */
+	public MultiLocusCoalescent getCoalescent() {
+		synchronized (this) {
+			coalescent.gatherModified(genes);
+		}
+		return coalescent;
+	}
+
+
+	@Override
+	public boolean requiresRecalculation() {
+		return true;
+	}
+
+
+	/* The chains of ParallelMCMCTreeOperator reach this through the gene tree distributions of their loci, so they store and restore it
+	 * from several threads at once. Each store and restore is kept whole, so that every locus stays consistent with its tree version,
+	 * and the loci changed by the chains are gathered again when the statistics are next read
+	 */
+	@Override
+	public void store() {
+		synchronized (this) {
+			coalescent.store();
+		}
+		super.store();
+	}
+
+
+	@Override
+	public void restore() {
+		synchronized (this) {
+			coalescent.restore();
+		}
+		super.restore();
+	}
+
+
+	/**
+	 * Log density of all loci on this branch, under a constant population size.
+	 * This is the sum of ConstantPopulations.calculateBranchLogP across loci
+	 * @param branch
+	 * @param popSize
+	 * @return
+	 */
+	public double calculateBranchLogP(int branch, double popSize) {
+		return getCoalescent().calculateBranchLogP(branch, popSize);
+	}
+
+
+	// Total number of coalescent events on this branch, across loci
+	public int getCoalescentCount(int branch) {
+		return getCoalescent().getCoalescentCount(branch);
+	}
+
+	// Sum across loci of k_jb log(ploidy_j) on this branch
+	public double getLogPloidySum(int branch) {
+		return getCoalescent().getLogPloidySum(branch);
+	}
+
+	// Sum across loci of the population size independent part of the branch log density (see calculatePartialLogPBranch)
+	public double getPartialLogP(int branch) {
+		return getCoalescent().getPartialLogP(branch);
+	}
+
+	// Sum across loci of the lineage pair weighted interval lengths, divided by ploidy. This is the rate of the inverse gamma posterior of the population size
+	public double getPloidyWeightedIntervalSum(int branch) {
+		return getCoalescent().getPloidyWeightedIntervalSum(branch);
+	}
+
+	// Whether these are the gene tree distributions whose statistics are kept
+	public boolean hasGenes(List<GeneTreeForSpeciesTreeDistribution> geneList) {
+		if (geneList.size() != genes.size()) return false;
+		for (int j = 0; j < genes.size(); j++) {
+			if (geneList.get(j) != genes.get(j)) return false;
+		}
+		return true;
+	}
+
+	public int getLocusCount() {
+		return genes.size();
+	}
+
+	public int getSpeciesNodeCount() {
+		return coalescent.getSpeciesNodeCount();
+	}
+
+
+}
@@ -52,14 +52,23 @@ public class ConstantPopulations extends CalculationNode implements PopulationMo
      */
     @Override
     public double calculateBranchLogP(final int lineagesBottom, final double ploidy, final double popSize2, final double[] times, final int k) {
-    	
+    	return calculateBranchLogP(lineagesBottom, ploidy, popSize2, times[0], times, 1, k, times[k + 1]);
+    }
+    
+    
+    @Override
+    public double calculateBranchLogP(final int lineagesBottom, final double ploidy, final double popSize2, 
+    		final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
     	
     	double logPBranch = 0.0;
         final double popSize = popSize2 * ploidy;
         logPBranch += -k * Math.log(popSize);
+        double lastTime = branchBottom;
         for (int i = 0; i <= k; i++) {
         	if (lineagesBottom - k <= 1 && i == k) break;
-        	logPBranch += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (times[i + 1] - times[i]) / popSize;
+        	final double time = i < k ? coalescentTimes[offset + i] : branchTop;
+        	logPBranch += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (time - lastTime) / popSize;
+        	lastTime = time;
         }
         return logPBranch;
     }
@@ -67,9 +76,26 @@ public class ConstantPopulations extends CalculationNode implements PopulationMo
     
 	@Override
 	public double calculatePartialLogPBranch(int lineagesBottom, double[] times, int k) {
+		return calculatePartialLogPBranch(lineagesBottom, times[0], times, 1, k, times[k + 1]);
+	}
+	
+	
+	@Override
+	public double calculatePartialLogPBranch(final int lineagesBottom, 
+			final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+		return partialLogPBranch(lineagesBottom, branchBottom, coalescentTimes, offset, k, branchTop);
+	}
+	
+	
+	// The population size independent part of the branch log density of a constant population, shared with IntegratedPopulations
+	static double partialLogPBranch(final int lineagesBottom, 
+			final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
 		double partialLogP = 0.0;
+		double lastTime = branchBottom;
         for (int i = 0; i <= k; i++) {
-        	partialLogP += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (times[i + 1] - times[i]);
+        	final double time = i < k ? coalescentTimes[offset + i] : branchTop;
+        	partialLogP += -((lineagesBottom - i) * (lineagesBottom - i - 1.0) / 2.0) * (time - lastTime);
+        	lastTime = time;
         }
         return partialLogP;
 	}
@@ -18,6 +18,7 @@ import beast.base.core.Input.Validate;
 import beast.base.core.Log;
 import beast.base.inference.State;
 import beast.base.inference.parameter.RealParameter;
+import beast.base.inference.util.InputUtil;
 import beastfx.app.beauti.Beauti;
 import beast.base.evolution.alignment.Taxon;
 import beast.base.evolution.alignment.TaxonSet;
@@ -56,6 +57,9 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     
     final public Input<TaxonSet> taxonSetInput = new Input<>("taxonset", "set of taxa mapping lineages to species");
     
+    final public Input<Boolean> incrementalInput = new Input<>("incremental", "flag to indicate the gene tree to species tree mapping should only "
+    		+ "be recomputed for lineages affected by a change to the gene tree (default true)", true);
+    
     
     private SpeciesTree speciesTree;
     
@@ -103,13 +107,19 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 
     
     
-    protected double[] speciesOccupancy; // A [1D] matrix describing the length of overlap between each gene tree node's 
-    									 // branch with each species tree node's branch
+    // Sparse species occupancy. Each gene tree node's branch spans a short path of species tree branches, which is 
+    // stored bottom up in a block of occupancyBlocksize entries per gene tree node, along with the length of overlap 
+    // between the gene tree branch and each of those species tree branches
+    protected int[] occupancySpeciesNrs;
+    protected int[] storedOccupancySpeciesNrs;
+    protected double[] occupancyLengths;
+    protected double[] storedOccupancyLengths;
+    protected int[] occupancyCounts; // the number of species tree branches spanned by each gene tree branch
+    protected int[] storedOccupancyCounts;
+    private int occupancyBlocksize = DELTA_BLOCK_SIZE; // grows with the depth of the species tree
+    
     protected int[] geneNodeSpeciesAssignment;
     protected int[] storedGeneNodeSpeciesAssignment;
-    protected boolean[] speciesTreeNodeGeneNodeAssignment;
-    protected boolean[] storedSpeciesTreeNodeGeneNodeAssignment;
-    protected double[] storedSpeciesOccupancy;
     protected boolean geneTreeCompatible;
     protected boolean storedGeneTreeCompatible;
     
@@ -134,6 +144,50 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     // For sampling a gene tree
     private int currentGeneTreeNodeNumber;
     
+    
+    // Gene and species tree at the time of the last mapping, so that the mapping can be patched incrementally
+    private boolean incremental;
+    protected int[] geneNodeParentNr;
+    protected int[] storedGeneNodeParentNr;
+    protected double[] geneNodeHeight;
+    protected double[] storedGeneNodeHeight;
+    protected int[] speciesNodeParentNr;
+    protected int[] storedSpeciesNodeParentNr;
+    protected double[] speciesNodeHeight;
+    protected double[] storedSpeciesNodeHeight;
+    protected boolean mappingIsValid;
+    protected boolean storedMappingIsValid;
+    
+    // Work space for incremental updates
+    private boolean[] isRewalkNode;
+    private boolean[] isRewalkBranch;
+    private int[] rewalkNodes;
+    private int[] rewalkBranches;
+    private int rewalkNodeCount;
+    private int rewalkBranchCount;
+    
+    
+    // Species tree branches and gene tree nodes modified since the last store. The stored and current 
+    // arrays only differ in these ranges, so store() only needs to copy them
+    private boolean everythingModified;
+    private boolean[] isModifiedSpeciesBranch;
+    private boolean[] isModifiedGeneNode;
+    private int[] modifiedSpeciesBranches;
+    private int[] modifiedGeneNodes;
+    private int modifiedSpeciesBranchCount;
+    private int modifiedGeneNodeCount;
+    
+    // Identifies the state of the gene tree and species tree, so that statistics cached outside this distribution
+    // (eg. by MultiLocusCoalescent or CoalescentStatistics) can tell whether they are stale. A new version is taken
+    // whenever either tree may have changed, and restore returns to the stored version
+    private long treeVersion;
+    private long storedTreeVersion;
+    private long treeVersionCount;
+    
+    // As above, but only for the gene tree (eg. for NodeReheight2, whose bounds do not depend on the species tree)
+    private long geneTreeVersion;
+    private long storedGeneTreeVersion;
+    
 
     
     
@@ -161,6 +215,7 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     	logP = 0.0;
     	clockuptodate = false;
     	popModel = popModelInput.get();
+    	incremental = incrementalInput.get();
 
     	
     	// Coerce to SpeciesTree if it is not already (this enables user to parse TreeParser)
@@ -235,9 +290,6 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
         storedGeneNodeSpeciesAssignment = new int[geneTreeNodeCount];
         
         
-        speciesTreeNodeGeneNodeAssignment = new boolean[speciesNodeCount * geneTreeNodeCount];
-        storedSpeciesTreeNodeGeneNodeAssignment = new boolean[speciesNodeCount * geneTreeNodeCount];
-        
       
         // Generate map of species tree tip node names to node numbers
         final Map<String, Integer> tipNumberMap = speciesTree.getTipNumberMap();
@@ -265,8 +317,12 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
         
         
         // Allocate memory for species occupancies
-        speciesOccupancy = new double[geneTreeNodeCount * speciesNodeCount];
-        storedSpeciesOccupancy = new double[geneTreeNodeCount * speciesNodeCount];
+        occupancySpeciesNrs = new int[geneTreeNodeCount * occupancyBlocksize];
+        storedOccupancySpeciesNrs = new int[geneTreeNodeCount * occupancyBlocksize];
+        occupancyLengths = new double[geneTreeNodeCount * occupancyBlocksize];
+        storedOccupancyLengths = new double[geneTreeNodeCount * occupancyBlocksize];
+        occupancyCounts = new int[geneTreeNodeCount];
+        storedOccupancyCounts = new int[geneTreeNodeCount];
         
         
         // Allocate memory for per-species-tree-branch probabilities
@@ -276,6 +332,28 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
         speciesBranchIsDirty = new boolean[speciesNodeCount];
         Arrays.fill(speciesBranchIsDirty, true);
         
+        
+        // Allocate memory for incremental updates of the mapping
+        geneNodeParentNr = new int[geneTreeNodeCount];
+        storedGeneNodeParentNr = new int[geneTreeNodeCount];
+        geneNodeHeight = new double[geneTreeNodeCount];
+        storedGeneNodeHeight = new double[geneTreeNodeCount];
+        speciesNodeParentNr = new int[speciesNodeCount];
+        storedSpeciesNodeParentNr = new int[speciesNodeCount];
+        speciesNodeHeight = new double[speciesNodeCount];
+        storedSpeciesNodeHeight = new double[speciesNodeCount];
+        isRewalkNode = new boolean[geneTreeNodeCount];
+        isRewalkBranch = new boolean[geneTreeNodeCount];
+        rewalkNodes = new int[geneTreeNodeCount];
+        rewalkBranches = new int[geneTreeNodeCount];
+        mappingIsValid = false;
+        storedMappingIsValid = false;
+        
+        isModifiedSpeciesBranch = new boolean[speciesNodeCount];
+        isModifiedGeneNode = new boolean[geneTreeNodeCount];
+        modifiedSpeciesBranches = new int[speciesNodeCount];
+        modifiedGeneNodes = new int[geneTreeNodeCount];
+        everythingModified = true;
 
         
         leafCoalescentLineageCounts = new int[speciesNodeCount];
@@ -337,22 +415,20 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     // Returns an array of gene tree nodes which map to this species tree node
     public Node[] mapSpeciesNodeToGeneTreeNodes(Node species) {
     	
-    	int speciesStartIndex = geneTreeNodeCount * species.getNr();
-    	int speciesEndIndex = geneTreeNodeCount * (species.getNr()+1);
+    	final int speciesNodeNr = species.getNr();
     	
     	// Find how many nodes are mapped to this species node
     	int numMapped = 0;
-    	for (int i = speciesStartIndex; i < speciesEndIndex; i ++) {
-    		if (speciesTreeNodeGeneNodeAssignment[i]) numMapped++;
+    	for (int i = 0; i < geneTreeNodeCount; i ++) {
+    		if (geneNodeSpeciesAssignment[i] == speciesNodeNr) numMapped++;
     	}
     	
     	// Return an array of that length with the gene nodes stored in it
     	Node[] mappedNodes = new Node[numMapped];
     	int j = 0;
-    	for (int i = speciesStartIndex; i < speciesEndIndex; i ++) {
-    		if (speciesTreeNodeGeneNodeAssignment[i]) {
-    			int geneNodeNr = i % geneTreeNodeCount;
-    			mappedNodes[j] = treeInput.get().getNode(geneNodeNr);
+    	for (int i = 0; i < geneTreeNodeCount; i ++) {
+    		if (geneNodeSpeciesAssignment[i] == speciesNodeNr) {
+    			mappedNodes[j] = treeInput.get().getNode(i);
     			j++;
     		}
     	}
@@ -372,9 +448,9 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     	List<Node> speciesNodes = new ArrayList<>();
     	
     	if (!clockuptodate) update();
-    	for (int j = 0; j < speciesNodeCount; j++) {
-    		if (speciesOccupancy[geneNodeNr * speciesNodeCount + j] > 0) {
-    			speciesNodes.add(speciesTree.getNode(j));
+    	for (int k = geneNodeNr * occupancyBlocksize; k < geneNodeNr * occupancyBlocksize + occupancyCounts[geneNodeNr]; k++) {
+    		if (occupancyLengths[k] > 0) {
+    			speciesNodes.add(speciesTree.getNode(occupancySpeciesNrs[k]));
     		}
     	}
     	
@@ -418,7 +494,7 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
         
         // Root contribution
         int speciesNodeWithGeneTreeRoot = geneNodeSpeciesAssignment[treeInput.get().getRoot().getNr()];
-        logP = popModel.getRootBranchLogP(treeInput.get().getRoot().getHeight(), popSizesBottom.getValue(speciesNodeWithGeneTreeRoot), 
+        logP = popModel.getRootBranchLogP(treeInput.get().getRoot().getHeight(), getPopSize(speciesNodeWithGeneTreeRoot), 
         									treeInput.get().getLeafNodeCount());
         
         
@@ -429,9 +505,13 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
             if (isDirtyBranch(speciesNodeI) || popModel.isDirtyBranch(speciesNode)) {
                 final int lineagesBottom = nrOfLineages[speciesNodeI];
                 final int k = coalescentCounts[speciesNodeI];
-                final double[] branchCoalescentTimes = getCoalescentTimes(speciesNodeI);
                 
-                perBranchLogP[speciesNodeI] = popModel.calculateBranchLogP(lineagesBottom, ploidy, popSizesBottom.getValue(speciesNodeI), branchCoalescentTimes, k); 
+                perBranchLogP[speciesNodeI] = popModel.calculateBranchLogP(lineagesBottom, ploidy, getPopSize(speciesNodeI), 
+                		getBranchBottomHeight(speciesNodeI), coalescentTimes, speciesNodeI * blocksize, k, getBranchTopHeight(speciesNodeI)); 
+                markSpeciesBranchModified(speciesNodeI);
+                
+                // incremental updates accumulate dirty branches until they are recalculated
+                speciesBranchIsDirty[speciesNodeI] = false;
             }
 
             // System.out.println(String.format("%s-%d: %f", getID(), nodeI, logP));
@@ -446,6 +526,25 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     }
     
     
+    /**
+     * Set the density of the current state, when it is already known (eg. from the density cache of GTKPrior), so that
+     * getCurrentLogP is that of the current state. The mapping and per-branch densities are not updated, so they may still
+     * be those of an earlier state: branches which have changed stay marked for the next calculation, and getTimes
+     * calculates again before returning coalescent times
+     * @param logP
+     */
+    public void setCurrentLogP(double logP) {
+    	this.logP = logP;
+    	logPuptodate = false;
+    }
+    
+    
+    // Population size of species branch i, or NaN if the population sizes are not in the state (with IntegratedPopulations)
+    private double getPopSize(int i) {
+    	return popSizesBottom == null ? Double.NaN : popSizesBottom.getValue(i);
+    }
+    
+    
     // Calculates the prior density contribution from this branches lineage history (without using the population size)
     public double calculatePartialLogPBranch(Node speciesNode) {
     	
@@ -453,10 +552,11 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     	update();
     	
     	final int lineagesBottom = nrOfLineages[speciesNode.getNr()];
-        final int k = coalescentCounts[speciesNode.getNr()];
-        final double[] branchCoalescentTimes = getCoalescentTimes(speciesNode.getNr());
+    	final int speciesNodeNr = speciesNode.getNr();
+        final int k = coalescentCounts[speciesNodeNr];
         
-        return popModel.calculatePartialLogPBranch(lineagesBottom, branchCoalescentTimes, k);
+        return popModel.calculatePartialLogPBranch(lineagesBottom, getBranchBottomHeight(speciesNodeNr), 
+        		coalescentTimes, speciesNodeNr * blocksize, k, getBranchTopHeight(speciesNodeNr));
     	
     }
     
@@ -478,33 +578,107 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     @Override
     public void store() {
     	super.store();
+    	storedTreeVersion = treeVersion;
+    	storedGeneTreeVersion = geneTreeVersion;
     	
+    	if (everythingModified || 
+    			modifiedSpeciesBranchCount > speciesNodeCount / 2 || modifiedGeneNodeCount > geneTreeNodeCount / 2) {
+    		storeEverything();
+    	} else {
+    		storeModified();
+    	}
     	
+        storedGeneTreeCompatible = geneTreeCompatible;
+        storedMaxCoalescentCounts = maxCoalescentCounts;
+        storedMappingIsValid = mappingIsValid;
+        
+        clearModifiedFlags();
+        
+    }
+    
+    
+    private void storeEverything() {
       
         System.arraycopy(coalescentCounts, 0, storedCoalescentCounts, 0, coalescentCounts.length);
         System.arraycopy(coalescentTimes, 0, storedCoalescentTimes, 0, coalescentTimesLength);
         System.arraycopy(nrOfLineages, 0, nrOfLineagesStored, 0, nrOfLineages.length);
 
         System.arraycopy(geneNodeSpeciesAssignment, 0, storedGeneNodeSpeciesAssignment, 0, geneNodeSpeciesAssignment.length);
-        System.arraycopy(speciesTreeNodeGeneNodeAssignment, 0, storedSpeciesTreeNodeGeneNodeAssignment, 0, speciesTreeNodeGeneNodeAssignment.length);
         
         
         
-        System.arraycopy(speciesOccupancy, 0, storedSpeciesOccupancy, 0, speciesOccupancy.length);
+        System.arraycopy(occupancySpeciesNrs, 0, storedOccupancySpeciesNrs, 0, occupancySpeciesNrs.length);
+        System.arraycopy(occupancyLengths, 0, storedOccupancyLengths, 0, occupancyLengths.length);
+        System.arraycopy(occupancyCounts, 0, storedOccupancyCounts, 0, occupancyCounts.length);
 
         System.arraycopy(perBranchLogP, 0, storedPerBranchLogP, 0, perBranchLogP.length);
         
-        storedGeneTreeCompatible = geneTreeCompatible;
-        storedMaxCoalescentCounts = maxCoalescentCounts;
+        System.arraycopy(geneNodeParentNr, 0, storedGeneNodeParentNr, 0, geneNodeParentNr.length);
+        System.arraycopy(geneNodeHeight, 0, storedGeneNodeHeight, 0, geneNodeHeight.length);
+        System.arraycopy(speciesNodeParentNr, 0, storedSpeciesNodeParentNr, 0, speciesNodeParentNr.length);
+        System.arraycopy(speciesNodeHeight, 0, storedSpeciesNodeHeight, 0, speciesNodeHeight.length);
         
     }
     
+    
+    // Copies only the species branch and gene node ranges which were modified since the last store
+    private void storeModified() {
+    	
+    	for (int m = 0; m < modifiedSpeciesBranchCount; m++) {
+    		final int i = modifiedSpeciesBranches[m];
+    		storedCoalescentCounts[i] = coalescentCounts[i];
+    		System.arraycopy(coalescentTimes, i * blocksize, storedCoalescentTimes, i * blocksize, blocksize);
+    		nrOfLineagesStored[i] = nrOfLineages[i];
+    		storedPerBranchLogP[i] = perBranchLogP[i];
+    	}
+    	
+    	for (int m = 0; m < modifiedGeneNodeCount; m++) {
+    		final int i = modifiedGeneNodes[m];
+    		storedGeneNodeSpeciesAssignment[i] = geneNodeSpeciesAssignment[i];
+    		System.arraycopy(occupancySpeciesNrs, i * occupancyBlocksize, storedOccupancySpeciesNrs, i * occupancyBlocksize, occupancyCounts[i]);
+    		System.arraycopy(occupancyLengths, i * occupancyBlocksize, storedOccupancyLengths, i * occupancyBlocksize, occupancyCounts[i]);
+    		storedOccupancyCounts[i] = occupancyCounts[i];
+    		storedGeneNodeParentNr[i] = geneNodeParentNr[i];
+    		storedGeneNodeHeight[i] = geneNodeHeight[i];
+    	}
+    	
+    }
+    
+    
+    private void markSpeciesBranchModified(int speciesNodeNr) {
+    	if (!isModifiedSpeciesBranch[speciesNodeNr]) {
+    		isModifiedSpeciesBranch[speciesNodeNr] = true;
+    		modifiedSpeciesBranches[modifiedSpeciesBranchCount++] = speciesNodeNr;
+    	}
+    }
+    
+    private void markGeneNodeModified(int geneNodeNr) {
+    	if (!isModifiedGeneNode[geneNodeNr]) {
+    		isModifiedGeneNode[geneNodeNr] = true;
+    		modifiedGeneNodes[modifiedGeneNodeCount++] = geneNodeNr;
+    	}
+    }
+    
+    private void clearModifiedFlags() {
+    	for (int m = 0; m < modifiedSpeciesBranchCount; m++) {
+    		isModifiedSpeciesBranch[modifiedSpeciesBranches[m]] = false;
+    	}
+    	for (int m = 0; m < modifiedGeneNodeCount; m++) {
+    		isModifiedGeneNode[modifiedGeneNodes[m]] = false;
+    	}
+    	modifiedSpeciesBranchCount = 0;
+    	modifiedGeneNodeCount = 0;
+    	everythingModified = false;
+    }
+    
   
 
 
     @Override
     public void restore() {
     	logPuptodate = false;
+    	treeVersion = storedTreeVersion;
+    	geneTreeVersion = storedGeneTreeVersion;
     	super.restore();
     	
     	
@@ -513,30 +687,51 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     	int[] tmpCoalescentCounts = coalescentCounts;
     	int[] tmpCoalescentLineageCounts = nrOfLineages;
     	int[] tmpGeneNodeSpeciesAssignment = geneNodeSpeciesAssignment;
-    	boolean[] tmpSpeciesTreeNodeGeneNodeAssignment = speciesTreeNodeGeneNodeAssignment;
-    	double[] tmpSpeciesOccupancy = speciesOccupancy;
+    	int[] tmpOccupancySpeciesNrs = occupancySpeciesNrs;
+    	double[] tmpOccupancyLengths = occupancyLengths;
+    	int[] tmpOccupancyCounts = occupancyCounts;
     	double[] tmpPerBranchLogP = perBranchLogP;
     	boolean tmpGeneTreeCompatible = geneTreeCompatible;
 
     	coalescentTimes = storedCoalescentTimes;
     	coalescentCounts = storedCoalescentCounts;
     	nrOfLineages = nrOfLineagesStored;
-    	speciesOccupancy = storedSpeciesOccupancy;
+    	occupancySpeciesNrs = storedOccupancySpeciesNrs;
+    	occupancyLengths = storedOccupancyLengths;
+    	occupancyCounts = storedOccupancyCounts;
     	geneNodeSpeciesAssignment = storedGeneNodeSpeciesAssignment;
-    	speciesTreeNodeGeneNodeAssignment = storedSpeciesTreeNodeGeneNodeAssignment;
     	perBranchLogP = storedPerBranchLogP;
     	geneTreeCompatible = storedGeneTreeCompatible;
 
     	storedCoalescentTimes = tmpCoalescentTimes;
     	storedCoalescentCounts = tmpCoalescentCounts;
     	nrOfLineagesStored = tmpCoalescentLineageCounts;
-    	storedSpeciesOccupancy = tmpSpeciesOccupancy;
+    	storedOccupancySpeciesNrs = tmpOccupancySpeciesNrs;
+    	storedOccupancyLengths = tmpOccupancyLengths;
+    	storedOccupancyCounts = tmpOccupancyCounts;
     	storedGeneNodeSpeciesAssignment = tmpGeneNodeSpeciesAssignment;
-    	storedSpeciesTreeNodeGeneNodeAssignment = tmpSpeciesTreeNodeGeneNodeAssignment;
     	storedPerBranchLogP = tmpPerBranchLogP;
     	storedGeneTreeCompatible = tmpGeneTreeCompatible;
 
     	maxCoalescentCounts = storedMaxCoalescentCounts;
+    	
+    	int[] tmpGeneNodeParentNr = geneNodeParentNr;
+    	double[] tmpGeneNodeHeight = geneNodeHeight;
+    	int[] tmpSpeciesNodeParentNr = speciesNodeParentNr;
+    	double[] tmpSpeciesNodeHeight = speciesNodeHeight;
+    	
+    	geneNodeParentNr = storedGeneNodeParentNr;
+    	geneNodeHeight = storedGeneNodeHeight;
+    	speciesNodeParentNr = storedSpeciesNodeParentNr;
+    	speciesNodeHeight = storedSpeciesNodeHeight;
+    	
+    	storedGeneNodeParentNr = tmpGeneNodeParentNr;
+    	storedGeneNodeHeight = tmpGeneNodeHeight;
+    	storedSpeciesNodeParentNr = tmpSpeciesNodeParentNr;
+    	storedSpeciesNodeHeight = tmpSpeciesNodeHeight;
+    	mappingIsValid = storedMappingIsValid;
+    	
+    	// The modified flags are kept: the swapped arrays differ in exactly the ranges modified since the last store
 		
     	
     	
@@ -547,6 +742,12 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     public boolean requiresRecalculation() {
     	clockuptodate = false;
     	logPuptodate = false;
+    	if (InputUtil.isDirty(treeInput)) {
+    		treeVersion = ++treeVersionCount;
+    		geneTreeVersion = treeVersion;
+    	} else if (InputUtil.isDirty(speciesTreeInput)) {
+    		treeVersion = ++treeVersionCount;
+    	}
         return true;
     }
     
@@ -573,12 +774,10 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 		return nrOfLineages[i];
 	}
 
-    // number of coalescent events in branch i
+    // number of coalescent events in branch i. Only the mapping is brought up to date, not the density
 	public int getCoalescentCount(int i) {
-		if (!logPuptodate) {
-			calculateLogP();			
-		}
-		return getCoalescentTimes(i).length - 2;
+		if (!clockuptodate) update();
+		return coalescentCounts[i];
 	}
 	
 	public double [] getTimes(int i) {
@@ -593,9 +792,49 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 	}
 
 	
-    public double[] getSpeciesOccupancy() {
+    /**
+     * Number of species tree branches spanned by the branch above this gene tree node. 
+     * The mapping is brought up to date, so this should be called before getOccupancySpeciesNr and getOccupancyLength
+     */
+    public int getOccupancyCount(int geneNodeNr) {
         if (!clockuptodate) update();
-		return speciesOccupancy;
+		return occupancyCounts[geneNodeNr];
+    }
+    
+    // Node number of the k-th species tree branch (counting from the bottom) spanned by the branch above this gene tree node
+    public int getOccupancySpeciesNr(int geneNodeNr, int k) {
+    	return occupancySpeciesNrs[geneNodeNr * occupancyBlocksize + k];
+    }
+    
+    // Length of overlap between the branch above this gene tree node and the k-th species tree branch it spans
+    public double getOccupancyLength(int geneNodeNr, int k) {
+    	return occupancyLengths[geneNodeNr * occupancyBlocksize + k];
+    }
+    
+    
+    /**
+     * Number of gene tree nodes whose occupancy has changed since the last store, or -1 if the whole mapping
+     * was recomputed. The mapping is brought up to date, so this should be called before getModifiedGeneNode
+     */
+    public int getModifiedGeneNodeCount() {
+    	if (!clockuptodate) update();
+    	return everythingModified ? -1 : modifiedGeneNodeCount;
+    }
+    
+    // The m-th gene tree node whose occupancy has changed since the last store
+    public int getModifiedGeneNode(int m) {
+    	return modifiedGeneNodes[m];
+    }
+
+
+    // Changes whenever the gene tree or species tree may have changed, and is restored along with them
+    public long getTreeVersion() {
+    	return treeVersion;
+    }
+    
+    // Changes whenever the gene tree may have changed, and is restored along with it
+    public long getGeneTreeVersion() {
+    	return geneTreeVersion;
     }
 
 
@@ -608,6 +847,7 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 				updateCount++;
 
 				// shrink memory reservation for coalescent times?
+				boolean blocksizeChanged = false;
 				if (! stopPopping &&  (updateCount & 0x7fff) == 0 && maxCoalescentCounts < blocksize - 4) {
 					// ensure stored coalescent times are valid, so that a restore gives proper times
 	            	double [] stmp = new double[speciesNodeCount * (blocksize - 4) + geneTreeNodeCount];
@@ -618,18 +858,29 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 	            	
 					blocksize -= 4;
 	            	coalescentTimesLength = speciesNodeCount * blocksize;
+	            	blocksizeChanged = true;
 	            	// System.err.print("pop");
 				}
+				
+				
+				// Patch the mapping if only a few gene tree lineages have changed since the last mapping
+				if (incremental && mappingIsValid && !blocksizeChanged) {
+					if (updateIncremental()) {
+						geneTreeCompatible = true;
+						clockuptodate = true;
+						return;
+					}
+				}
+				mappingIsValid = false;
+				everythingModified = true;
 	
-		        Arrays.fill(speciesOccupancy, 0);
+		        ensureOccupancyCapacity();
+		        Arrays.fill(occupancyCounts, 0);
 		        
 		        // reset arrays as these values need to be recomputed after any changes to the species or gene tree
 		        //Arrays.fill(geneNodeSpeciesAssignment, -1); // -1 means no species assignment for that gene tree node has been made yet
 		        System.arraycopy(nrOfLineageToSpeciesMap, 0, geneNodeSpeciesAssignment, 0, geneTreeNodeCount);
 		        
-		        for (int i = 0; i < speciesTreeNodeGeneNodeAssignment.length; i ++) {
-		        	speciesTreeNodeGeneNodeAssignment[i] = false;
-		        }
 		      
 		
 		        
@@ -664,15 +915,6 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 		        }
 		        
 		        
-		        // Reverse map the geneToSpecies map into the speciesToGene map
-		        for (int geneTreeNodeNr = 0; geneTreeNodeNr < geneTreeNodeCount; geneTreeNodeNr++) {
-		        	final int speciesNodeNrMappedTo = geneNodeSpeciesAssignment[geneTreeNodeNr];
-		        	final int mapIndex = speciesNodeNrMappedTo * geneTreeNodeCount + geneTreeNodeNr;
-		        	speciesTreeNodeGeneNodeAssignment[mapIndex] = true;
-		        	
-		        }
-		        
-		        
 		        maxCoalescentCounts = 0;
 		        for (int j : coalescentCounts) {
 		        	if (j > maxCoalescentCounts) {maxCoalescentCounts = j;}
@@ -715,6 +957,8 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 		        	}
 		        }
 	
+	            recordMappedTrees();
+	            mappingIsValid = true;
 	            geneTreeCompatible = true;
 	            clockuptodate = true;
 	            
@@ -736,8 +980,293 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
 			return false;
 	}
 	
+	
+	// Records the gene and species trees which the current mapping was computed from
+	private void recordMappedTrees() {
+		final TreeInterface geneTree = treeInput.get();
+		for (int i = 0; i < geneTreeNodeCount; i++) {
+			final Node geneNode = geneTree.getNode(i);
+			geneNodeParentNr[i] = geneNode.isRoot() ? -1 : geneNode.getParent().getNr();
+			geneNodeHeight[i] = geneNode.getHeight();
+		}
+		for (int i = 0; i < speciesNodeCount; i++) {
+			final Node speciesNode = speciesTree.getNode(i);
+			speciesNodeParentNr[i] = speciesNode.isRoot() ? -1 : speciesNode.getParent().getNr();
+			speciesNodeHeight[i] = speciesNode.getHeight();
+		}
+	}
+	
+	
+	/**
+	 * Patch the mapping of the gene tree onto the species tree by re-walking only those gene tree lineages 
+	 * which changed since the last mapping. The gene and species trees are compared against the trees recorded 
+	 * at the last mapping, instead of using their dirty flags, because the flags are reset after every MCMC step 
+	 * whether or not this distribution was updated.
+	 * @return false if the mapping could not be patched, in which case it must be recomputed in full
+	 */
+	private boolean updateIncremental() {
+		
+		// The species tree must be unchanged
+		for (int i = 0; i < speciesNodeCount; i++) {
+			final Node speciesNode = speciesTree.getNode(i);
+			if (speciesNode.getHeight() != speciesNodeHeight[i]) return false;
+			final int parentNr = speciesNode.isRoot() ? -1 : speciesNode.getParent().getNr();
+			if (parentNr != speciesNodeParentNr[i]) return false;
+		}
+		
+		
+		// Find gene tree nodes which have moved, and flag them and all of their ancestors 
+		// (old and new) for re-mapping, since the clades below the ancestors may have changed
+		final TreeInterface geneTree = treeInput.get();
+		rewalkNodeCount = 0;
+		rewalkBranchCount = 0;
+		for (int i = 0; i < geneTreeNodeCount; i++) {
+			final Node geneNode = geneTree.getNode(i);
+			final int parentNr = geneNode.isRoot() ? -1 : geneNode.getParent().getNr();
+			if (parentNr == geneNodeParentNr[i] && geneNode.getHeight() == geneNodeHeight[i]) continue;
+			
+			flagRewalkLineage(geneNode);
+			if (parentNr != geneNodeParentNr[i] && geneNodeParentNr[i] >= 0) {
+				flagRewalkLineage(geneTree.getNode(geneNodeParentNr[i]));
+			}
+			
+			// Too much has changed. Do a full update instead
+			if (rewalkNodeCount > geneTreeNodeCount / 4) {
+				clearRewalkFlags();
+				return false;
+			}
+			
+		}
+		
+		if (rewalkNodeCount == 0) {
+			return true;
+		}
+		
+		
+		// The branch above each flagged node, and above each of their children, must be re-walked
+		for (int r = 0; r < rewalkNodeCount; r++) {
+			final Node geneNode = geneTree.getNode(rewalkNodes[r]);
+			flagRewalkBranch(geneNode.getNr());
+			for (Node child : geneNode.getChildren()) {
+				flagRewalkBranch(child.getNr());
+			}
+		}
+		
+		
+		// Remove the old contributions of these branches
+		for (int b = 0; b < rewalkBranchCount; b++) {
+			final int geneNodeNr = rewalkBranches[b];
+			final int blockStart = geneNodeNr * occupancyBlocksize;
+			for (int k = blockStart; k < blockStart + occupancyCounts[geneNodeNr]; k++) {
+				final int speciesNodeNr = occupancySpeciesNrs[k];
+				speciesBranchIsDirty[speciesNodeNr] = true;
+				if (k > blockStart) nrOfLineages[speciesNodeNr]--;
+			}
+			occupancyCounts[geneNodeNr] = 0;
+		}
+		
+		
+		// Remove the old coalescent events of the flagged internal nodes
+		for (int r = 0; r < rewalkNodeCount; r++) {
+			final int geneNodeNr = rewalkNodes[r];
+			if (geneNodeNr < geneTreeLeafNodeCount) continue;
+			final int speciesNodeNr = geneNodeSpeciesAssignment[geneNodeNr];
+			if (!removeCoalescentTime(speciesNodeNr, geneNodeHeight[geneNodeNr])) {
+				clearRewalkFlags();
+				return false;
+			}
+			speciesBranchIsDirty[speciesNodeNr] = true;
+			geneNodeSpeciesAssignment[geneNodeNr] = -1;
+		}
+		
+		
+		// Place the flagged internal nodes in the species tree, children first
+		for (int r = 0; r < rewalkNodeCount; r++) {
+			if (!placeGeneNode(geneTree.getNode(rewalkNodes[r]))) {
+				clearRewalkFlags();
+				return false;
+			}
+		}
+		
+		
+		// Add the new contributions of the re-walked branches
+		for (int b = 0; b < rewalkBranchCount; b++) {
+			final Node geneNode = geneTree.getNode(rewalkBranches[b]);
+			final int geneNodeNr = geneNode.getNr();
+			geneNodeHeight[geneNodeNr] = geneNode.getHeight();
+			if (geneNode.isRoot()) {
+				geneNodeParentNr[geneNodeNr] = -1;
+				continue;
+			}
+			final Node geneParentNode = geneNode.getParent();
+			geneNodeParentNr[geneNodeNr] = geneParentNode.getNr();
+			
+			int speciesNodeNr = geneNodeSpeciesAssignment[geneNodeNr];
+			final int targetSpeciesNodeNr = geneNodeSpeciesAssignment[geneParentNode.getNr()];
+			double lastHeight = geneNode.getHeight();
+			while (speciesNodeNr != targetSpeciesNodeNr) {
+				final int speciesParentNr = speciesNodeParentNr[speciesNodeNr];
+				if (speciesParentNr < 0) {
+					clearRewalkFlags();
+					return false;
+				}
+				final double speciesParentHeight = speciesNodeHeight[speciesParentNr];
+				addOccupancy(geneNodeNr, speciesNodeNr, speciesParentHeight - lastHeight);
+				speciesBranchIsDirty[speciesNodeNr] = true;
+				nrOfLineages[speciesParentNr]++;
+				speciesNodeNr = speciesParentNr;
+				lastHeight = speciesParentHeight;
+			}
+			addOccupancy(geneNodeNr, speciesNodeNr, geneParentNode.getHeight() - lastHeight);
+			speciesBranchIsDirty[speciesNodeNr] = true;
+		}
+		
+		
+		maxCoalescentCounts = 0;
+		for (int j : coalescentCounts) {
+			if (j > maxCoalescentCounts) {maxCoalescentCounts = j;}
+		}
+		
+		
+		// Keep track of what to store
+		for (int i = 0; i < speciesNodeCount; i++) {
+			if (speciesBranchIsDirty[i]) markSpeciesBranchModified(i);
+		}
+		for (int b = 0; b < rewalkBranchCount; b++) {
+			markGeneNodeModified(rewalkBranches[b]);
+		}
+		
+		clearRewalkFlags();
+		return true;
+		
+	}
+	
+	
+	// Flag this node and its ancestors for re-mapping
+	private void flagRewalkLineage(Node geneNode) {
+		while (geneNode != null && !isRewalkNode[geneNode.getNr()]) {
+			isRewalkNode[geneNode.getNr()] = true;
+			rewalkNodes[rewalkNodeCount++] = geneNode.getNr();
+			geneNode = geneNode.getParent();
+		}
+	}
+	
+	private void flagRewalkBranch(int geneNodeNr) {
+		if (!isRewalkBranch[geneNodeNr]) {
+			isRewalkBranch[geneNodeNr] = true;
+			rewalkBranches[rewalkBranchCount++] = geneNodeNr;
+		}
+	}
+	
+	private void clearRewalkFlags() {
+		for (int r = 0; r < rewalkNodeCount; r++) {
+			isRewalkNode[rewalkNodes[r]] = false;
+		}
+		for (int b = 0; b < rewalkBranchCount; b++) {
+			isRewalkBranch[rewalkBranches[b]] = false;
+		}
+		rewalkNodeCount = 0;
+		rewalkBranchCount = 0;
+	}
+	
+	
+	// Removes a single coalescent time from the block of this species branch
+	private boolean removeCoalescentTime(int speciesNodeNr, double time) {
+		final int start = speciesNodeNr * blocksize;
+		final int end = start + coalescentCounts[speciesNodeNr];
+		for (int k = start; k < end; k++) {
+			if (coalescentTimes[k] == time) {
+				// shift the later times down to keep the block sorted
+				System.arraycopy(coalescentTimes, k + 1, coalescentTimes, k, end - k - 1);
+				coalescentCounts[speciesNodeNr]--;
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	// Inserts a coalescent time into the block of this species branch, keeping the block sorted in increasing order
+	private void insertCoalescentTime(int speciesNodeNr, double time) {
+		final int start = speciesNodeNr * blocksize;
+		int k = start + coalescentCounts[speciesNodeNr]++;
+		while (k > start && coalescentTimes[k - 1] > time) {
+			coalescentTimes[k] = coalescentTimes[k - 1];
+			k--;
+		}
+		coalescentTimes[k] = time;
+	}
+	
+	
+	/**
+	 * Assigns a gene tree node, and recursively any of its unassigned descendants, to a species tree branch
+	 * and records its coalescent time
+	 * @return false if the gene tree is incompatible with the species tree, or the coalescent times block is full
+	 */
+	private boolean placeGeneNode(Node geneNode) {
+		final int geneNodeNr = geneNode.getNr();
+		if (geneNodeSpeciesAssignment[geneNodeNr] >= 0) return true;
+		
+		final double height = geneNode.getHeight();
+		int speciesNodeNr = -1;
+		for (Node child : geneNode.getChildren()) {
+			if (!placeGeneNode(child)) return false;
+			int childSpeciesNodeNr = geneNodeSpeciesAssignment[child.getNr()];
+			while (speciesNodeParentNr[childSpeciesNodeNr] >= 0 && height >= speciesNodeHeight[speciesNodeParentNr[childSpeciesNodeNr]]) {
+				childSpeciesNodeNr = speciesNodeParentNr[childSpeciesNodeNr];
+			}
+			if (speciesNodeNr == -1) {
+				speciesNodeNr = childSpeciesNodeNr;
+			} else if (speciesNodeNr != childSpeciesNodeNr) {
+				return false;
+			}
+		}
+		
+		if (coalescentCounts[speciesNodeNr] >= blocksize) return false;
+		geneNodeSpeciesAssignment[geneNodeNr] = speciesNodeNr;
+		insertCoalescentTime(speciesNodeNr, height);
+		speciesBranchIsDirty[speciesNodeNr] = true;
+		return true;
+	}
+	
+
+	// Appends a species tree branch to the path spanned by the branch above this gene tree node
+	private void addOccupancy(int geneNodeNr, int speciesNodeNr, double length) {
+		final int k = geneNodeNr * occupancyBlocksize + occupancyCounts[geneNodeNr]++;
+		occupancySpeciesNrs[k] = speciesNodeNr;
+		occupancyLengths[k] = length;
+	}
+	
+	
+	// Ensures the occupancy blocks can hold the longest path from a species tree leaf to the root
+	private void ensureOccupancyCapacity() {
+		int maxPathLength = 0;
+		for (int i = 0; i < speciesTree.getLeafNodeCount(); i++) {
+			int pathLength = 1;
+			for (Node node = speciesTree.getNode(i); !node.isRoot(); node = node.getParent()) {
+				pathLength++;
+			}
+			if (pathLength > maxPathLength) maxPathLength = pathLength;
+		}
+		if (maxPathLength <= occupancyBlocksize) return;
+		
+		// grow memory reservation, keeping the stored paths valid so that a restore gives proper occupancies
+		final int newBlocksize = DELTA_BLOCK_SIZE * ((maxPathLength + DELTA_BLOCK_SIZE - 1) / DELTA_BLOCK_SIZE);
+		final int[] stmpNrs = new int[geneTreeNodeCount * newBlocksize];
+		final double[] stmpLengths = new double[geneTreeNodeCount * newBlocksize];
+		for (int i = 0; i < geneTreeNodeCount; i++) {
+			System.arraycopy(storedOccupancySpeciesNrs, i * occupancyBlocksize, stmpNrs, i * newBlocksize, occupancyBlocksize);
+			System.arraycopy(storedOccupancyLengths, i * occupancyBlocksize, stmpLengths, i * newBlocksize, occupancyBlocksize);
+		}
+		storedOccupancySpeciesNrs = stmpNrs;
+		storedOccupancyLengths = stmpLengths;
+		occupancySpeciesNrs = new int[geneTreeNodeCount * newBlocksize];
+		occupancyLengths = new double[geneTreeNodeCount * newBlocksize];
+		occupancyBlocksize = newBlocksize;
+	}
+	
 
-    // Iteratively populates speciesOccupancy, coalescentTimes, and geneNodeSpeciesAssignment
+    // Iteratively populates the species occupancy, coalescentTimes, and geneNodeSpeciesAssignment
     private boolean collateCoalescenceEvents(int lastGeneTreeNodeNumber, double lastHeight, Node geneTreeNode, int geneTreeNodeNumber, Node speciesTreeNode, int speciesTreeNodeNumber) {
         while (true) {
         	
@@ -754,7 +1283,7 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
                 final double speciesTreeParentHeight = speciesTreeParentNode.getHeight();
                 final int speciesTreeParentNodeNumber = speciesTreeParentNode.getNr();
 
-                speciesOccupancy[lastGeneTreeNodeNumber * speciesNodeCount + speciesTreeNodeNumber] = speciesTreeParentHeight - lastHeight;
+                addOccupancy(lastGeneTreeNodeNumber, speciesTreeNodeNumber, speciesTreeParentHeight - lastHeight);
                 nrOfLineages[speciesTreeParentNodeNumber]++;
 
                 speciesTreeNode = speciesTreeParentNode;
@@ -763,13 +1292,13 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
             }
 
             // This code executes if the next coalescence event occurs within the current branch
-            speciesOccupancy[lastGeneTreeNodeNumber * speciesNodeCount + speciesTreeNodeNumber] = geneTreeNodeHeight - lastHeight;
+            addOccupancy(lastGeneTreeNodeNumber, speciesTreeNodeNumber, geneTreeNodeHeight - lastHeight);
             final int existingSpeciesAssignment = geneNodeSpeciesAssignment[geneTreeNodeNumber];
             if (existingSpeciesAssignment == -1) {
                 geneNodeSpeciesAssignment[geneTreeNodeNumber] = speciesTreeNodeNumber;
                 
 
-                coalescentTimes[speciesTreeNodeNumber * blocksize + coalescentCounts[speciesTreeNodeNumber]++] = geneTreeNodeHeight;
+                insertCoalescentTime(speciesTreeNodeNumber, geneTreeNodeHeight);
 
                 final Node nextGeneTreeNode = geneTreeNode.getParent();
                 if (nextGeneTreeNode == null) {
@@ -792,29 +1321,51 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
     
     
     
+	/**
+	 * @return a new array holding the bottom of species branch nodeI, its sorted coalescent times, and the top of the branch.
+	 * The likelihood does not use this, but reads the times in place through getSortedCoalescentTimes instead
+	 */
 	public double[] getCoalescentTimes(int nodeI) {
         if (!clockuptodate) update();
 
-        final Node speciesNode = speciesTree.getNode(nodeI);
-
-        final double speciesEndTime = speciesNode.getHeight();
-        
-        final double speciesStartTime = speciesNode.isRoot() ? Math.max(speciesNode.getHeight(), treeInput.get().getRoot().getHeight()) 
-        													 : speciesNode.getParent().getHeight();
-        
         final int branchEventCount = coalescentCounts[nodeI];
 
 		final double[] branchCoalescentTimes = new double[branchEventCount + 2];
-		branchCoalescentTimes[0] = speciesEndTime;
-        branchCoalescentTimes[branchEventCount + 1] = speciesStartTime;
+		branchCoalescentTimes[0] = getBranchBottomHeight(nodeI);
+        branchCoalescentTimes[branchEventCount + 1] = getBranchTopHeight(nodeI);
 
 		System.arraycopy(coalescentTimes, nodeI * blocksize, branchCoalescentTimes, 1, branchEventCount);
-		Arrays.sort(branchCoalescentTimes);
 
 		return branchCoalescentTimes;
 	}
 	
 	
+	/**
+	 * The coalescent times of all species branches. The times of branch i are sorted in increasing order 
+	 * and start at getCoalescentTimesOffset(i). This array is shared, so must not be modified
+	 */
+	public double[] getSortedCoalescentTimes() {
+		if (!clockuptodate) update();
+		return coalescentTimes;
+	}
+	
+	public int getCoalescentTimesOffset(int nodeI) {
+		return nodeI * blocksize;
+	}
+	
+	// Height of the bottom of species branch nodeI
+	public double getBranchBottomHeight(int nodeI) {
+		return speciesTree.getNode(nodeI).getHeight();
+	}
+	
+	// Height of the top of species branch nodeI. The root branch ends at the gene tree root if that is higher
+	public double getBranchTopHeight(int nodeI) {
+		final Node speciesNode = speciesTree.getNode(nodeI);
+		return speciesNode.isRoot() ? Math.max(speciesNode.getHeight(), treeInput.get().getRoot().getHeight()) 
+									: speciesNode.getParent().getHeight();
+	}
+	
+	
 	
 
 	
@@ -833,6 +1384,9 @@ public class GeneTreeForSpeciesTreeDistribution extends Distribution {
         // Get branch population size
         SpeciesTreePrior speciesTreePrior = speciesTreePriorInput.get();
         RealParameter popSizes = speciesTreePrior.getPopulationSizes();
+        if (popSizes == null) {
+        	throw new IllegalArgumentException("Cannot sample gene trees without population sizes: please specify the bottomPopSize of " + speciesTreePrior.getID());
+        }
         
         currentGeneTreeNodeNumber = treeInput.get().getLeafNodeCount();
         
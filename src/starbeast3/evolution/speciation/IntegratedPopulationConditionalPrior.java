@@ -0,0 +1,146 @@
+package starbeast3.evolution.speciation;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+
+
+@Description("Density of some of the gene trees given all the other gene trees, under the multispecies coalescent with the "
+		+ "population sizes integrated out as in IntegratedPopulationPrior. This is the ratio of the integrated density of all loci "
+		+ "to that of the other loci. The statistics of the other loci are taken at the last call to updateOtherLoci, so this is for "
+		+ "chains which only change the gene trees given here, such as those run by ParallelMCMCTreeOperator.")
+public class IntegratedPopulationConditionalPrior extends Distribution {
+
+
+	final public Input<List<GeneTreeForSpeciesTreeDistribution>> genesInput = new Input<>("gene", "gene tree for species tree distribution "
+			+ "of each of the loci whose density is given", new ArrayList<>(), Validate.REQUIRED);
+
+
+	// The prior of all loci. This is not an input, so that this distribution does not become an output of the statistics of all loci,
+	// which would make every chain that can reach those statistics store and restore it
+	private IntegratedPopulationPrior prior;
+
+	private List<GeneTreeForSpeciesTreeDistribution> genes;
+	private MultiLocusCoalescent coalescent;
+	private int speciesNodeCount;
+
+	// Taken at the last call to updateOtherLoci, and indexed by branch
+	private double alpha, beta;
+	private int[] otherCoalescentCounts; // sum of k_jb across the other loci
+	private double[] otherIntervalSums; // sum of c_jb / ploidy_j across the other loci
+	private double otherLogP; // sum across branches of integratedBranchLogP of the other loci
+
+
+	@Override
+	public void initAndValidate() {
+		genes = genesInput.get();
+		if (genes.size() == 0) {
+			throw new IllegalArgumentException("IntegratedPopulationConditionalPrior: Please provide at least one gene tree");
+		}
+		speciesNodeCount = genes.get(0).speciesTreeInput.get().getNodeCount();
+		coalescent = new MultiLocusCoalescent(speciesNodeCount);
+		otherCoalescentCounts = new int[speciesNodeCount];
+		otherIntervalSums = new double[speciesNodeCount];
+	}
+
+
+	/**
+	 * Set the prior of all loci, which should include the loci of this distribution
+	 * @param prior
+	 */
+	public void setPrior(IntegratedPopulationPrior prior) {
+		if (!prior.getStatistics().genesInput.get().containsAll(genes)) {
+			throw new IllegalArgumentException("IntegratedPopulationConditionalPrior: the loci of " + getID() +
+					" should be among the loci of " + prior.getID());
+		}
+		this.prior = prior;
+	}
+
+
+	/**
+	 * Take the statistics of the other loci, and the parameters of the inverse gamma prior, from the prior of all loci.
+	 * This should be called whenever the other loci, the species tree or the parameters may have changed, and not while
+	 * the statistics of all loci are being changed by another thread
+	 */
+	public void updateOtherLoci() {
+		alpha = prior.getAlpha();
+		beta = prior.getBeta();
+		final MultiLocusCoalescent all = prior.getStatistics().getCoalescent();
+		coalescent.gatherModified(genes);
+		otherLogP = 0;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			otherCoalescentCounts[b] = all.getCoalescentCount(b) - coalescent.getCoalescentCount(b);
+			otherIntervalSums[b] = all.getPloidyWeightedIntervalSum(b) - coalescent.getPloidyWeightedIntervalSum(b);
+			otherLogP += IntegratedPopulationPrior.integratedBranchLogP(alpha, beta, otherCoalescentCounts[b], otherIntervalSums[b]);
+		}
+		calculateLogP();
+	}
+
+
+	/**
+	 * Sum across branches of the log of the integrated density of all loci divided by that of the other loci:
+	 * Gamma(alpha + K) (beta + C')^(alpha + K') / (Gamma(alpha + K') (beta + C)^(alpha + K)) prod_j ploidy_j^(-k_j)
+	 * where K and C are the statistics of all loci, K' and C' those of the other loci, and j runs over the loci given here
+	 */
+	@Override
+	public double calculateLogP() {
+		coalescent.gatherModified(genes);
+		logP = -otherLogP;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			logP += IntegratedPopulationPrior.integratedBranchLogP(alpha, beta, otherCoalescentCounts[b] + coalescent.getCoalescentCount(b),
+					otherIntervalSums[b] + coalescent.getPloidyWeightedIntervalSum(b)) - coalescent.getLogPloidySum(b);
+		}
+		return logP;
+	}
+
+
+	@Override
+	public boolean requiresRecalculation() {
+		return true;
+	}
+
+
+	@Override
+	public void store() {
+		coalescent.store();
+		super.store();
+	}
+
+
+	@Override
+	public void restore() {
+		coalescent.restore();
+		super.restore();
+	}
+
+
+	@Override
+	public List<String> getArguments() {
+		List<String> arguments = new ArrayList<>();
+		for (GeneTreeForSpeciesTreeDistribution gene : genes) {
+			arguments.add(gene.treeInput.get().getID());
+		}
+		return arguments;
+	}
+
+
+	@Override
+	public List<String> getConditions() {
+		List<String> conditions = new ArrayList<>();
+		return conditions;
+	}
+
+
+	@Override
+	public void sample(State state, Random random) {
+	}
+
+
+}
@@ -0,0 +1,206 @@
+package starbeast3.evolution.speciation;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.apache.commons.math.special.Gamma;
+
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.distribution.ParametricDistribution;
+import starbeast3.util.ChainRandomizer;
+
+
+@Description("Density of the gene trees under the multispecies coalescent with constant per-branch population sizes, "
+		+ "which are integrated out analytically under an inverse gamma prior. Use it with IntegratedPopulations as the "
+		+ "population model of the gene tree distributions. Population sizes are drawn from their posterior only when "
+		+ "logged, so this can be logged (or given as the popSize of a SpeciesTreeLogger) instead of a population size parameter. "
+		+ "They are drawn from a random number stream of their own, so logging does not change the course of the MCMC.")
+public class IntegratedPopulationPrior extends Distribution implements Function {
+
+
+	final public Input<CoalescentStatistics> statisticsInput = new Input<>("statistics", "coalescent statistics of the gene trees", Validate.REQUIRED);
+	final public Input<ParametricDistribution> priorInput = new Input<>("gammaprior", "inverse gamma distributed prior for population sizes", Validate.REQUIRED);
+
+
+	private CoalescentStatistics statistics;
+	private Function priorAlpha, priorBeta;
+	private int speciesNodeCount;
+
+	// Population sizes drawn from their posterior given the current state
+	private double[] popSizes;
+	private boolean popSizesAreCurrent;
+
+	// Only used for drawing the population sizes, so that the draws do not use up the random numbers of the chain
+	private SplittableRandom random;
+	private int randomEpoch;
+
+
+	@Override
+	public void initAndValidate() {
+		statistics = statisticsInput.get();
+		ParametricDistribution prior = priorInput.get();
+		priorAlpha = (Function) prior.getInput("alpha").get();
+		priorBeta = (Function) prior.getInput("beta").get();
+		if (priorAlpha == null || priorBeta == null) {
+			throw new IllegalArgumentException("IntegratedPopulationPrior: the alpha and beta of the gamma prior should be specified");
+		}
+
+		for (GeneTreeForSpeciesTreeDistribution gene : statistics.genesInput.get()) {
+			if (!(gene.popModelInput.get() instanceof IntegratedPopulations)) {
+				throw new IllegalArgumentException("IntegratedPopulationPrior: the population model of " + gene.getID() +
+						" should be an IntegratedPopulations, or the gene tree density would be counted twice");
+			}
+		}
+
+		speciesNodeCount = statistics.getSpeciesNodeCount();
+		popSizes = new double[speciesNodeCount];
+		popSizesAreCurrent = false;
+		random = ChainRandomizer.newStream();
+		randomEpoch = ChainRandomizer.getEpoch();
+	}
+
+
+	/**
+	 * Sum across branches of the log of
+	 * int prod_j P(gene tree j on branch b | N) InverseGamma(N | alpha, beta) dN
+	 *   = beta^alpha Gamma(alpha + K) / (Gamma(alpha) (beta + C)^(alpha + K)) prod_j ploidy_j^(-k_j)
+	 * where K is the number of coalescent events on the branch across loci, and C the ploidy weighted interval sum
+	 */
+	@Override
+	public double calculateLogP() {
+		popSizesAreCurrent = false;
+		final double alpha = priorAlpha.getArrayValue();
+		final double beta = priorBeta.getArrayValue();
+		final double branchConstant = alpha * Math.log(beta) - Gamma.logGamma(alpha);
+
+		final MultiLocusCoalescent coalescent = statistics.getCoalescent();
+		logP = 0;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			logP += branchConstant + integratedBranchLogP(alpha, beta, coalescent.getCoalescentCount(b), coalescent.getPloidyWeightedIntervalSum(b))
+					- coalescent.getLogPloidySum(b);
+		}
+		return logP;
+	}
+
+
+	/**
+	 * The part of the integrated branch density which depends on the gene trees, other than through their ploidy:
+	 * log Gamma(alpha + K) - (alpha + K) log(beta + C)
+	 * @param alpha
+	 * @param beta
+	 * @param k number of coalescent events on the branch across loci
+	 * @param c ploidy weighted interval sum of the branch across loci
+	 * @return
+	 */
+	static double integratedBranchLogP(double alpha, double beta, int k, double c) {
+		return Gamma.logGamma(alpha + k) - (alpha + k) * Math.log(beta + c);
+	}
+
+
+	// Draw the population sizes from their inverse gamma posterior, if the state has changed since they were last drawn
+	private void drawPopSizes() {
+		if (popSizesAreCurrent) return;
+		if (randomEpoch != ChainRandomizer.getEpoch()) {
+			random = ChainRandomizer.newStream();
+			randomEpoch = ChainRandomizer.getEpoch();
+		}
+		final double alpha = priorAlpha.getArrayValue();
+		final double beta = priorBeta.getArrayValue();
+		final MultiLocusCoalescent coalescent = statistics.getCoalescent();
+		for (int b = 0; b < speciesNodeCount; b++) {
+			final double shape = alpha + coalescent.getCoalescentCount(b);
+			final double rate = beta + coalescent.getPloidyWeightedIntervalSum(b);
+			popSizes[b] = 1.0 / ChainRandomizer.nextGamma(random, shape, 1.0 / rate);
+		}
+		popSizesAreCurrent = true;
+	}
+
+
+	@Override
+	public void restore() {
+		popSizesAreCurrent = false;
+		super.restore();
+	}
+
+
+	public CoalescentStatistics getStatistics() {
+		return statistics;
+	}
+
+	public double getAlpha() {
+		return priorAlpha.getArrayValue();
+	}
+
+	public double getBeta() {
+		return priorBeta.getArrayValue();
+	}
+
+
+	@Override
+	public int getDimension() {
+		return speciesNodeCount;
+	}
+
+
+	@Override
+	public double getArrayValue() {
+		return getArrayValue(0);
+	}
+
+
+	@Override
+	public double getArrayValue(int dim) {
+		drawPopSizes();
+		return popSizes[dim];
+	}
+
+
+	@Override
+	public void init(PrintStream out) {
+		super.init(out);
+		for (int b = 0; b < speciesNodeCount; b++) {
+			out.print("popSize." + (b + 1) + "\t");
+		}
+	}
+
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		super.log(sample, out);
+		drawPopSizes();
+		for (int b = 0; b < speciesNodeCount; b++) {
+			out.print(popSizes[b] + "\t");
+		}
+	}
+
+
+	@Override
+	public List<String> getArguments() {
+		List<String> arguments = new ArrayList<>();
+		return arguments;
+	}
+
+
+	@Override
+	public List<String> getConditions() {
+		List<String> conditions = new ArrayList<>();
+		conditions.add(statisticsInput.get().getID());
+		return conditions;
+	}
+
+
+	@Override
+	public void sample(State state, Random random) {
+	}
+
+
+}
@@ -0,0 +1,78 @@
+package starbeast3.evolution.speciation;
+
+
+import java.text.DecimalFormat;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.CalculationNode;
+import starbeast3.tree.SpeciesTree;
+
+
+@Description("Constant per-branch population sizes which are integrated out analytically under an inverse gamma prior. "
+		+ "The gene tree distributions only check compatibility with the species tree; the density of the gene trees, "
+		+ "with the population sizes integrated out, is calculated by an IntegratedPopulationPrior in the posterior. "
+		+ "The chains of ParallelMCMCTreeOperator instead use the density of their gene trees given the others (IntegratedPopulationConditionalPrior). "
+		+ "The population sizes are then not part of the state, and need no operators.")
+public class IntegratedPopulations extends CalculationNode implements PopulationModel {
+
+
+	final public Input<SpeciesTree> speciesTreeInput =
+			new Input<>("speciesTree", "The species tree this population model is assoicated with.", Validate.REQUIRED);
+
+
+	@Override
+	public void initAndValidate() {
+	}
+
+
+	/* The per-locus branch density does not depend on anything but the population size,
+	 * which is integrated out across loci by IntegratedPopulationPrior
+	 */
+	@Override
+	public double calculateBranchLogP(final int lineagesBottom, final double ploidy, final double popSize2, final double[] times, final int k) {
+		return 0.0;
+	}
+
+
+	@Override
+	public double calculateBranchLogP(final int lineagesBottom, final double ploidy, final double popSize2,
+			final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+		return 0.0;
+	}
+
+
+	@Override
+	public double calculatePartialLogPBranch(int lineagesBottom, double[] times, int k) {
+		return calculatePartialLogPBranch(lineagesBottom, times[0], times, 1, k, times[k + 1]);
+	}
+
+
+	@Override
+	public double calculatePartialLogPBranch(final int lineagesBottom,
+			final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+		return ConstantPopulations.partialLogPBranch(lineagesBottom, branchBottom, coalescentTimes, offset, k, branchTop);
+	}
+
+
+	@Override
+	public void initPopSizes(double popInitial) {
+		// There are no population sizes in the state
+	}
+
+
+	@Override
+	public void serialize(Node speciesTreeNode, StringBuffer buf, DecimalFormat df) {
+		// Population sizes are drawn and logged by IntegratedPopulationPrior
+	}
+
+
+	@Override
+	public boolean isDirtyBranch(Node speciesNode) {
+		return false;
+	}
+
+
+}
@@ -0,0 +1,341 @@
+package starbeast3.evolution.speciation;
+
+
+import java.util.List;
+
+import beast.base.core.Function;
+
+
+
+/**
+ * Sufficient statistics of the constant population multispecies coalescent, summed across loci for each species tree branch.
+ *
+ * The per-locus branch statistics (coalescent counts, ploidy, and the sum of time intervals weighted by the number of
+ * lineage pairs) are gathered into flat locus-major buffers, and summed across loci for each branch. After that,
+ * the density of a branch for any population size, or the quantities needed to Gibbs sample or integrate out the
+ * population size, cost O(1) instead of one call into each GeneTreeForSpeciesTreeDistribution.
+ *
+ * Loci are compared by the tree versions of their distributions, so only the loci whose gene tree or species tree has
+ * changed are gathered again, and when there are few of them their change is added to the branch sums.
+ * The coalescent times are read in place from each gene tree distribution, so gathering does not allocate.
+ * Owners in the model graph, such as CoalescentStatistics, can also store and restore the statistics.
+ */
+public class MultiLocusCoalescent {
+
+
+	// Number of incremental updates after which the branch sums are summed afresh, so that rounding errors do not accumulate
+	private static final int FULL_REDUCE_INTERVAL = 1024;
+
+
+	private final int speciesNodeCount;
+	private int locusCount;
+
+	// The gene tree distribution of each locus, when it was last gathered
+	private GeneTreeForSpeciesTreeDistribution[] genes;
+
+
+	// Per locus and branch, indexed by locus * speciesNodeCount + branch. Locus-major, so that gathering, storing or
+	// adding the change of one locus touches one contiguous run. Only the full reduce strides across loci
+	private int[] coalescentCounts; // number of coalescent events in the branch
+	private int[] storedCoalescentCounts;
+	private double[] intervalSums; // sum over intervals of the interval length times (n-i choose 2)
+	private double[] storedIntervalSums;
+
+	// Tree version of each locus when it was gathered
+	private long[] versions;
+	private long[] storedVersions;
+
+	// Per locus
+	private double[] ploidies;
+	private double[] logPloidies;
+
+
+	// Sums across loci, indexed by branch
+	private int[] branchCoalescentCounts; // sum_j k_jb
+	private int[] storedBranchCoalescentCounts;
+	private double[] branchLogPloidySums; // sum_j k_jb log(ploidy_j)
+	private double[] storedBranchLogPloidySums;
+	private double[] branchIntervalSums; // sum_j c_jb
+	private double[] storedBranchIntervalSums;
+	private double[] branchPloidyWeightedIntervalSums; // sum_j c_jb / ploidy_j
+	private double[] storedBranchPloidyWeightedIntervalSums;
+
+
+	// Loci gathered since the last store. The stored and current per-locus arrays only differ for these loci
+	private boolean[] isModifiedLocus;
+	private int[] modifiedLoci;
+	private int modifiedLocusCount;
+
+	private int updatesSinceReduce;
+
+
+	public MultiLocusCoalescent(int speciesNodeCount) {
+		this.speciesNodeCount = speciesNodeCount;
+		this.locusCount = -1;
+		branchCoalescentCounts = new int[speciesNodeCount];
+		storedBranchCoalescentCounts = new int[speciesNodeCount];
+		branchLogPloidySums = new double[speciesNodeCount];
+		storedBranchLogPloidySums = new double[speciesNodeCount];
+		branchIntervalSums = new double[speciesNodeCount];
+		storedBranchIntervalSums = new double[speciesNodeCount];
+		branchPloidyWeightedIntervalSums = new double[speciesNodeCount];
+		storedBranchPloidyWeightedIntervalSums = new double[speciesNodeCount];
+	}
+
+
+	// (Re)allocate the per-locus buffers if the number of loci has changed, as may happen when using a gene tree kernel
+	private void allocate(int n) {
+		if (n == locusCount) return;
+		locusCount = n;
+		genes = new GeneTreeForSpeciesTreeDistribution[n];
+		coalescentCounts = new int[n * speciesNodeCount];
+		storedCoalescentCounts = new int[n * speciesNodeCount];
+		intervalSums = new double[n * speciesNodeCount];
+		storedIntervalSums = new double[n * speciesNodeCount];
+		versions = new long[n];
+		storedVersions = new long[n];
+		ploidies = new double[n];
+		logPloidies = new double[n];
+		isModifiedLocus = new boolean[n];
+		modifiedLoci = new int[n];
+		modifiedLocusCount = 0;
+	}
+
+
+	/**
+	 * Gather the statistics of every locus on every species tree branch afresh
+	 * @param geneList
+	 */
+	public void gather(List<GeneTreeForSpeciesTreeDistribution> geneList) {
+		allocate(geneList.size());
+		for (int j = 0; j < locusCount; j++) {
+			gatherLocus(geneList.get(j), j);
+		}
+		reduce();
+	}
+
+
+	/**
+	 * As gather, but only gather the loci whose gene tree or species tree may have changed since they were last gathered.
+	 * If only a few loci have changed, their change is added to the branch sums instead of summing afresh
+	 * @param geneList
+	 */
+	public void gatherModified(List<GeneTreeForSpeciesTreeDistribution> geneList) {
+		allocate(geneList.size());
+
+		int changedCount = 0;
+		for (int j = 0; j < locusCount; j++) {
+			if (isStale(geneList.get(j), j)) changedCount++;
+		}
+		if (changedCount == 0) return;
+
+		// If most loci have changed (eg. after a species tree move), gather them all and sum afresh
+		if (changedCount > locusCount / 2) {
+			for (int j = 0; j < locusCount; j++) {
+				final GeneTreeForSpeciesTreeDistribution gene = geneList.get(j);
+				if (isStale(gene, j)) gatherLocus(gene, j);
+			}
+			reduce();
+			return;
+		}
+
+		// Otherwise gather the changed loci, and add their change to the branch sums
+		for (int j = 0; j < locusCount; j++) {
+			final GeneTreeForSpeciesTreeDistribution gene = geneList.get(j);
+			if (isStale(gene, j)) {
+				addLocus(j, -1);
+				gatherLocus(gene, j);
+				addLocus(j, 1);
+			}
+		}
+		if (++updatesSinceReduce >= FULL_REDUCE_INTERVAL) {
+			reduce();
+		}
+	}
+
+
+	private boolean isStale(GeneTreeForSpeciesTreeDistribution gene, int locus) {
+		return gene != genes[locus] || gene.getTreeVersion() != versions[locus];
+	}
+
+
+	// Gather the statistics of this locus on every species tree branch
+	private void gatherLocus(GeneTreeForSpeciesTreeDistribution gene, int locus) {
+		final double[] times = gene.getSortedCoalescentTimes();
+		final int start = locus * speciesNodeCount;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			final int n = gene.getLineageCount(b);
+			final int k = gene.getCoalescentCount(b);
+			final int offset = gene.getCoalescentTimesOffset(b);
+
+			double c = 0;
+			double lastTime = gene.getBranchBottomHeight(b);
+			for (int i = 0; i <= k; i++) {
+				final double time = i < k ? times[offset + i] : gene.getBranchTopHeight(b);
+				c += (time - lastTime) * (n - i) * (n - i - 1.0) / 2.0;
+				lastTime = time;
+			}
+
+			coalescentCounts[start + b] = k;
+			intervalSums[start + b] = c;
+		}
+
+		genes[locus] = gene;
+		ploidies[locus] = gene.getPloidy();
+		logPloidies[locus] = Math.log(ploidies[locus]);
+		versions[locus] = gene.getTreeVersion();
+
+		if (!isModifiedLocus[locus]) {
+			isModifiedLocus[locus] = true;
+			modifiedLoci[modifiedLocusCount++] = locus;
+		}
+	}
+
+
+	// Add (sign = 1) or subtract (sign = -1) the statistics of this locus to the branch sums
+	private void addLocus(int locus, int sign) {
+		final int start = locus * speciesNodeCount;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			final int k = sign * coalescentCounts[start + b];
+			final double c = sign * intervalSums[start + b];
+			branchCoalescentCounts[b] += k;
+			branchLogPloidySums[b] += k * logPloidies[locus];
+			branchIntervalSums[b] += c;
+			branchPloidyWeightedIntervalSums[b] += c / ploidies[locus];
+		}
+	}
+
+
+	// Sum the per-locus statistics of every branch afresh
+	private void reduce() {
+		for (int b = 0; b < speciesNodeCount; b++) {
+			int k = 0;
+			double logPloidySum = 0, intervalSum = 0, weightedIntervalSum = 0;
+			for (int j = 0; j < locusCount; j++) {
+				final int index = j * speciesNodeCount + b;
+				k += coalescentCounts[index];
+				logPloidySum += coalescentCounts[index] * logPloidies[j];
+				intervalSum += intervalSums[index];
+				weightedIntervalSum += intervalSums[index] / ploidies[j];
+			}
+			branchCoalescentCounts[b] = k;
+			branchLogPloidySums[b] = logPloidySum;
+			branchIntervalSums[b] = intervalSum;
+			branchPloidyWeightedIntervalSums[b] = weightedIntervalSum;
+		}
+		updatesSinceReduce = 0;
+	}
+
+
+	/**
+	 * Store the statistics. Only the loci gathered since the last store are copied.
+	 * The loci are assumed to be the same at restore as they were at store
+	 */
+	public void store() {
+		for (int m = 0; m < modifiedLocusCount; m++) {
+			final int j = modifiedLoci[m];
+			final int start = j * speciesNodeCount;
+			System.arraycopy(coalescentCounts, start, storedCoalescentCounts, start, speciesNodeCount);
+			System.arraycopy(intervalSums, start, storedIntervalSums, start, speciesNodeCount);
+			storedVersions[j] = versions[j];
+			isModifiedLocus[j] = false;
+		}
+		modifiedLocusCount = 0;
+
+		System.arraycopy(branchCoalescentCounts, 0, storedBranchCoalescentCounts, 0, speciesNodeCount);
+		System.arraycopy(branchLogPloidySums, 0, storedBranchLogPloidySums, 0, speciesNodeCount);
+		System.arraycopy(branchIntervalSums, 0, storedBranchIntervalSums, 0, speciesNodeCount);
+		System.arraycopy(branchPloidyWeightedIntervalSums, 0, storedBranchPloidyWeightedIntervalSums, 0, speciesNodeCount);
+	}
+
+
+	/**
+	 * Return to the statistics at the last store
+	 */
+	public void restore() {
+		if (locusCount < 0) return;
+
+		int[] tmpCoalescentCounts = coalescentCounts;
+		double[] tmpIntervalSums = intervalSums;
+		long[] tmpVersions = versions;
+		coalescentCounts = storedCoalescentCounts;
+		intervalSums = storedIntervalSums;
+		versions = storedVersions;
+		storedCoalescentCounts = tmpCoalescentCounts;
+		storedIntervalSums = tmpIntervalSums;
+		storedVersions = tmpVersions;
+
+		int[] tmpBranchCoalescentCounts = branchCoalescentCounts;
+		double[] tmpBranchLogPloidySums = branchLogPloidySums;
+		double[] tmpBranchIntervalSums = branchIntervalSums;
+		double[] tmpBranchPloidyWeightedIntervalSums = branchPloidyWeightedIntervalSums;
+		branchCoalescentCounts = storedBranchCoalescentCounts;
+		branchLogPloidySums = storedBranchLogPloidySums;
+		branchIntervalSums = storedBranchIntervalSums;
+		branchPloidyWeightedIntervalSums = storedBranchPloidyWeightedIntervalSums;
+		storedBranchCoalescentCounts = tmpBranchCoalescentCounts;
+		storedBranchLogPloidySums = tmpBranchLogPloidySums;
+		storedBranchIntervalSums = tmpBranchIntervalSums;
+		storedBranchPloidyWeightedIntervalSums = tmpBranchPloidyWeightedIntervalSums;
+
+		// The modified flags are kept: the swapped arrays differ in exactly the loci gathered since the last store
+	}
+
+
+	/**
+	 * Log density of all gathered loci on this branch, under a constant population size.
+	 * This is the sum of ConstantPopulations.calculateBranchLogP across loci
+	 * @param branch
+	 * @param popSize
+	 * @return
+	 */
+	public double calculateBranchLogP(int branch, double popSize) {
+		return -branchCoalescentCounts[branch] * Math.log(popSize) - branchLogPloidySums[branch]
+				- branchPloidyWeightedIntervalSums[branch] / popSize;
+	}
+
+
+	/**
+	 * Log density of all gathered loci on all branches, excluding the root contribution
+	 * @param popSizes one population size per species tree branch
+	 * @return
+	 */
+	public double calculateLogP(Function popSizes) {
+		double logP = 0;
+		for (int b = 0; b < speciesNodeCount; b++) {
+			logP += calculateBranchLogP(b, popSizes.getArrayValue(b));
+		}
+		return logP;
+	}
+
+
+	// Total number of coalescent events on this branch, across loci
+	public int getCoalescentCount(int branch) {
+		return branchCoalescentCounts[branch];
+	}
+
+	// Sum across loci of k_jb log(ploidy_j) on this branch
+	public double getLogPloidySum(int branch) {
+		return branchLogPloidySums[branch];
+	}
+
+	// Sum across loci of the population size independent part of the branch log density (see calculatePartialLogPBranch)
+	public double getPartialLogP(int branch) {
+		return -branchIntervalSums[branch];
+	}
+
+	// Sum across loci of the lineage pair weighted interval lengths, divided by ploidy. This is the rate of the inverse gamma posterior of the population size
+	public double getPloidyWeightedIntervalSum(int branch) {
+		return branchPloidyWeightedIntervalSums[branch];
+	}
+
+	public int getLocusCount() {
+		return locusCount;
+	}
+
+	public int getSpeciesNodeCount() {
+		return speciesNodeCount;
+	}
+
+
+}
@@ -11,6 +11,19 @@ public interface PopulationModel {
     
     // Calculate the prior density contribution from this branches lineage history (without using the population size)
     public double calculatePartialLogPBranch(final int lineagesBottom, final double[] times, final int k);
+    
+    // As calculateBranchLogP, but reads the k sorted coalescent times in place from coalescentTimes[offset ... offset+k-1]. 
+    // Models should override this to avoid copying the times
+    default double calculateBranchLogP(final int lineagesBottom, final double ploidy, final double popSize2, 
+    		final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+    	return calculateBranchLogP(lineagesBottom, ploidy, popSize2, toTimes(branchBottom, coalescentTimes, offset, k, branchTop), k);
+    }
+    
+    // As calculatePartialLogPBranch, but reads the k sorted coalescent times in place from coalescentTimes[offset ... offset+k-1]
+    default double calculatePartialLogPBranch(final int lineagesBottom, 
+    		final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+    	return calculatePartialLogPBranch(lineagesBottom, toTimes(branchBottom, coalescentTimes, offset, k, branchTop), k);
+    }
 
     // Sets model-compatible default population sizes
     // To successfully begin a run, this must be called from a StateNodeInitializer
@@ -27,6 +40,15 @@ public interface PopulationModel {
     	return 0;
     }
     
+    // Copies the branch boundaries and coalescent times into a single array
+    static double[] toTimes(final double branchBottom, final double[] coalescentTimes, final int offset, final int k, final double branchTop) {
+    	final double[] times = new double[k + 2];
+    	times[0] = branchBottom;
+    	System.arraycopy(coalescentTimes, offset, times, 1, k);
+    	times[k + 1] = branchTop;
+    	return times;
+    }
+    
     
     
 }
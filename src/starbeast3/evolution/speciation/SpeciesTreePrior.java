@@ -29,7 +29,8 @@ public class SpeciesTreePrior extends TreeDistribution {
             "This can be " + Arrays.toString(TreePopSizeFunction.values()) + " (default 'constant')", TreePopSizeFunction.constant, TreePopSizeFunction.values());
 
     public final Input<RealParameter> popSizesBottomInput = new Input<>("bottomPopSize", "population size parameter for populations at the bottom of a branch. " +
-            "For linear population function, this is the same at the top of the branch.", Validate.REQUIRED);
+            "For linear population function, this is the same at the top of the branch. " +
+            "Required unless the population model is IntegratedPopulations, whose population sizes are not in the state.");
     public final Input<RealParameter> popSizesTopInput = new Input<>("topPopSize", "population size parameter at the top of a branch. " +
             "Ignored for constant population function, but required for linear population function.");
 
@@ -69,9 +70,12 @@ public class SpeciesTreePrior extends TreeDistribution {
         // set up sizes of population functions
         final int speciesCount = treeInput.get().getLeafNodeCount();
         final int nodeCount = treeInput.get().getNodeCount();
+        if (popSizesBottom == null && !(popFunction == TreePopSizeFunction.constant && popModelInput.get() instanceof IntegratedPopulations)) {
+            throw new IllegalArgumentException("bottomPopSize must be specified, unless the population model is IntegratedPopulations");
+        }
         switch (popFunction) {
             case constant:
-                popSizesBottom.setDimension(nodeCount);
+                if (popSizesBottom != null) popSizesBottom.setDimension(nodeCount);
                 break;
             case linear:
                 if (popSizesTop == null) {
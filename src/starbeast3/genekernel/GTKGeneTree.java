@@ -4,21 +4,94 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 
 public class GTKGeneTree extends Tree {
-	
-	
+
+
+	// Whether the stored nodes are the same as the current ones, so that GeneTreeKernel need not store this tree again
+	boolean storeIsCurrent = false;
+
+	// Identifies the state of this tree, for caches such as the one in GTKPrior. A new version is taken whenever an
+	// edit is found, and restore returns to the stored version
+	private long version = 0;
+	private long storedVersion = 0;
+	private long versionCount = 0;
+
+	// Whether the nodes were only made dirty by a pointer tree which has been wired to this tree, rather than edited
+	boolean dirtiedByPointer = false;
+
+	// Whether a version has already been taken for the current edit, so that GTKPrior and each tree likelihood agree on it
+	private boolean versionIsCurrent = false;
+
+
 	public GTKGeneTree() {
-		
+
 	}
-	
+
 	public GTKGeneTree(final Node rootNode) {
         setRoot(rootNode);
         initArrays();
     }
-	
-	
+
+
 	 @Override
 	 public void store() {
 		 super.store();
+		 storedVersion = version;
+		 storeIsCurrent = true;
+	 }
+
+
+	 @Override
+	 public void restore() {
+		 super.restore();
+		 version = storedVersion;
+		 clearEditFlags();
+
+		 // The stored and current nodes have been swapped, so the stored ones are those of the rejected proposal
+		 storeIsCurrent = false;
+	 }
+
+
+	 @Override
+	 public void setEverythingDirty(final boolean isDirty) {
+		 super.setEverythingDirty(isDirty);
+		 if (!isDirty) clearEditFlags();
+	 }
+
+
+	 // The nodes are clean, or have been swapped back to the stored ones
+	 void clearEditFlags() {
+		 dirtiedByPointer = false;
+		 versionIsCurrent = false;
+	 }
+
+
+	 /**
+	  * Take a new version, if the tree has been edited since it was last made clean and no version has been taken for
+	  * this edit yet. Being pointed to by another pointer tree is not an edit
+	  */
+	 public void updateVersion() {
+		 if (!versionIsCurrent && !dirtiedByPointer && isEdited()) {
+			 version = ++versionCount;
+			 versionIsCurrent = true;
+		 }
+	 }
+
+
+	 public long getVersion() {
+		 return version;
+	 }
+
+
+	 /**
+	  * @return Whether any node has been changed since the tree was last made clean.
+	  * Kernel trees are not in the state, so an edit does not mark the tree itself as dirty, only its nodes
+	  */
+	 public boolean isEdited() {
+		 if (somethingIsDirty()) return true;
+		 for (Node node : getNodesAsArray()) {
+			 if (node.isDirty() != Tree.IS_CLEAN) return true;
+		 }
+		 return false;
 	 }
 
 }
@@ -5,12 +5,14 @@ import java.util.List;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
 import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.inference.operator.kernel.KernelDistribution;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
 import beastfx.app.beauti.Beauti;
+import starbeast3.core.ParallelLoci;
 import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
 
 
@@ -29,6 +31,9 @@ public abstract class GTKOperator extends Operator {
 	public final Input<KernelDistribution> kernelDistributionInput = new Input<>("kernelDistribution", "provides sample distribution for proposals", 
 	KernelDistribution.newDefaultKernelDistribution());
     protected KernelDistribution kernelDistribution;
+
+	public final Input<Boolean> parallelInput = new Input<>("parallel", "whether to process the gene trees of a proposal in parallel (only used by operators which support it)", false);
+	private ParallelLoci parallelLoci = null;
 	
 	
 	protected List<Tree> geneTrees;
@@ -69,6 +74,18 @@ public abstract class GTKOperator extends Operator {
 	
 	
 	
+	/**
+	 * The per-locus runner, or null if the gene trees should be processed serially
+	 * @return
+	 */
+	protected ParallelLoci getParallelLoci() {
+		if (!parallelInput.get() || ProgramStatus.m_nThreads <= 1) return null;
+		if (parallelLoci == null) parallelLoci = new ParallelLoci();
+		return parallelLoci;
+	}
+	
+	
+	
 	/**
 	 * Uniformly at random samples a tree from either the gene tree kernel, or the list of gene trees
 	 * Method assumes that this tree will be edited
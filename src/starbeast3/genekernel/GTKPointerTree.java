@@ -28,6 +28,7 @@ public class GTKPointerTree extends Tree {
 	
 	int treeIndex;
 	int indicator;
+	Tree pointedTree; // the kernel tree this tree is wired to
 	IntegerParameter indicatorVector;
 	GeneTreeKernel kernel;
 	
@@ -38,6 +39,7 @@ public class GTKPointerTree extends Tree {
 		 this.treeIndex = treeIndexInput.get();
 		 this.indicatorVector = indicatorInput.get();
 		 this.indicator = -1; 
+		 this.pointedTree = null;
 		 this.kernel = kernelInput.get();
 		 
 	}
@@ -70,13 +72,30 @@ public class GTKPointerTree extends Tree {
 	 * Updates the tree this class is pointing to without editing
 	 */
 	public void update() {
-		int newIndicator = this.getIndicatorValue();
-		// TODO: only update when required
-		//if (newIndicator != this.indicator || this.hasStartedEditing) { 
-			this.indicator = newIndicator;
-			Tree newTree = this.kernel.getTree(this.indicator);
+		this.indicator = this.getIndicatorValue();
+		Tree newTree = this.kernel.getTree(this.indicator);
+		
+		// Pointing to a different kernel tree: everything needs recalculating
+		if (newTree != this.pointedTree) {
+			final boolean edited = ((GTKGeneTree) newTree).isEdited();
+			this.pointedTree = newTree;
 			this.setTree(newTree);
-		//}
+			this.setEverythingDirty(true);
+			
+			// The nodes are shared, so the kernel tree now looks edited although it has not changed
+			if (!edited) ((GTKGeneTree) newTree).dirtiedByPointer = true;
+			return;
+		}
+		
+		// The same kernel tree, but its nodes were swapped by a restore
+		if (this.root != newTree.getRoot() || this.m_nodes != newTree.getNodesAsArray()) {
+			this.setTree(newTree);
+		}
+		
+		// The same kernel tree, edited in place. The nodes are shared, so their dirty flags already say what has changed
+		if (((GTKGeneTree) newTree).isEdited()) {
+			this.setSomethingIsDirty(true);
+		}
 	}
 	
 	
@@ -91,7 +110,6 @@ public class GTKPointerTree extends Tree {
         nodeCount = tree.getNodeCount();
         this.m_nodes = tree.getNodesAsArray();
 		//this.initArrays();
-		this.setEverythingDirty(true);
 
         // ensure root is the last node
         if (m_nodes != null && root.getNr() != m_nodes.length - 1) {
@@ -133,6 +151,7 @@ public class GTKPointerTree extends Tree {
         tree.leafNodeCount = leafNodeCount;
         tree.treeIndex = treeIndex;
         tree.indicator = indicator;
+        tree.pointedTree = pointedTree;
         tree.indicatorVector =  indicatorVector;
         tree.kernel= kernel;
 		return tree;
@@ -167,6 +186,13 @@ public class GTKPointerTree extends Tree {
 
 	@Override
     public void setEverythingDirty(final boolean isDirty) {
+		
+		// The nodes are shared with the kernel tree, so make sure the kernel knows about an edit before it is cleaned away
+		if (this.pointedTree instanceof GTKGeneTree) {
+			GTKGeneTree tree = (GTKGeneTree) this.pointedTree;
+			if (tree.isEdited() && !tree.dirtiedByPointer) tree.storeIsCurrent = false;
+			if (!isDirty) tree.clearEditFlags();
+		}
 		super.setEverythingDirty(isDirty);
 	}
 	
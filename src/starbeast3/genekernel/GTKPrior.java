@@ -3,11 +3,14 @@ package starbeast3.genekernel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
 import beast.base.inference.Distribution;
+import beast.base.inference.util.InputUtil;
 import beast.base.core.Input;
 import beast.base.inference.State;
 import beast.base.inference.StateNode;
@@ -63,6 +66,10 @@ public class GTKPrior extends Distribution {
     final public Input<Boolean> pointerPriorInput = 
     		new Input<>("pointerPrior", "If true, only tree pointers have prior density (except for illegal kernal trees which are rejected). If false,"
     				+ "only kernel trees have prior density. ", true);
+    
+    final public Input<Integer> cacheSizeInput = 
+    		new Input<>("cacheSize", "Number of gene tree densities to remember for each kernel tree, so that returning to a previous "
+    				+ "kernel tree state (eg. after a rejected proposal) does not recalculate its density. Set to 0 to disable.", 4);
 	
     
 	List<GeneTreeForSpeciesTreeDistribution> geneDistributions;
@@ -78,6 +85,20 @@ public class GTKPrior extends Distribution {
 	
 	
 	
+	// Densities of the kernel trees by tree state, least recently used first out
+	Map<GeneTreeForSpeciesTreeDistribution, DensityCache> densityCaches;
+	int cacheSize;
+	long cacheClock;
+	
+	// Identifies the state of the species tree and population model, which the cached densities also depend on
+	long modelVersion;
+	long storedModelVersion;
+	long modelVersionCount;
+	
+	// Number of pointers to each kernel tree
+	int[] pointerCounts = new int[0];
+	
+	
 	// Storing
 	GeneTreeForSpeciesTreeDistribution deletedPrior;
 	int deletedPriorIndex;
@@ -175,6 +196,13 @@ public class GTKPrior extends Distribution {
 		this.expanded = false;
 		this.deletedPriorIndex = -1;
 		
+		this.cacheSize = Math.max(0, cacheSizeInput.get());
+		this.densityCaches = new IdentityHashMap<>();
+		this.cacheClock = 0;
+		this.modelVersion = 0;
+		this.storedModelVersion = 0;
+		this.modelVersionCount = 0;
+		
 		needsUpdating = false;
 		
 	}
@@ -241,10 +269,11 @@ public class GTKPrior extends Distribution {
 		// Gene tree distribution prior
 		int nKernelTrees = this.geneKernelSize.getValue();
 		boolean anIllegalTree = false;
+		if (this.pointerPrior) countPointers();
 		for (int kernelIndex = 0; kernelIndex < this.geneDistributions.size(); kernelIndex ++) {
 			
 			GeneTreeForSpeciesTreeDistribution prior = this.geneDistributions.get(kernelIndex);
-			double priorLogP = prior.calculateLogP();
+			double priorLogP = getDensity(prior);
 			
 			
 			// Always reject an illegal gene trees even if no-one points to it
@@ -254,12 +283,7 @@ public class GTKPrior extends Distribution {
 			// Weight each count gene tree prior by how many trees are pointing to it
 			if (this.pointerPrior) {
 				
-				int numPointingTo = 0;
-				for (int pointerIndex = 0; pointerIndex < this.indicator.getDimension(); pointerIndex ++) {
-					if (this.indicator.getValue(pointerIndex) == kernelIndex) numPointingTo ++;
-				}
-				
-				logP += numPointingTo * priorLogP;
+				logP += this.pointerCounts[kernelIndex] * priorLogP;
 				
 			}
 			
@@ -287,6 +311,95 @@ public class GTKPrior extends Distribution {
 	}
 	
 
+	// Number of pointers to each kernel tree, in a single pass over the indicator
+	private void countPointers() {
+		if (this.pointerCounts.length < this.geneDistributions.size()) {
+			this.pointerCounts = new int[this.geneDistributions.size()];
+		}
+		Arrays.fill(this.pointerCounts, 0);
+		for (int pointerIndex = 0; pointerIndex < this.indicator.getDimension(); pointerIndex ++) {
+			final int kernelIndex = this.indicator.getValue(pointerIndex);
+			if (kernelIndex >= 0 && kernelIndex < this.pointerCounts.length) this.pointerCounts[kernelIndex] ++;
+		}
+	}
+	
+	
+	/**
+	 * Density of a kernel tree, from the cache if this tree state has been seen before under the current species tree 
+	 * and population model
+	 * @param prior
+	 * @return
+	 */
+	private double getDensity(GeneTreeForSpeciesTreeDistribution prior) {
+		if (this.cacheSize == 0 || !(prior.getGeneTree() instanceof GTKGeneTree)) {
+			return prior.calculateLogP();
+		}
+		
+		final long treeVersion = ((GTKGeneTree) prior.getGeneTree()).getVersion();
+		DensityCache cache = this.densityCaches.get(prior);
+		if (cache == null) {
+			
+			// Forget the densities of deleted kernel trees
+			if (this.densityCaches.size() > 2 * this.geneDistributions.size()) {
+				this.densityCaches.keySet().retainAll(this.geneDistributions);
+			}
+			cache = new DensityCache(this.cacheSize);
+			this.densityCaches.put(prior, cache);
+		}
+		
+		final int hit = cache.find(treeVersion, this.modelVersion);
+		if (hit >= 0) {
+			cache.lastUsed[hit] = ++this.cacheClock;
+			
+			// Keep the distribution's own density in step, for anything that logs or reads it
+			prior.setCurrentLogP(cache.logPs[hit]);
+			return cache.logPs[hit];
+		}
+		
+		final double priorLogP = prior.calculateLogP();
+		cache.put(treeVersion, this.modelVersion, priorLogP, ++this.cacheClock);
+		return priorLogP;
+	}
+	
+	
+	/**
+	 * Densities of a kernel tree, keyed by the tree version and the model version
+	 */
+	private static class DensityCache {
+		
+		final long[] treeVersions;
+		final long[] modelVersions;
+		final double[] logPs;
+		final long[] lastUsed; // zero for an empty entry
+		
+		DensityCache(int size) {
+			treeVersions = new long[size];
+			modelVersions = new long[size];
+			logPs = new double[size];
+			lastUsed = new long[size];
+		}
+		
+		int find(long treeVersion, long modelVersion) {
+			for (int i = 0; i < lastUsed.length; i ++) {
+				if (lastUsed[i] > 0 && treeVersions[i] == treeVersion && modelVersions[i] == modelVersion) return i;
+			}
+			return -1;
+		}
+		
+		// Replace the least recently used entry
+		void put(long treeVersion, long modelVersion, double logP, long time) {
+			int oldest = 0;
+			for (int i = 1; i < lastUsed.length; i ++) {
+				if (lastUsed[i] < lastUsed[oldest]) oldest = i;
+			}
+			treeVersions[oldest] = treeVersion;
+			modelVersions[oldest] = modelVersion;
+			logPs[oldest] = logP;
+			lastUsed[oldest] = time;
+		}
+	}
+	
+
 	/**
 	 * Adds a new gene tree distribution to the end of the list
 	 * @param kernelTree
@@ -360,6 +473,7 @@ public class GTKPrior extends Distribution {
 	 @Override
 	 public void store() {
 		 super.store();
+		 storedModelVersion = modelVersion;
 		 
 		 //this.geneDistributions_stored.clear();
 		 for (GeneTreeForSpeciesTreeDistribution prior : this.geneDistributions) {
@@ -375,6 +489,7 @@ public class GTKPrior extends Distribution {
 	 @Override
 	 public void restore() {
 		 super.restore();
+		 modelVersion = storedModelVersion;
 		 
 		 // If a new tree prior was added, then remove it
 		 if (this.expanded) {
@@ -415,13 +530,24 @@ public class GTKPrior extends Distribution {
     @Override
     public boolean requiresRecalculation() {
     	needsUpdating = true;
+    	if (isDirty(speciesTreeInput) || isDirty(popModelInput) || isDirty(speciesTreePriorInput)) {
+    		modelVersion = ++modelVersionCount;
+    	}
     	for (GeneTreeForSpeciesTreeDistribution prior : this.geneDistributions) {
-			 prior.requiresRecalculation();
+    		if (prior.getGeneTree() instanceof GTKGeneTree) {
+    			((GTKGeneTree) prior.getGeneTree()).updateVersion();
+    		}
+			prior.requiresRecalculation();
 		}
         return true;
     }
 	
 	
+    private static boolean isDirty(Input<?> input) {
+    	return input.get() != null && InputUtil.isDirty(input);
+    }
+	
+	
 	@Override
 	public List<String> getArguments() {
 		return null;
@@ -0,0 +1,175 @@
+package starbeast3.genekernel;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.util.InputUtil;
+
+
+/**
+ * Tree likelihood of a pointer tree, which remembers the likelihood of each kernel tree state it has been wired to.
+ * The alignment is that of this likelihood, so a kernel tree state is identified by the kernel tree, its version and the
+ * version of the site model, branch rate model and data
+ */
+@Description("Tree likelihood of a tree which points to a kernel tree. Likelihoods are remembered by kernel tree state, "
+		+ "so that pointing back to a kernel tree which has not changed does not recalculate the likelihood.")
+public class GTKTreeLikelihood extends TreeLikelihood {
+
+
+	final public Input<GTKPrior> kernelPriorInput =
+			new Input<>("kernel", "The gene tree kernel prior of the pointer tree, so that this likelihood is told when the pointer is rewired", Validate.REQUIRED);
+
+	final public Input<Integer> cacheSizeInput =
+			new Input<>("cacheSize", "Number of kernel tree states to remember the likelihood of, least recently used first out. Set to 0 to disable.", 16);
+
+	final public Input<Double> cacheMemoryInput =
+			new Input<>("cacheMemory", "Maximum memory (in MB) taken by the remembered likelihoods, which keep one value per site pattern", 16.0);
+
+
+	GTKPointerTree pointer;
+	GTKPrior kernelPrior;
+
+	// Likelihoods by kernel tree state, least recently used first out
+	GTKGeneTree[] cachedTrees;
+	long[] cachedTreeVersions;
+	long[] cachedModelVersions;
+	double[] cachedLogPs;
+	double[][] cachedPatternLogPs;
+	long[] lastUsed; // zero for an empty entry
+	long cacheClock;
+
+	// Identifies the state of the site model, branch rate model and data, which the cached likelihoods also depend on
+	long modelVersion;
+	long storedModelVersion;
+	long modelVersionCount;
+
+	// Whether the partials of the likelihood core are older than the tree, because the likelihood was taken from the cache
+	boolean partialsStale;
+	boolean storedPartialsStale;
+
+
+	@Override
+	public void initAndValidate() {
+		if (!(treeInput.get() instanceof GTKPointerTree)) {
+			throw new IllegalArgumentException("GTKTreeLikelihood: the tree should be a GTKPointerTree");
+		}
+		super.initAndValidate();
+		this.pointer = (GTKPointerTree) treeInput.get();
+		this.kernelPrior = kernelPriorInput.get();
+
+		// The cache keeps the likelihood of every site pattern, so that it can be put back when a kernel tree is revisited.
+		// Beagle keeps its own pattern likelihoods, so the cache is not used with beagle
+		final int patternCount = dataInput.get().getPatternCount();
+		final long bytesPerEntry = 8L * patternCount + 64;
+		long size = Math.max(0, cacheSizeInput.get());
+		size = Math.min(size, (long) (cacheMemoryInput.get() * 1024 * 1024 / bytesPerEntry));
+		if (beagle != null) size = 0;
+
+		cachedTrees = new GTKGeneTree[(int) size];
+		cachedTreeVersions = new long[(int) size];
+		cachedModelVersions = new long[(int) size];
+		cachedLogPs = new double[(int) size];
+		cachedPatternLogPs = new double[(int) size][];
+		lastUsed = new long[(int) size];
+		cacheClock = 0;
+
+		modelVersion = 0;
+		storedModelVersion = 0;
+		modelVersionCount = 0;
+		partialsStale = false;
+		storedPartialsStale = false;
+	}
+
+
+	@Override
+	public double calculateLogP() {
+		if (lastUsed.length == 0 || !(pointer.pointedTree instanceof GTKGeneTree)) {
+			return super.calculateLogP();
+		}
+
+		final GTKGeneTree kernelTree = (GTKGeneTree) pointer.pointedTree;
+		final long treeVersion = kernelTree.getVersion();
+		final int hit = find(kernelTree, treeVersion);
+		if (hit >= 0) {
+			lastUsed[hit] = ++cacheClock;
+			logP = cachedLogPs[hit];
+			System.arraycopy(cachedPatternLogPs[hit], 0, patternLogLikelihoods, 0, patternLogLikelihoods.length);
+
+			// The partials were not calculated for this tree, so the next calculation has to start from the tips
+			partialsStale = true;
+			return logP;
+		}
+
+		if (partialsStale) hasDirt = Tree.IS_FILTHY;
+		super.calculateLogP();
+		partialsStale = false;
+		put(kernelTree, treeVersion);
+		return logP;
+	}
+
+
+	private int find(GTKGeneTree kernelTree, long treeVersion) {
+		for (int i = 0; i < lastUsed.length; i ++) {
+			if (lastUsed[i] > 0 && cachedTrees[i] == kernelTree && cachedTreeVersions[i] == treeVersion && cachedModelVersions[i] == modelVersion) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+	// Replace the least recently used entry
+	private void put(GTKGeneTree kernelTree, long treeVersion) {
+		int oldest = 0;
+		for (int i = 1; i < lastUsed.length; i ++) {
+			if (lastUsed[i] < lastUsed[oldest]) oldest = i;
+		}
+		if (cachedPatternLogPs[oldest] == null) cachedPatternLogPs[oldest] = new double[patternLogLikelihoods.length];
+		System.arraycopy(patternLogLikelihoods, 0, cachedPatternLogPs[oldest], 0, patternLogLikelihoods.length);
+		cachedTrees[oldest] = kernelTree;
+		cachedTreeVersions[oldest] = treeVersion;
+		cachedModelVersions[oldest] = modelVersion;
+		cachedLogPs[oldest] = logP;
+		lastUsed[oldest] = ++cacheClock;
+	}
+
+
+	@Override
+	public boolean requiresRecalculation() {
+		if (isDirty(siteModelInput) || isDirty(branchRateModelInput) || isDirty(dataInput)) {
+			modelVersion = ++modelVersionCount;
+		}
+
+		// Rewire the pointer tree if its indicator has changed, then identify the kernel tree state
+		kernelPrior.getGeneTreeDistributions();
+		if (pointer.pointedTree instanceof GTKGeneTree) {
+			((GTKGeneTree) pointer.pointedTree).updateVersion();
+		}
+		return super.requiresRecalculation();
+	}
+
+
+	private static boolean isDirty(Input<?> input) {
+		return input.get() != null && InputUtil.isDirty(input);
+	}
+
+
+	@Override
+	public void store() {
+		super.store();
+		storedModelVersion = modelVersion;
+		storedPartialsStale = partialsStale;
+	}
+
+
+	@Override
+	public void restore() {
+		super.restore();
+		modelVersion = storedModelVersion;
+		partialsStale = storedPartialsStale;
+	}
+
+
+}
@@ -23,6 +23,9 @@ public class GeneTreeKernel extends StateNode {
 	List<GTKGeneTree> trees;
 	List<GTKGeneTree> storedTrees;
 	
+	// Whether trees have been added, deleted or replaced since the last store
+	boolean membershipChanged = true;
+	
 	
 	public GeneTreeKernel() {
 		
@@ -67,6 +70,7 @@ public class GeneTreeKernel extends StateNode {
 	public void deleteTree(int index) {
 		this.startEditing();
 		this.trees.remove(index);
+		this.membershipChanged = true;
 	}
 
 	
@@ -85,6 +89,8 @@ public class GeneTreeKernel extends StateNode {
 	public void setTrees(List<GTKGeneTree> newTrees) {
 		this.startEditing();
 		this.trees = newTrees;
+		this.membershipChanged = true;
+		for (GTKGeneTree tree : this.trees) tree.storeIsCurrent = false;
 	}
 	
 	/**
@@ -93,6 +99,7 @@ public class GeneTreeKernel extends StateNode {
 	public void addTree(GTKGeneTree tree) {
 		this.startEditing();
 		this.trees.add(tree);
+		this.membershipChanged = true;
 	}
 	
 
@@ -143,6 +150,8 @@ public class GeneTreeKernel extends StateNode {
 	public void assignFrom(StateNode other) {
 		GeneTreeKernel kernel = (GeneTreeKernel) other;
 		this.trees = kernel.getTrees();
+		this.membershipChanged = true;
+		for (GTKGeneTree tree : this.trees) tree.storeIsCurrent = false;
 	}
 
 	@Override
@@ -173,35 +182,45 @@ public class GeneTreeKernel extends StateNode {
 	@Override
     public void startEditing(final Operator operator) {
         super.startEditing(operator);
+        
+        // The operator may edit any tree from here on, so dirty nodes count as edits again
+        for (GTKGeneTree tree : this.trees) tree.dirtiedByPointer = false;
     }
 
 
+	/* Copy on write: only the trees which have changed since they were last stored are stored again. 
+	 * Which trees will be edited is not known yet, but a tree which was not edited in the previous steps 
+	 * still has an up to date stored copy */
 	@Override
 	protected void store() {
-		this.storedTrees.clear();
+		if (this.membershipChanged || this.storedTrees.size() != this.trees.size()) {
+			this.storedTrees.clear();
+			this.storedTrees.addAll(this.trees);
+			this.membershipChanged = false;
+		}
 		for (GTKGeneTree tree : this.trees) {
-			this.storedTrees.add(tree);
-			tree.store();
+			if (!tree.storeIsCurrent) tree.store();
 		}
 		
 		
 	}
 
+	
+	/* Only the trees which have been edited are restored. The others keep their nodes, so that trees pointing to them
+	 * do not need to be rewired or recalculated */
 	@Override
 	public void restore() {
 
-		// Point 'temp' to the stored trees
-		List<GTKGeneTree> temp = new ArrayList<GTKGeneTree>();
 		for (GTKGeneTree tree : this.storedTrees) {
-			temp.add(tree);
-			tree.restore();
+			if (tree.isEdited()) tree.restore();
 		}
 		
-		// Point 'storedTrees' to the changed trees
-		this.storedTrees = this.trees;
-		
-		// Point 'trees' to temp
-		this.trees = temp;
+		// If trees were added or deleted, point 'trees' to the stored trees
+		if (this.membershipChanged) {
+			List<GTKGeneTree> temp = this.trees;
+			this.trees = this.storedTrees;
+			this.storedTrees = temp;
+		}
 
 		hasStartedEditing = false;
 		
@@ -213,7 +232,10 @@ public class GeneTreeKernel extends StateNode {
 	@Override
 	public void setEverythingDirty(boolean isDirty) {
 		setSomethingIsDirty(isDirty);
-		for (Tree tree : this.trees) {
+		for (GTKGeneTree tree : this.trees) {
+			
+			// Edited trees no longer match their stored copy
+			if (tree.isEdited() && !tree.dirtiedByPointer) tree.storeIsCurrent = false;
 			tree.setEverythingDirty(isDirty);
 		}
 	}
@@ -1,6 +1,7 @@
 package starbeast3.inference;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -8,10 +9,13 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
 
@@ -24,6 +28,7 @@ import beast.base.core.Input;
 import beast.base.inference.Logger;
 import beast.base.inference.Logger.LogFileMode;
 import beast.base.inference.MCMC;
+import beast.base.inference.State;
 import beast.base.inference.StateNodeInitialiser;
 import beast.base.core.Log;
 import beast.base.core.ProgramStatus;
@@ -39,6 +44,8 @@ public class ShortChainsMCMC extends MCMC {
     final public Input<Integer> sampleCountInput = new Input<>("sampleCount","number of samples to take to represent posterior distribution", 100);
     final public Input<Double> pLevelInput = new Input<>("pLevel","significance level for testing posterior distribution has not changed", 0.5);
     final public Input<Double> multiplierInput = new Input<>("chainLengthMultiplier", "chain length multiplier, used to increase chain length after each iteration", 1.0);
+    final public Input<Boolean> inMemoryInput = new Input<>("inMemory", "keep the state and logs of every sample in memory instead of in per-sample state files "
+    		+ "and per-thread log files. Samples are handed to whichever thread is free, and each sample's log lines are appended to the combined logs as soon as it finishes", false);
 
 	/** plugins representing MCMC with model, loggers, etc **/
 	private ShortMCMC [] mcmcs;
@@ -48,11 +55,20 @@ public class ShortChainsMCMC extends MCMC {
 	private double pLevel;
 	private int round;
 	private double multiplier;
+	
+	// In memory mode
+	private boolean inMemory;
+	private String [] stateSnapshots; // serialised state of each sample
+	private String [] logHeaders;
+	private PrintStream [] combinedLogs; // by logger, appended to as each sample finishes
+	private int [] combinedSampleCount;
+	private AtomicInteger nextSample;
 
 	
 	@Override
 	public void initAndValidate() {
 		round = 0;
+		inMemory = inMemoryInput.get();
 		pLevel = pLevelInput.get();
 		nrOfThreads = Math.min(maxNrOfThreadsInput.get(), ProgramStatus.m_nThreads);
 		// prevent any of the short chain MCMSs threading:
@@ -72,6 +88,7 @@ public class ShortChainsMCMC extends MCMC {
 		sXML = sXML.replaceAll("pLevel=[^ >]*", "");
 		sXML = sXML.replaceAll("sampleCount=[^ >]*", "");
 		sXML = sXML.replaceAll("chainLengthMultiplier=[^ >]*", "");		
+		sXML = sXML.replaceAll("inMemory=[^ >]*", "");		
 		sXML = sXML.replaceAll("logEvery=\"[0-9]*\"", "logEvery=\"" + Integer.MAX_VALUE + "\"");
 		String ShortMCMCLogger = ShortMCMCLogger.class.getName();
 		sXML = sXML.replaceAll("spec=\"Logger\"", "spec=\"" + ShortMCMCLogger + "\"");
@@ -115,7 +132,7 @@ public class ShortChainsMCMC extends MCMC {
             try {
     			String sXML2 = sXML;
     			sXML2 = sXML2.replaceAll("fileName=\"","fileName=\"" + i);
-    			if (sXML2.equals(sXML)) {
+    			if (sXML2.equals(sXML) && !inMemory) {
     				// Uh oh, no seed in log name => logs will overwrite
     				throw new IllegalArgumentException("Use $(seed) in log file name to guarantee log files do not overwrite");
     			}
@@ -131,6 +148,11 @@ public class ShortChainsMCMC extends MCMC {
     					mcmcs[i].loggersInput.get().remove(iLogger);
     				}
     			}
+    			if (inMemory) {
+    				for (Logger logger : mcmcs[i].loggersInput.get()) {
+    					((ShortMCMCLogger) logger).setMemoryLog(new ByteArrayOutputStream());
+    				}
+    			}
             } catch (Exception e) {
                 Log.err.println("Something went wrong initialising MCMC[" + i + "]");
                 e.printStackTrace();
@@ -174,9 +196,142 @@ public class ShortChainsMCMC extends MCMC {
         
     } // CoreRunnable
 
+    /**
+     * Runs the chains of samples claimed from nextSample, so that a thread which finishes early takes the next remaining sample
+     */
+    class SampleRunnable implements Runnable {
+    	ShortMCMC mcmc;
+    	double [] posterior;
+    	
+    	SampleRunnable(ShortMCMC core, double [] posterior) {
+    		mcmc = core;
+    		this.posterior = posterior;
+    	}
+    	
+        @Override
+		public void run() {
+            try {
+            	runSamples(mcmc, posterior);
+            } catch (Exception e) {
+                Log.err.println("Something went wrong in a calculation of " + mcmc.getID());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            countDown.countDown();
+        }
+        
+    } // SampleRunnable
+    
+    
+    private void runSamples(ShortMCMC mcmc, double [] posterior) throws IOException, SAXException, ParserConfigurationException {
+    	int i;
+    	while ((i = nextSample.getAndIncrement()) < posterior.length) {
+    		mcmc.setChainLength(chainLength);
+    		mcmc.setStateSnapshot(stateSnapshots[i]);
+    		mcmc.run();
+    		stateSnapshots[i] = mcmc.getStateSnapshot();
+    		posterior[i] = mcmc.robustlyCalcPosterior(mcmc.posteriorInput.get());
+    		appendLogs(mcmc, i);
+    		Log.warning.print(i + " ");
+    	}
+    }
+    
+    
+    /**
+     * Append the lines logged by the latest run of sample i to the combined logs, after the log headers if they
+     * have not been written yet. The samples are renumbered in the order in which they finish
+     */
+    private void appendLogs(ShortMCMC mcmc, int i) {
+    	for (int k = 0; k < logHeaders.length; k++) {
+    		String [] lines = ((ShortMCMCLogger) mcmc.loggersInput.get().get(k)).getMemoryLog().toString().split("\\r?\\n");
+    		boolean isTreeLog = lines.length > 0 && lines[0].toUpperCase().startsWith("#NEXUS");
+    		StringBuilder header = new StringBuilder();
+    		List<String> samples = new ArrayList<>();
+    		boolean inHeader = true;
+    		for (String str : lines) {
+    			if (inHeader) {
+    				if (isTreeLog && str.startsWith("tree STATE")) {
+    					inHeader = false;
+    				} else {
+    					header.append(str).append('\n');
+    					if (!isTreeLog && !str.startsWith("#")) {
+    						// column names
+    						inHeader = false;
+    					}
+    					continue;
+    				}
+    			}
+    			if (isTreeLog && !str.startsWith("tree STATE")) continue;
+    			if (str.length() == 0) continue;
+    			samples.add(str);
+    		}
+    		synchronized (this) {
+    			if (logHeaders[k] == null) {
+    				logHeaders[k] = header.toString();
+    				combinedLogs[k].print(logHeaders[k]);
+    			}
+    			for (String str : samples) {
+    				// renumber
+    				if (isTreeLog) {
+    					str = "tree STATE_" + combinedSampleCount[k] + str.substring(str.indexOf('='));
+    				} else {
+    					str = combinedSampleCount[k] + str.substring(str.indexOf('\t'));
+    				}
+    				combinedSampleCount[k]++;
+    				combinedLogs[k].println(str);
+    			}
+    			combinedLogs[k].flush();
+    		}
+    	}
+    }
+    
+    
+    /**
+     * Finish off and close the combined logs
+     */
+    private void closeCombinedLogs() {
+    	for (int k = 0; k < combinedLogs.length; k++) {
+    		if (logHeaders[k] != null && logHeaders[k].toUpperCase().startsWith("#NEXUS")) {
+    			combinedLogs[k].println("End;");
+    		}
+    		combinedLogs[k].close();
+    	}
+    }
+    
+    
+    private double [] calculateInMemory(long chainLength) {
+        try {
+            double [] posterior = new double[sampleCountInput.get()];
+            nextSample = new AtomicInteger(0);
+            
+            // kick off nrOfThreads-1 threads, and do the work of the last one in the main thread
+            if (nrOfThreads > 1) {
+	            countDown = new CountDownLatch(nrOfThreads - 1);
+	            for (int i = 0; i < nrOfThreads-1; i++) {
+	                exec.execute(new SampleRunnable(mcmcs[i], posterior));
+	            }
+            }
+            runSamples(mcmcs[nrOfThreads - 1], posterior);
+            
+            if (nrOfThreads > 1) {
+            	countDown.await();
+            }
+            Log.info("\nEnd of round " + round);
+            
+            return posterior;
+        } catch (RejectedExecutionException | InterruptedException | IOException | SAXException | ParserConfigurationException e) {
+        	e.printStackTrace();
+        	throw new RuntimeException(e);
+        }
+    }
+    
+    
     CountDownLatch countDown;
 
     private double [] calculateUsingThreads(long chainLength) {
+    	if (inMemory) {
+    		return calculateInMemory(chainLength);
+    	}
         try {
 
             int start = 0;
@@ -230,6 +385,47 @@ public class ShortChainsMCMC extends MCMC {
 		long startTime = System.currentTimeMillis();
 		
 		
+		if (inMemory) {
+			initSnapshots();
+		} else {
+			initStateFiles();
+		}
+
+		Logger.FILE_MODE = LogFileMode.resume;
+		
+		chainLength = chainLengthInput.get();
+		double [] newSample = calculateUsingThreads(chainLength);
+		double [] oldSample;
+		
+		do {
+			round++;
+			oldSample = newSample;
+			newSample = calculateUsingThreads(chainLength);
+			chainLength *= multiplier;
+		} while (!stop(oldSample, newSample));
+		
+		long endTime = System.currentTimeMillis();
+        Log.info.println("Total calculation time: " + (endTime - startTime) / 1000.0 + " seconds");
+
+        
+        // in memory, the combined logs have been appended to as every sample finished
+        if (inMemory) {
+        	closeCombinedLogs();
+        } else {
+	        try {
+				combineLogs();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+        }
+
+	} // run
+	
+	
+	/**
+	 * Store the starting state, and copy it to the state file of every sample
+	 */
+	private void initStateFiles() {
 		if (Logger.FILE_MODE != Logger.LogFileMode.resume) {
 			
 			startStateInput.get().initialise();
@@ -251,31 +447,57 @@ public class ShortChainsMCMC extends MCMC {
 				throw new IllegalArgumentException(e);
 			}
 		}
-
-		Logger.FILE_MODE = LogFileMode.resume;
-		
-		chainLength = chainLengthInput.get();
-		double [] newSample = calculateUsingThreads(chainLength);
-		double [] oldSample;
-		
-		do {
-			round++;
-			oldSample = newSample;
-			newSample = calculateUsingThreads(chainLength);
-			chainLength *= multiplier;
-		} while (!stop(oldSample, newSample));
+	}
+	
+	
+	/**
+	 * Set up the starting state of every sample in memory, from the state file when resuming.
+	 * As with state files, a new run stores its starting state, so that it can be resumed from there
+	 */
+	private void initSnapshots() {
+		State state = startStateInput.get();
+		state.initialise();
+		state.setStateFileName(stateFileName);
+		if (Logger.FILE_MODE != Logger.LogFileMode.resume) {
+            for (final StateNodeInitialiser initialiser : initialisersInput.get()) {
+                initialiser.initStateNodes();
+            }
+            state.storeToFile(0);
+		} else {
+			try {
+				state.restoreFromFile();
+			} catch (IOException | SAXException | ParserConfigurationException e) {
+				e.printStackTrace();
+				throw new IllegalArgumentException(e);
+			}
+		}
 		
-		long endTime = System.currentTimeMillis();
-        Log.info.println("Total calculation time: " + (endTime - startTime) / 1000.0 + " seconds");
-
-        
-        try {
-			combineLogs();
-		} catch (IOException e) {
-			e.printStackTrace();
+		// The snapshots are immutable, so every sample can start from the same one
+		String snapshot = state.toXML(0);
+		stateSnapshots = new String[sampleCountInput.get()];
+		for (int i = 0; i < stateSnapshots.length; i++) {
+			stateSnapshots[i] = snapshot;
 		}
-
-	} // run
+		
+		int logCount = 0;
+        for (Logger log : loggersInput.get()) {
+        	if (log.fileNameInput.get() != null) logCount++;
+        }
+        logHeaders = new String[logCount];
+        combinedLogs = new PrintStream[logCount];
+        combinedSampleCount = new int[logCount];
+        int k = 0;
+        for (Logger log : loggersInput.get()) {
+        	if (log.fileNameInput.get() != null) {
+        		try {
+        			combinedLogs[k++] = new PrintStream(log.fileNameInput.get());
+        		} catch (IOException e) {
+        			e.printStackTrace();
+        			throw new IllegalArgumentException(e);
+        		}
+        	}
+        }
+	}
 	
 	private void combineLogs() throws IOException {
         // combine logs
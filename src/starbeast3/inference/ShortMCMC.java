@@ -13,11 +13,15 @@ import beast.base.core.Description;
 import beast.base.inference.Logger;
 import beast.base.inference.MCMC;
 import beast.base.core.Log;
+import starbeast3.util.ChainRandomizer;
 
 @Description("Runs MCMC silently inside ShortChainMCMC -- do not use directly")
 public class ShortMCMC extends MCMC {
 	private PrintStream nullstream = null;
 	
+	// If set, the state is restored from and stored to this serialised snapshot, instead of the state file
+	private String stateSnapshot = null;
+	
     @Override
     public void run() throws IOException, SAXException, ParserConfigurationException {
         // set up state (again). Other beastObjects may have manipulated the
@@ -32,9 +36,13 @@ public class ShortMCMC extends MCMC {
         state.setEverythingDirty(true);
         posterior = posteriorInput.get();
         
-        Log.setLevel(Log.Level.error);
-        state.restoreFromFile();
-        Log.setLevel(Log.Level.info);
+        if (stateSnapshot != null) {
+        	state.fromXML(stateSnapshot);
+        } else {
+	        Log.setLevel(Log.Level.error);
+	        state.restoreFromFile();
+	        Log.setLevel(Log.Level.info);
+        }
 
 
         if (nullstream == null) {
@@ -56,6 +64,9 @@ public class ShortMCMC extends MCMC {
         oldLogLikelihood = state.robustlyCalcPosterior(posterior);
 
         state.storeCalculationNodes();
+        
+        // Reseed the random number streams of any parallel chains for this chain
+        ChainRandomizer.reset();
 
         
         // do the sampling
@@ -88,12 +99,29 @@ public class ShortMCMC extends MCMC {
 
         close();
 
-        state.storeToFile(chainLength);
-        operatorSchedule.storeToFile();
+        if (stateSnapshot != null) {
+        	stateSnapshot = state.toXML(chainLength);
+        } else {
+	        state.storeToFile(chainLength);
+	        operatorSchedule.storeToFile();
+        }
     } // run;
 
 	public void setChainLength(long chainLength) {
 		this.chainLength = chainLength;
 	}
+	
+	/**
+	 * Run from this serialised state (see State.toXML) instead of the state file. 
+	 * After the run, getStateSnapshot returns the final state
+	 * @param stateSnapshot
+	 */
+	public void setStateSnapshot(String stateSnapshot) {
+		this.stateSnapshot = stateSnapshot;
+	}
+	
+	public String getStateSnapshot() {
+		return stateSnapshot;
+	}
 
 }
@@ -1,6 +1,7 @@
 package starbeast3.inference;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -13,9 +14,18 @@ import beast.base.inference.Logger;
 import beast.base.core.Log;
 
 public class ShortMCMCLogger extends Logger {
+	
+	// If set, the log of the current run is written to this buffer instead of the log file
+	private ByteArrayOutputStream memoryLog = null;
 
 	@Override
 	protected boolean openLogFile() throws IOException {
+		if (memoryLog != null) {
+			memoryLog.reset();
+			m_out = new PrintStream(memoryLog);
+			return true;
+		}
+		
 		String fileName = fileNameInput.get();
 		final File file = new File(fileName);
 		if (file.exists()) {
@@ -104,5 +114,13 @@ public class ShortMCMCLogger extends Logger {
 	public void setEvery(long every) {
 		this.every = every;
 	}
+	
+	public void setMemoryLog(ByteArrayOutputStream memoryLog) {
+		this.memoryLog = memoryLog;
+	}
+	
+	public ByteArrayOutputStream getMemoryLog() {
+		return memoryLog;
+	}
 
 }
@@ -0,0 +1,103 @@
+package starbeast3.math.distributions;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.NormalDistribution;
+import org.apache.commons.math.distribution.NormalDistributionImpl;
+
+import beast.base.inference.distribution.ParametricDistribution;
+
+
+/**
+ * Inverse cumulative probabilities for the discretised and quantile parameterised relaxed clocks, so that a change
+ * in the rate distribution does not need a call into commons-math per rate.
+ *
+ * Lognormal bins: the bin rates are exp(M + S z_i), where z_i is the standard normal quantile at the midpoint of bin i.
+ * The z_i do not depend on M or S, so they are computed once and a new stdev costs one exp per bin.
+ *
+ * Quantile lattice: the inverse CDF of a parametric distribution at evenly spaced lattice points, which is filled
+ * lazily and kept until the distribution changes. Rates in between lattice points are interpolated linearly.
+ */
+public class InverseCDFLookup {
+
+
+	/**
+	 * Standard normal quantiles at the midpoints (i + 0.5) / nBins of nBins equal probability bins
+	 * @param nBins
+	 * @return
+	 */
+	public static double[] getStandardNormalBinQuantiles(int nBins) {
+		final NormalDistribution standardNormal = new NormalDistributionImpl(0, 1);
+		final double[] z = new double[nBins];
+		try {
+			for (int i = 0; i < nBins; i++) {
+				z[i] = standardNormal.inverseCumulativeProbability((i + 0.5) / nBins);
+			}
+		} catch (MathException e) {
+			throw new RuntimeException("Failed to compute inverse cumulative probability!");
+		}
+		return z;
+	}
+
+
+	/**
+	 * Rates of the equal probability bins of a lognormal distribution with this mean (in real space) and stdev (in log space)
+	 * @param z standard normal bin quantiles from getStandardNormalBinQuantiles
+	 * @param mean
+	 * @param stdev
+	 * @param binRates output, of the same length as z
+	 */
+	public static void getLogNormalBinRates(double[] z, double mean, double stdev, double[] binRates) {
+		final double M = Math.log(mean) - (0.5 * stdev * stdev);
+		for (int i = 0; i < z.length; i++) {
+			binRates[i] = Math.exp(M + stdev * z[i]);
+		}
+	}
+
+
+	/**
+	 * Lattice point of the quantile parameterisation. The end points are moved inwards, as the inverse CDF
+	 * of most rate distributions is not finite at 0 or 1
+	 * @param i
+	 * @param latticeSize
+	 * @return
+	 */
+	public static double getLatticeQuantile(int i, int latticeSize) {
+		if (i == 0) return 0.1 / (latticeSize - 1);
+		if (i == latticeSize - 1) return (latticeSize - 1 - 0.1) / (latticeSize - 1);
+		return ((double) i) / (latticeSize - 1);
+	}
+
+
+	/**
+	 * Piecewise linear approximation of the inverse CDF of distr at quantile q. Lattice points which are still 0
+	 * are computed and cached in lattice, which should be reset to 0 when the distribution changes
+	 * @param distr
+	 * @param q
+	 * @param lattice
+	 * @return
+	 */
+	public static double getInterpolatedRate(ParametricDistribution distr, double q, double[] lattice) {
+		final int latticeSize = lattice.length;
+		final double v = q * (latticeSize - 1);
+		final int i = (int) v;
+
+		try {
+			if (lattice[i] == 0.0) {
+				lattice[i] = distr.inverseCumulativeProbability(getLatticeQuantile(i, latticeSize));
+			}
+			if (i < latticeSize - 1 && lattice[i + 1] == 0.0) {
+				lattice[i + 1] = distr.inverseCumulativeProbability(getLatticeQuantile(i + 1, latticeSize));
+			}
+		} catch (MathException e) {
+			throw new RuntimeException("Failed to compute inverse cumulative probability!");
+		}
+
+		double r = lattice[i];
+		if (i < latticeSize - 1) {
+			r += (lattice[i + 1] - lattice[i]) * (v - i);
+		}
+		return r;
+	}
+
+
+}
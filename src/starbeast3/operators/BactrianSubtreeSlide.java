@@ -59,7 +59,7 @@ import beast.base.core.Input;
 import beast.base.inference.operator.kernel.KernelDistribution;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
-import beast.base.util.Randomizer;
+import starbeast3.util.ChainRandomizer;
 import starbeast3.genekernel.GTKTreeOperator;
 
 
@@ -107,7 +107,7 @@ public class BactrianSubtreeSlide extends GTKTreeOperator {
         // 1. choose a random node avoiding root
         final int nodeCount = tree.getNodeCount();
         do {
-            i = tree.getNode(Randomizer.nextInt(nodeCount));
+            i = tree.getNode(ChainRandomizer.nextInt(nodeCount));
         } while (i.isRoot());
 
         final Node p = i.getParent();
@@ -185,7 +185,7 @@ public class BactrianSubtreeSlide extends GTKTreeOperator {
                 }
 
                 // pick a random parent/child destination edge uniformly from options
-                final int childIndex = Randomizer.nextInt(newChildren.size());
+                final int childIndex = ChainRandomizer.nextInt(newChildren.size());
                 final Node newChild = newChildren.get(childIndex);
                 final Node newParent = newChild.getParent();
 
@@ -19,6 +19,7 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.util.Randomizer;
+import starbeast3.core.ParallelLoci;
 import starbeast3.evolution.branchratemodel.BranchRateModelSB3;
 import starbeast3.evolution.branchratemodel.StarBeast3Clock;
 import starbeast3.evolution.branchratemodel.UCRelaxedClockModelSB3;
@@ -49,9 +50,8 @@ public class ConstantDistanceOperatorSpeciesTree extends GTKTreeOperator {
     private RealParameter popsizes;
     private boolean proposeNewPopulationSizes;
     
-    private Node[] geneNodeMap_x;
-    private Node[] geneNodeMap_L;
-    private Node[] geneNodeMap_R;
+    // Number of gene tree nodes moved on branches x, L, and R, for each gene tree
+    private int[] numNodesMapped = new int[0];
     
     
     // Quantiles
@@ -341,74 +341,34 @@ public class ConstantDistanceOperatorSpeciesTree extends GTKTreeOperator {
        
        
        // Iterate through gene trees
-       Node geneTreeNode;
-       double t_g;
-       double t_g_;
+       final int geneCount = geneTreeDistributions.size();
+       if (numNodesMapped.length < 3 * geneCount) numNodesMapped = new int[3 * geneCount];
+       final double ratio_x = r_x / r_x_;
+       final double ratio_L = r_L / r_L_;
+       final double ratio_R = r_R / r_R_;
+       final ParallelLoci parallelLoci = getParallelLoci();
+       if (parallelLoci == null) {
+    	   for (int i = 0; i < geneCount; i ++) {
+    		   proposeGeneTree(i, node, upper, t_L, t_R, ratio_x, ratio_L, ratio_R);
+    	   }
+       }else {
+    	   
+    	   // Each gene tree is independent of the others
+    	   ParallelLoci.startEditing(getTrees(this), this);
+    	   final Node x = node;
+    	   final double upper_ = upper;
+    	   parallelLoci.forEach(geneCount, i -> proposeGeneTree(i, x, upper_, t_L, t_R, ratio_x, ratio_L, ratio_R));
+       }
        
        
        // Count the number of nodes mapped to each branch (for computing Green ratio). Only count the nodes which change heights (ie. not the ultrametric leaves)
        int numNodesMappedX = 0;
        int numNodesMappedL = 0;
        int numNodesMappedR = 0;
-
-
-       
-       
-       for (int i = 0; i < geneTreeDistributions.size(); i ++) {
-    	   
-    	   
-    	   // Get the nodes in this gene tree which map to species tree branch x, L, and R 
-    	   geneNodeMap_x = geneTreeDistributions.get(i).mapSpeciesNodeToGeneTreeNodes(node);
-    	   geneNodeMap_L = geneTreeDistributions.get(i).mapSpeciesNodeToGeneTreeNodes(leftNode);
-    	   geneNodeMap_R = geneTreeDistributions.get(i).mapSpeciesNodeToGeneTreeNodes(rightNode);
-    	   
-
-    	   
-    	   
-    	   /* -------------------------------
- 	   	  	  ---------- Proposals ----------
- 	          -------------------------------  */
-    	   
-    	   // Propose new time for each gene tree node which mapped to branch above x
-    	   for (int j = 0; j < geneNodeMap_x.length; j ++) {
-    		   geneTreeNode = geneNodeMap_x[j];
-    		   if (geneTreeNode.isLeaf()) continue;
-    		   t_g = geneTreeNode.getHeight();
-    		   t_g_ = upper - (r_x / r_x_) * (upper - t_g);
-    		   if(t_g != t_g_ && !geneTreeNode.isLeaf()) {
-    			   geneTreeNode.setHeight(t_g_);
-    			   numNodesMappedX ++;
-    		   }
-    	   }
-    	   
-    	   
-    	   //  Propose new time for each gene tree node which mapped to branch above L
-    	   for (int j = 0; j < geneNodeMap_L.length; j ++) {
-    		   geneTreeNode = geneNodeMap_L[j];
-    		   if (geneTreeNode.isLeaf()) continue;
-    		   t_g = geneTreeNode.getHeight();
-    		   t_g_ = t_L + (r_L / r_L_) * (t_g - t_L);
-    		   if(t_g != t_g_ && !geneTreeNode.isLeaf()) {
-    			   geneTreeNode.setHeight(t_g_);
-    			   numNodesMappedL ++;
-    		   }
-    	   }
-    	   
-    	   
-    	   //  Propose new time for each gene tree node which mapped to branch above R
-    	   for (int j = 0; j < geneNodeMap_R.length; j ++) {
-    		   geneTreeNode = geneNodeMap_R[j];
-    		   if (geneTreeNode.isLeaf()) continue;
-    		   t_g = geneTreeNode.getHeight();
-    		   t_g_ = t_R + (r_R / r_R_) * (t_g - t_R);
-    		   if(t_g != t_g_ && !geneTreeNode.isLeaf()) {
-    			   geneTreeNode.setHeight(t_g_);
-    			   numNodesMappedR ++;
-    		   }
-    	   }
-    	   
-    	   
-
+       for (int i = 0; i < geneCount; i ++) {
+    	   numNodesMappedX += numNodesMapped[3*i];
+    	   numNodesMappedL += numNodesMapped[3*i + 1];
+    	   numNodesMappedR += numNodesMapped[3*i + 2];
        }
        
        
@@ -443,6 +403,77 @@ public class ConstantDistanceOperatorSpeciesTree extends GTKTreeOperator {
     
 
     
+    
+    
+    /*
+     * Propose new times for the nodes of gene tree i which map to the branches above x, L, and R,
+     * and record how many of them moved
+     */
+    private void proposeGeneTree(int i, Node node, double upper, double t_L, double t_R, double ratio_x, double ratio_L, double ratio_R) {
+    	
+    	// Get the nodes in this gene tree which map to species tree branch x, L, and R 
+    	final GeneTreeForSpeciesTreeDistribution gene = geneTreeDistributions.get(i);
+    	final Node[] geneNodeMap_x = gene.mapSpeciesNodeToGeneTreeNodes(node);
+    	final Node[] geneNodeMap_L = gene.mapSpeciesNodeToGeneTreeNodes(node.getChild(0));
+    	final Node[] geneNodeMap_R = gene.mapSpeciesNodeToGeneTreeNodes(node.getChild(1));
+    	
+    	Node geneTreeNode;
+    	double t_g;
+    	double t_g_;
+    	int numNodesMappedX = 0;
+    	int numNodesMappedL = 0;
+    	int numNodesMappedR = 0;
+    	
+    	
+    	/* -------------------------------
+    	   ---------- Proposals ----------
+    	   -------------------------------  */
+    	
+    	// Propose new time for each gene tree node which mapped to branch above x
+    	for (int j = 0; j < geneNodeMap_x.length; j ++) {
+    		geneTreeNode = geneNodeMap_x[j];
+    		if (geneTreeNode.isLeaf()) continue;
+    		t_g = geneTreeNode.getHeight();
+    		t_g_ = upper - ratio_x * (upper - t_g);
+    		if(t_g != t_g_) {
+    			geneTreeNode.setHeight(t_g_);
+    			numNodesMappedX ++;
+    		}
+    	}
+    	
+    	
+    	//  Propose new time for each gene tree node which mapped to branch above L
+    	for (int j = 0; j < geneNodeMap_L.length; j ++) {
+    		geneTreeNode = geneNodeMap_L[j];
+    		if (geneTreeNode.isLeaf()) continue;
+    		t_g = geneTreeNode.getHeight();
+    		t_g_ = t_L + ratio_L * (t_g - t_L);
+    		if(t_g != t_g_) {
+    			geneTreeNode.setHeight(t_g_);
+    			numNodesMappedL ++;
+    		}
+    	}
+    	
+    	
+    	//  Propose new time for each gene tree node which mapped to branch above R
+    	for (int j = 0; j < geneNodeMap_R.length; j ++) {
+    		geneTreeNode = geneNodeMap_R[j];
+    		if (geneTreeNode.isLeaf()) continue;
+    		t_g = geneTreeNode.getHeight();
+    		t_g_ = t_R + ratio_R * (t_g - t_R);
+    		if(t_g != t_g_) {
+    			geneTreeNode.setHeight(t_g_);
+    			numNodesMappedR ++;
+    		}
+    	}
+    	
+    	numNodesMapped[3*i] = numNodesMappedX;
+    	numNodesMapped[3*i + 1] = numNodesMappedL;
+    	numNodesMapped[3*i + 2] = numNodesMappedR;
+    	
+    }
+    
+    
     /*
     Tuning the parameter: twindowsize represents the range of Uniform distribution
      */
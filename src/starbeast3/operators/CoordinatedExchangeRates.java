@@ -5,6 +5,7 @@ import java.util.List;
 
 
 import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
 import beast.base.core.Input.Validate;
 import beast.base.inference.parameter.RealParameter;
 import beast.base.core.Log;
@@ -17,8 +18,10 @@ import beast.base.util.Randomizer;
 import orc.consoperators.ConsOperatorUtils;
 import orc.consoperators.InConstantDistanceOperator;
 import orc.consoperators.PiecewiseLinearDistribution;
+import starbeast3.core.ParallelLoci;
 import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
 import starbeast3.genekernel.GTKPrior;
+import starbeast3.util.ChainRandomizer;
 
 
 /**
@@ -38,11 +41,14 @@ public class CoordinatedExchangeRates extends InConstantDistanceOperator {
 	final public Input<RealParameter> popSizeInput = new Input<>("popSizes", "the constant population sizes associated with nodes in the tree.");
     final public Input<List<GeneTreeForSpeciesTreeDistribution>> geneTreeDistributionsInput = new Input<>("gene", "gene tree for species tree distribution for each of the genes", new ArrayList<>());
     final public Input<GTKPrior> geneTreeKernelPriorInput = new Input<>("geneTreeKernel", "the kernel of gene trees", Input.Validate.XOR, geneTreeDistributionsInput);
+    final public Input<Boolean> parallelInput = new Input<>("parallel", "whether to regraft the gene trees in parallel", false);
     
     private RealParameter popsizes;
     private List<GeneTreeForSpeciesTreeDistribution> geneTreeDistributions;
     private boolean proposeNewPopulationSizes;
     GTKPrior geneTreeKernelPrior;
+    ParallelLoci parallelLoci = null;
+    double[] geneLogHR = new double[0];
 	
     // Time proposal
     protected double tdp;
@@ -149,6 +155,8 @@ public class CoordinatedExchangeRates extends InConstantDistanceOperator {
         	geneTreeDistributions = geneTreeKernelPrior.getGeneTreeDistributions();
         }
         
+        if (parallelInput.get() && ProgramStatus.m_nThreads > 1) parallelLoci = new ParallelLoci();
+        
 		
 		
 	}
@@ -679,30 +687,43 @@ public class CoordinatedExchangeRates extends InConstantDistanceOperator {
 		List<List<Node>> nodesToRegraft = new ArrayList<List<Node>>();
 		
 	 	// Find all gene tree nodes that were in species D and need moving
-		for (int g = 0; g < geneTreeDistributions.size(); g++) {
-			
-			
-			List<Node> nodes = new ArrayList<Node>();
-			
-			// Find gene nodes from this gene tree which map to D
-			GeneTreeForSpeciesTreeDistribution geneTree = geneTreeDistributions.get(g);
-			Node[] geneNodeMap_D = geneTree.mapSpeciesNodeToGeneTreeNodes(D);
-			Node[] geneNodeMap_A = geneTree.mapSpeciesNodeToGeneTreeNodes(A);
-			
-			// Get the gene nodes which have exactly 1 child which only have descendents in B
-			for (int i = 0; i < geneNodeMap_D.length; i++) {
-				Node geneNode = geneNodeMap_D[i];
-				if (geneNodeNeedsToMove(geneNode, geneNodeMap_A)) nodes.add(geneNode);
+		if (parallelLoci == null) {
+			for (int g = 0; g < geneTreeDistributions.size(); g++) {
+				nodesToRegraft.add(getGeneNodesToRegraft(g, A, D));
 			}
+		}else {
 			
-			nodesToRegraft.add(nodes);
-			
-			
+			// Each gene tree is searched independently, and fills in its own slot
+			for (int g = 0; g < geneTreeDistributions.size(); g++) {
+				nodesToRegraft.add(null);
+			}
+			parallelLoci.forEach(geneTreeDistributions.size(), g -> nodesToRegraft.set(g, getGeneNodesToRegraft(g, A, D)));
 		}
 		
 		return nodesToRegraft;
 		
 	}
+	
+	
+	// Returns the branches of gene tree g which must be regrafted
+	private List<Node> getGeneNodesToRegraft(int g, Node A, Node D) {
+		
+		List<Node> nodes = new ArrayList<Node>();
+		
+		// Find gene nodes from this gene tree which map to D
+		GeneTreeForSpeciesTreeDistribution geneTree = geneTreeDistributions.get(g);
+		Node[] geneNodeMap_D = geneTree.mapSpeciesNodeToGeneTreeNodes(D);
+		Node[] geneNodeMap_A = geneTree.mapSpeciesNodeToGeneTreeNodes(A);
+		
+		// Get the gene nodes which have exactly 1 child which only have descendents in B
+		for (int i = 0; i < geneNodeMap_D.length; i++) {
+			Node geneNode = geneNodeMap_D[i];
+			if (geneNodeNeedsToMove(geneNode, geneNodeMap_A)) nodes.add(geneNode);
+		}
+		
+		return nodes;
+		
+	}
 
 
 	// Checks whether the gene node needs to be regrafted by checking that 
@@ -755,63 +776,85 @@ public class CoordinatedExchangeRates extends InConstantDistanceOperator {
 	// This is called after the exchange has occurred, so node A is now adjacent to node E
     private double regraftGeneTrees(List<List<Node>> nodesToRegraft, Node A, Node D) {
     	
-    	double logHR = 0;
-    	for (int g = 0; g < nodesToRegraft.size(); g++) {
-    		
-    		List<Node> nodesToMove_g = nodesToRegraft.get(g);
-    		GeneTreeForSpeciesTreeDistribution geneTree = geneTreeDistributions.get(g);
-    		
-    		Node[] geneNodeMap_A = geneTree.mapSpeciesNodeToGeneTreeNodes(A);
-    		Node[] geneNodeMap_D = geneTree.mapSpeciesNodeToGeneTreeNodes(D);
-    		List<Node> destinationBranches_forward;
-    		Node candidate, destination;
-    		for (int i = 0; i < nodesToMove_g.size(); i ++) {
-    			
-    			Node nodeToMove = nodesToMove_g.get(i);
-    			
-    			
-    			
-    			
-    			// Find the places the branch can move to (forward)
-    			destinationBranches_forward = new ArrayList<Node>();
-    			for (int j = 0; j < geneNodeMap_D.length; j ++) {
-    				candidate = geneNodeMap_D[j];
-    				if (candidate.getHeight() < nodeToMove.getHeight() && candidate.getParent().getHeight() > nodeToMove.getHeight()) {
-    					destinationBranches_forward.add(candidate);
-    				}
-    			}
-    			int numberOfDestinations_forward = destinationBranches_forward.size();
-    			
-    			
-    			// Find the [number of] places the branch can move to (reverse)
-    			int numberOfDestinations_reverse = 0;
-    			for (int j = 0; j < geneNodeMap_A.length; j ++) {
-    				candidate = geneNodeMap_A[j];
-    				if (candidate.getHeight() < nodeToMove.getHeight() && candidate.getParent().getHeight() > nodeToMove.getHeight()) {
-    					numberOfDestinations_reverse ++;
-    				}
-    			}
-    			
-    			
-    			// Hastings ratio
-    			logHR += Math.log(numberOfDestinations_forward) + Math.log(numberOfDestinations_reverse);
-    			
-    			
-    			// Sample a branch to move to
-    			destination = destinationBranches_forward.get(Randomizer.nextInt(numberOfDestinations_forward));
-    			
-    			
-    			// Regraft the branch to its randomly sampled destination
-    			exchangeNodes(nodeToMove, nodeToMove.getParent(), destination, destination.getParent());
-    			
-    			
+    	final int geneCount = nodesToRegraft.size();
+    	if (geneLogHR.length < geneCount) geneLogHR = new double[geneCount];
+    	if (parallelLoci == null) {
+    		for (int g = 0; g < geneCount; g++) {
+    			geneLogHR[g] = regraftGeneTree(g, nodesToRegraft.get(g), A, D);
     		}
+    	}else {
     		
-    		
+    		// Each gene tree samples its destinations from its own random number stream
+    		List<Tree> geneTrees = new ArrayList<>();
+    		for (int g = 0; g < geneCount; g++) {
+    			geneTrees.add((Tree) geneTreeDistributions.get(g).getGeneTree());
+    		}
+    		ParallelLoci.startEditing(geneTrees, this);
+    		parallelLoci.forEachRandom(geneCount, g -> geneLogHR[g] = regraftGeneTree(g, nodesToRegraft.get(g), A, D));
     	}
     	
+    	double logHR = 0;
+    	for (int g = 0; g < geneCount; g++) {
+    		logHR += geneLogHR[g];
+    	}
 		return logHR;
 	}
+    
+    
+    // Regraft the gene nodes of gene tree g, and return its contribution to the hastings ratio
+    private double regraftGeneTree(int g, List<Node> nodesToMove_g, Node A, Node D) {
+    	
+    	double logHR = 0;
+		GeneTreeForSpeciesTreeDistribution geneTree = geneTreeDistributions.get(g);
+		
+		Node[] geneNodeMap_A = geneTree.mapSpeciesNodeToGeneTreeNodes(A);
+		Node[] geneNodeMap_D = geneTree.mapSpeciesNodeToGeneTreeNodes(D);
+		List<Node> destinationBranches_forward;
+		Node candidate, destination;
+		for (int i = 0; i < nodesToMove_g.size(); i ++) {
+			
+			Node nodeToMove = nodesToMove_g.get(i);
+			
+			
+			
+			
+			// Find the places the branch can move to (forward)
+			destinationBranches_forward = new ArrayList<Node>();
+			for (int j = 0; j < geneNodeMap_D.length; j ++) {
+				candidate = geneNodeMap_D[j];
+				if (candidate.getHeight() < nodeToMove.getHeight() && candidate.getParent().getHeight() > nodeToMove.getHeight()) {
+					destinationBranches_forward.add(candidate);
+				}
+			}
+			int numberOfDestinations_forward = destinationBranches_forward.size();
+			
+			
+			// Find the [number of] places the branch can move to (reverse)
+			int numberOfDestinations_reverse = 0;
+			for (int j = 0; j < geneNodeMap_A.length; j ++) {
+				candidate = geneNodeMap_A[j];
+				if (candidate.getHeight() < nodeToMove.getHeight() && candidate.getParent().getHeight() > nodeToMove.getHeight()) {
+					numberOfDestinations_reverse ++;
+				}
+			}
+			
+			
+			// Hastings ratio
+			logHR += Math.log(numberOfDestinations_forward) + Math.log(numberOfDestinations_reverse);
+			
+			
+			// Sample a branch to move to
+			destination = destinationBranches_forward.get(ChainRandomizer.nextInt(numberOfDestinations_forward));
+			
+			
+			// Regraft the branch to its randomly sampled destination
+			exchangeNodes(nodeToMove, nodeToMove.getParent(), destination, destination.getParent());
+			
+			
+		}
+		
+		return logHR;
+    }
 
 	
 	
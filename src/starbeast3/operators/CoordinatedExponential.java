@@ -8,6 +8,8 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.util.Randomizer;
+import starbeast3.core.ParallelLoci;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
 import starbeast3.operators.CoordinatedOperator;
 import starbeast3.tree.SpeciesTree;
 
@@ -31,12 +33,11 @@ public class CoordinatedExponential extends CoordinatedOperator {
     private double beta;
     private double lambda;
     private double waitingTime;
-    private enum descendsThrough {
-       LEFT_ONLY, RIGHT_ONLY, BOTH, NEITHER
-    }
 
     TreeInterface speciesTree;
 
+    private final MinimumDouble tipwardFreedom = new MinimumDouble();
+
     @Override
     public void initAndValidate() {
         beta = betaInput.get();
@@ -69,8 +70,8 @@ public class CoordinatedExponential extends CoordinatedOperator {
         final double leftChildHeight = speciesTreeRoot.getLeft().getHeight();
         final double rightChildHeight = speciesTreeRoot.getRight().getHeight();
 
-        final MinimumDouble tipwardFreedom = new MinimumDouble();
-        final Set<Node> connectingNodes = getConnectingNodes(speciesTreeRoot, tipwardFreedom);
+        tipwardFreedom.reset();
+        findAllConnectingNodes(speciesTreeRoot);
 
         tipwardFreedom.set(currentRootHeight - leftChildHeight);
         tipwardFreedom.set(currentRootHeight - rightChildHeight);
@@ -80,13 +81,13 @@ public class CoordinatedExponential extends CoordinatedOperator {
         final double uniformShift = Randomizer.nextExponential(lambda) - tipwardFreedom.get();
 
         speciesTreeRoot.setHeight(currentRootHeight + uniformShift);
-        for (Node geneTreeNode: connectingNodes) {
-            geneTreeNode.setHeight(geneTreeNode.getHeight() + uniformShift);
-        }
+        shiftConnectingNodes(nGeneTrees, uniformShift);
 
-        for (Node geneTreeNode: connectingNodes) {
-        	if (geneTreeNode.getLength() < 0) {
-        		return Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < nGeneTrees; j++) {
+        	for (int i = 0; i < connectingNodeCounts[j]; i++) {
+        		if (connectingNodes[j][i].getLength() < 0) {
+        			return Double.NEGATIVE_INFINITY;
+        		}
         	}
         }
         
@@ -97,48 +98,50 @@ public class CoordinatedExponential extends CoordinatedOperator {
     }
 
     // identify gene tree nodes which descend through both (and also descend exclusively through)
-    // the left and right children of the species tree node of interest
-    private Set<Node> getConnectingNodes(Node speciesTreeNode, MinimumDouble tipwardFreedom) {
-        final Node leftChildNode = speciesTreeNode.getLeft();
-        final Node rightChildNode = speciesTreeNode.getRight();
-        final int leftChildNodeNumber = leftChildNode.getNr();
-        final int rightChildNodeNumber = rightChildNode.getNr();
-        final Set<String> leftChildDescendants = findDescendants(leftChildNode, leftChildNodeNumber);
-        final Set<String> rightChildDescendants = findDescendants(rightChildNode, rightChildNodeNumber);
-
-        final Set<Node> allConnectingNodes = new LinkedHashSet<>();
+    // the left and right children of the species tree node of interest, and store them in connectingNodes
+    private void findAllConnectingNodes(Node speciesTreeNode) {
+        final int leftChildNodeNumber = speciesTreeNode.getLeft().getNr();
+        final int rightChildNodeNumber = speciesTreeNode.getRight().getNr();
+        updateDescendantTips();
+        resetLoci(nGeneTrees);
+
+        final List<GeneTreeForSpeciesTreeDistribution> geneTreeDistributions = this.getTreeDistributions(this);
+        final ParallelLoci parallelLoci = getParallelLoci();
+        if (parallelLoci == null) {
+            for (int j = 0; j < nGeneTrees; j++) {
+                findConnectingNodes(j, geneTreeDistributions.get(j), leftChildNodeNumber, rightChildNodeNumber);
+            }
+        } else {
+            // each gene tree is searched independently, into its own buffer
+            ParallelLoci.startEditing(geneTrees, this);
+            parallelLoci.forEach(nGeneTrees, j -> findConnectingNodes(j, geneTreeDistributions.get(j), leftChildNodeNumber, rightChildNodeNumber));
+        }
+
         for (int j = 0; j < nGeneTrees; j++) {
-            final Tree geneTree = geneTrees.get(j);
-            final Node geneTreeRootNode = geneTree.getRoot();
-            final Set<Node> jConnectingNodes = new HashSet<Node>();
-            findConnectingNodes(geneTreeRootNode, jConnectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom);
-            allConnectingNodes.addAll(jConnectingNodes);
-            geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
+            tipwardFreedom.set(locusTipwardFreedom[j].get());
         }
+    }
 
-        return allConnectingNodes;
+    private void findConnectingNodes(int locus, GeneTreeForSpeciesTreeDistribution geneTreeDistribution, int leftChildNodeNumber, int rightChildNodeNumber) {
+        final Tree geneTree = geneTrees.get(locus);
+        final int[] tipNumberMap = geneTreeDistribution.getTipNumberMap();
+        findConnectingNodes(geneTree.getRoot(), locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
+        geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
     }
 
-    private descendsThrough findConnectingNodes(Node geneTreeNode, Set<Node> connectingNodes, Set<String> leftChildDescendants, Set<String> rightChildDescendants, MinimumDouble tipwardFreedom) {
+    private int findConnectingNodes(Node geneTreeNode, int locus, int[] tipNumberMap, int leftChildNodeNumber, int rightChildNodeNumber) {
         if (geneTreeNode.isLeaf()) {
-            final String descendantName = geneTreeNode.getID();
-            if (leftChildDescendants.contains(descendantName)) {
-                return descendsThrough.LEFT_ONLY;
-            } else if (rightChildDescendants.contains(descendantName)) {
-                return descendsThrough.RIGHT_ONLY;
-            } else {
-                return descendsThrough.NEITHER;
-            }
+            return classifyLeaf(geneTreeNode, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
         }
 
         final Node leftChild = geneTreeNode.getLeft();
         final Node rightChild = geneTreeNode.getRight();
-        final descendsThrough leftDescent = findConnectingNodes(leftChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom);
-        final descendsThrough rightDescent = findConnectingNodes(rightChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom);
+        final int leftDescent = findConnectingNodes(leftChild, locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
+        final int rightDescent = findConnectingNodes(rightChild, locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
 
         if (leftDescent == rightDescent) {
-            if (leftDescent == descendsThrough.BOTH) {
-                connectingNodes.add(geneTreeNode);
+            if (leftDescent == BOTH) {
+                addConnectingNode(locus, geneTreeNode);
             }
 
             return leftDescent;
@@ -146,35 +149,35 @@ public class CoordinatedExponential extends CoordinatedOperator {
 
         // this code only executes when the left and right gene tree child nodes descend through different species tree node of interest children
         final double geneTreeNodeHeight = geneTreeNode.getHeight();
-        if (leftDescent == descendsThrough.BOTH) { // the gene tree node left child is a member of a connected component
-            if (rightDescent == descendsThrough.NEITHER) { // the gene tree node left child is the root node of a connected component
-                return descendsThrough.NEITHER;
+        if (leftDescent == BOTH) { // the gene tree node left child is a member of a connected component
+            if (rightDescent == NEITHER) { // the gene tree node left child is the root node of a connected component
+                return NEITHER;
             } else { // the gene tree node right child descends exclusively through the left XOR right child of the species tree node of interest
                 // so the current gene tree node is part of a connected component but the right child is not
                 final double connectedComponentTipFreedom = geneTreeNodeHeight - rightChild.getHeight();
-                tipwardFreedom.set(connectedComponentTipFreedom);
-                connectingNodes.add(geneTreeNode);
-                return descendsThrough.BOTH;
+                locusTipwardFreedom[locus].set(connectedComponentTipFreedom);
+                addConnectingNode(locus, geneTreeNode);
+                return BOTH;
             }
-        } else if (rightDescent == descendsThrough.BOTH) { // the gene tree node right child is a member of a connected component
-            if (leftDescent == descendsThrough.NEITHER) { // the gene tree node right child is the root node of a connected component
-                return descendsThrough.NEITHER;
+        } else if (rightDescent == BOTH) { // the gene tree node right child is a member of a connected component
+            if (leftDescent == NEITHER) { // the gene tree node right child is the root node of a connected component
+                return NEITHER;
             } else { // the gene tree node left child descends exclusively through the left XOR right child of the species tree node of interest
 // so the current gene tree node is part of a connected component but the left child is not
                 final double connectedComponentTipFreedom = geneTreeNodeHeight - leftChild.getHeight();
-                tipwardFreedom.set(connectedComponentTipFreedom);
-                connectingNodes.add(geneTreeNode);
-                return descendsThrough.BOTH;
+                locusTipwardFreedom[locus].set(connectedComponentTipFreedom);
+                addConnectingNode(locus, geneTreeNode);
+                return BOTH;
             }
-        } else if (leftDescent == descendsThrough.NEITHER || rightDescent == descendsThrough.NEITHER) {
-            return descendsThrough.NEITHER; // the current gene tree node does not descend exclusively through the species tree node of interest
+        } else if (leftDescent == NEITHER || rightDescent == NEITHER) {
+            return NEITHER; // the current gene tree node does not descend exclusively through the species tree node of interest
         } else { // this is a tip node of a connected component
             final double leftChildBranchLength = geneTreeNodeHeight - leftChild.getHeight();
             final double rightChildBranchLength = geneTreeNodeHeight - rightChild.getHeight();
-            tipwardFreedom.set(leftChildBranchLength);
-            tipwardFreedom.set(rightChildBranchLength);
-            connectingNodes.add(geneTreeNode);
-            return descendsThrough.BOTH;
+            locusTipwardFreedom[locus].set(leftChildBranchLength);
+            locusTipwardFreedom[locus].set(rightChildBranchLength);
+            addConnectingNode(locus, geneTreeNode);
+            return BOTH;
         }
     }
 
@@ -13,32 +13,151 @@ import starbeast3.tree.SpeciesTree;
 public abstract class CoordinatedOperator extends GTKOperator {
     public Input<SpeciesTree> speciesTreeInput = new Input<>("speciesTree", "The species tree state node.", Validate.REQUIRED);
 
+    // how a gene tree node descends through the children of the species tree node of interest
+    protected static final int NEITHER = 0;
+    protected static final int LEFT_ONLY = 1;
+    protected static final int RIGHT_ONLY = 2;
+    protected static final int BOTH = 3;
+
     protected int nGeneTrees;
 
+    // descendant species tips of each species tree node, as a bitset of tipWords longs per node
+    private long[] descendantTips;
+    private int tipWords;
+    private int[] recordedParentNrs;
+
+    // reusable per-locus buffers for the gene tree nodes found by the connected component search, and their freedoms
+    protected Node[][] connectingNodes = new Node[0][];
+    protected int[] connectingNodeCounts = new int[0];
+    protected MinimumDouble[] locusTipwardFreedom = new MinimumDouble[0];
+    protected MinimumDouble[] locusRootwardFreedom = new MinimumDouble[0];
+
     @Override
     public void initAndValidate() {
     	geneTrees = this.getTrees(this);
         nGeneTrees = this.getGeneTreeCount(this);
         super.initAndValidate();
+
+        final SpeciesTree speciesTree = speciesTreeInput.get();
+        final int nodeCount = speciesTree.getNodeCount();
+        tipWords = (speciesTree.getLeafNodeCount() + 63) >>> 6;
+        descendantTips = new long[nodeCount * tipWords];
+        recordedParentNrs = new int[nodeCount];
+        Arrays.fill(recordedParentNrs, -2);
     }
 
-    protected Set<String> findDescendants(Node speciesTreeNode, int speciesTreeNodeNumber) {
-        final Map<Integer, Set<String>> numberTipMap = speciesTreeInput.get().getNumberTipMap();
-        final Set<String> descendantNames = new HashSet<>();
 
+    /**
+     * Recompute the descendant tip bitsets if the species tree topology has changed since they were last computed
+     */
+    protected void updateDescendantTips() {
+        final SpeciesTree speciesTree = speciesTreeInput.get();
+        final Node[] nodes = speciesTree.getNodesAsArray();
+        boolean changed = false;
+        for (int i = 0; i < nodes.length; i++) {
+            final Node parent = nodes[i].getParent();
+            final int parentNr = parent == null ? -1 : parent.getNr();
+            if (recordedParentNrs[i] != parentNr) {
+                recordedParentNrs[i] = parentNr;
+                changed = true;
+            }
+        }
+        if (changed) {
+            fillDescendantTips(speciesTree.getRoot());
+        }
+    }
+
+    private void fillDescendantTips(Node speciesTreeNode) {
+        final int offset = speciesTreeNode.getNr() * tipWords;
         if (speciesTreeNode.isLeaf()) {
-            descendantNames.addAll(numberTipMap.get(speciesTreeNodeNumber));
+            Arrays.fill(descendantTips, offset, offset + tipWords, 0L);
+            final int tipNr = speciesTreeNode.getNr();
+            descendantTips[offset + (tipNr >>> 6)] |= 1L << tipNr;
         } else {
             final Node leftChild = speciesTreeNode.getLeft();
             final Node rightChild = speciesTreeNode.getRight();
-            final int leftChildNumber = leftChild.getNr();
-            final int rightChildNumber = rightChild.getNr();
+            fillDescendantTips(leftChild);
+            fillDescendantTips(rightChild);
+            final int leftOffset = leftChild.getNr() * tipWords;
+            final int rightOffset = rightChild.getNr() * tipWords;
+            for (int w = 0; w < tipWords; w++) {
+                descendantTips[offset + w] = descendantTips[leftOffset + w] | descendantTips[rightOffset + w];
+            }
+        }
+    }
 
-            descendantNames.addAll(findDescendants(leftChild, leftChildNumber));
-            descendantNames.addAll(findDescendants(rightChild, rightChildNumber));
+    /**
+     * Whether the species tip with number tipNr descends from the species tree node with number speciesTreeNodeNumber.
+     * Call updateDescendantTips first.
+     */
+    protected boolean isDescendantTip(int speciesTreeNodeNumber, int tipNr) {
+        return (descendantTips[speciesTreeNodeNumber * tipWords + (tipNr >>> 6)] & (1L << tipNr)) != 0;
+    }
+
+    /**
+     * Classify a gene tree leaf against the left and right children of the species tree node of interest
+     * @param geneTreeLeaf
+     * @param tipNumberMap maps gene tree leaf numbers to species tip numbers
+     * @param leftChildNumber
+     * @param rightChildNumber
+     * @return LEFT_ONLY, RIGHT_ONLY or NEITHER
+     */
+    protected int classifyLeaf(Node geneTreeLeaf, int[] tipNumberMap, int leftChildNumber, int rightChildNumber) {
+        final int tipNr = tipNumberMap[geneTreeLeaf.getNr()];
+        if (isDescendantTip(leftChildNumber, tipNr)) {
+            return LEFT_ONLY;
+        } else if (isDescendantTip(rightChildNumber, tipNr)) {
+            return RIGHT_ONLY;
+        } else {
+            return NEITHER;
         }
+    }
+
+    /**
+     * Empty the connecting node buffers of the first n loci, and reset their freedoms
+     * @param n
+     */
+    protected void resetLoci(int n) {
+        if (connectingNodes.length < n) {
+            final int oldLength = connectingNodes.length;
+            connectingNodes = Arrays.copyOf(connectingNodes, n);
+            connectingNodeCounts = Arrays.copyOf(connectingNodeCounts, n);
+            locusTipwardFreedom = Arrays.copyOf(locusTipwardFreedom, n);
+            locusRootwardFreedom = Arrays.copyOf(locusRootwardFreedom, n);
+            for (int j = oldLength; j < n; j++) {
+                connectingNodes[j] = new Node[16];
+                locusTipwardFreedom[j] = new MinimumDouble();
+                locusRootwardFreedom[j] = new MinimumDouble();
+            }
+        }
+        for (int j = 0; j < n; j++) {
+            connectingNodeCounts[j] = 0;
+            locusTipwardFreedom[j].reset();
+            locusRootwardFreedom[j].reset();
+        }
+    }
+
+    protected void addConnectingNode(int locus, Node geneTreeNode) {
+        final int count = connectingNodeCounts[locus];
+        if (count == connectingNodes[locus].length) {
+            connectingNodes[locus] = Arrays.copyOf(connectingNodes[locus], count * 2);
+        }
+        connectingNodes[locus][count] = geneTreeNode;
+        connectingNodeCounts[locus] = count + 1;
+    }
 
-        return descendantNames;
+    /**
+     * Shift the heights of all connecting nodes of the first n loci
+     * @param n
+     * @param shift
+     */
+    protected void shiftConnectingNodes(int n, double shift) {
+        for (int j = 0; j < n; j++) {
+            final Node[] nodes = connectingNodes[j];
+            for (int i = 0; i < connectingNodeCounts[j]; i++) {
+                nodes[i].setHeight(nodes[i].getHeight() + shift);
+            }
+        }
     }
     
     
@@ -61,6 +180,10 @@ public abstract class CoordinatedOperator extends GTKOperator {
      public double get() {
          return storedDouble;
      }
+
+     public void reset() {
+         storedDouble = Double.POSITIVE_INFINITY;
+     }
  }
 
 }
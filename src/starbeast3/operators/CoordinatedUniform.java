@@ -7,6 +7,8 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeInterface;
 import beast.base.util.Randomizer;
+import starbeast3.core.ParallelLoci;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
 
 /**
 * @author Huw Ogilvie
@@ -18,12 +20,11 @@ import beast.base.util.Randomizer;
         + "species tree node by a uniform amount chosen from a range which preserves the topology of all trees."
         + "See http://dx.doi.org/10.1101/010199 for full details.")
 public class CoordinatedUniform extends CoordinatedOperator {
-    private enum descendsThrough {
-       LEFT_ONLY, RIGHT_ONLY, BOTH, NEITHER
-    }
-
     TreeInterface speciesTree;
 
+    private final MinimumDouble tipwardFreedom = new MinimumDouble();
+    private final MinimumDouble rootwardFreedom = new MinimumDouble();
+
     @Override
     public void initAndValidate() {
         speciesTree = speciesTreeInput.get();
@@ -57,9 +58,9 @@ public class CoordinatedUniform extends CoordinatedOperator {
 
         final double speciesTreeNodeHeight = speciesTreeNode.getHeight();
 
-        final MinimumDouble tipwardFreedom = new MinimumDouble();
-        final MinimumDouble rootwardFreedom = new MinimumDouble();
-        final Set<Node> connectingNodes = getConnectingNodes(speciesTreeNode, tipwardFreedom, rootwardFreedom);
+        tipwardFreedom.reset();
+        rootwardFreedom.reset();
+        findAllConnectingNodes(speciesTreeNode);
 
         final double leftChildBranchLength = speciesTreeNodeHeight - speciesTreeNode.getLeft().getHeight();
         final double rightChildBranchLength = speciesTreeNodeHeight - speciesTreeNode.getRight().getHeight();
@@ -73,58 +74,58 @@ public class CoordinatedUniform extends CoordinatedOperator {
         final double uniformShift = (Randomizer.nextDouble() * (twf + rwf)) - twf;
 
         speciesTreeNode.setHeight(speciesTreeNode.getHeight() + uniformShift);
-        for (Node geneTreeNode: connectingNodes) {
-            geneTreeNode.setHeight(geneTreeNode.getHeight() + uniformShift);
-        }
+        shiftConnectingNodes(nGeneTrees, uniformShift);
 
         return fLogHastingsRatio;
     }
     
 
     // identify gene tree nodes which descend through both (and also descend exclusively through)
-    // the left and right children of the species tree node of interest
-    private Set<Node> getConnectingNodes(Node speciesTreeNode, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
-        final Node leftChildNode = speciesTreeNode.getLeft();
-        final Node rightChildNode = speciesTreeNode.getRight();
-        final int leftChildNodeNumber = leftChildNode.getNr();
-        final int rightChildNodeNumber = rightChildNode.getNr();
-        final Set<String> leftChildDescendants = findDescendants(leftChildNode, leftChildNodeNumber);
-        final Set<String> rightChildDescendants = findDescendants(rightChildNode, rightChildNodeNumber);
-
-        final Set<Node> allConnectingNodes = new LinkedHashSet<>();
+    // the left and right children of the species tree node of interest, and store them in connectingNodes
+    private void findAllConnectingNodes(Node speciesTreeNode) {
+        final int leftChildNodeNumber = speciesTreeNode.getLeft().getNr();
+        final int rightChildNodeNumber = speciesTreeNode.getRight().getNr();
+        updateDescendantTips();
+        resetLoci(nGeneTrees);
+
+        final List<GeneTreeForSpeciesTreeDistribution> geneTreeDistributions = this.getTreeDistributions(this);
+        final ParallelLoci parallelLoci = getParallelLoci();
+        if (parallelLoci == null) {
+            for (int j = 0; j < nGeneTrees; j++) {
+                findConnectingNodes(j, geneTreeDistributions.get(j), leftChildNodeNumber, rightChildNodeNumber);
+            }
+        } else {
+            // each gene tree is searched independently, into its own buffer
+            ParallelLoci.startEditing(geneTrees, this);
+            parallelLoci.forEach(nGeneTrees, j -> findConnectingNodes(j, geneTreeDistributions.get(j), leftChildNodeNumber, rightChildNodeNumber));
+        }
+
         for (int j = 0; j < nGeneTrees; j++) {
-            final Tree geneTree = geneTrees.get(j);
-            final Node geneTreeRootNode = geneTree.getRoot();
-            final Set<Node> jConnectingNodes = new HashSet<Node>();
-            findConnectingNodes(geneTreeRootNode, jConnectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
-            
-            allConnectingNodes.addAll(jConnectingNodes);
-            geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
+            tipwardFreedom.set(locusTipwardFreedom[j].get());
+            rootwardFreedom.set(locusRootwardFreedom[j].get());
         }
+    }
 
-        return allConnectingNodes;
+    private void findConnectingNodes(int locus, GeneTreeForSpeciesTreeDistribution geneTreeDistribution, int leftChildNodeNumber, int rightChildNodeNumber) {
+        final Tree geneTree = geneTrees.get(locus);
+        final int[] tipNumberMap = geneTreeDistribution.getTipNumberMap();
+        findConnectingNodes(geneTree.getRoot(), locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
+        geneTree.startEditing(null); // hack to stop beast.base.inference.State.Trie memory leak
     }
 
-    private descendsThrough findConnectingNodes(Node geneTreeNode, Set<Node> connectingNodes, Set<String> leftChildDescendants, Set<String> rightChildDescendants, MinimumDouble tipwardFreedom, MinimumDouble rootwardFreedom) {
+    private int findConnectingNodes(Node geneTreeNode, int locus, int[] tipNumberMap, int leftChildNodeNumber, int rightChildNodeNumber) {
         if (geneTreeNode.isLeaf()) {
-            final String descendantName = geneTreeNode.getID();
-            if (leftChildDescendants.contains(descendantName)) {
-                return descendsThrough.LEFT_ONLY;
-            } else if (rightChildDescendants.contains(descendantName)) {
-                return descendsThrough.RIGHT_ONLY;
-            } else {
-                return descendsThrough.NEITHER;
-            }
+            return classifyLeaf(geneTreeNode, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
         }
 
         final Node leftChild = geneTreeNode.getLeft();
         final Node rightChild = geneTreeNode.getRight();
-        final descendsThrough leftDescent = findConnectingNodes(leftChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
-        final descendsThrough rightDescent = findConnectingNodes(rightChild, connectingNodes, leftChildDescendants, rightChildDescendants, tipwardFreedom, rootwardFreedom);
+        final int leftDescent = findConnectingNodes(leftChild, locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
+        final int rightDescent = findConnectingNodes(rightChild, locus, tipNumberMap, leftChildNodeNumber, rightChildNodeNumber);
 
         if (leftDescent == rightDescent) {
-            if (leftDescent == descendsThrough.BOTH) {
-                connectingNodes.add(geneTreeNode);
+            if (leftDescent == BOTH) {
+                addConnectingNode(locus, geneTreeNode);
             }
 
             return leftDescent;
@@ -132,39 +133,39 @@ public class CoordinatedUniform extends CoordinatedOperator {
 
         // this code only executes when the left and right gene tree child nodes descend through different species tree node of interest children
         final double geneTreeNodeHeight = geneTreeNode.getHeight();
-        if (leftDescent == descendsThrough.BOTH) { // the gene tree node left child is a member of a connected component
-            if (rightDescent == descendsThrough.NEITHER) { // the gene tree node left child is the root node of a connected component
+        if (leftDescent == BOTH) { // the gene tree node left child is a member of a connected component
+            if (rightDescent == NEITHER) { // the gene tree node left child is the root node of a connected component
                 final double connectedComponentRootFreedom = geneTreeNodeHeight - leftChild.getHeight();
-                rootwardFreedom.set(connectedComponentRootFreedom);
-                return descendsThrough.NEITHER;
+                locusRootwardFreedom[locus].set(connectedComponentRootFreedom);
+                return NEITHER;
             } else { // the gene tree node right child descends exclusively through the left XOR right child of the species tree node of interest
                 // so the current gene tree node is part of a connected component but the right child is not
                 final double connectedComponentDescendantBranchLength = geneTreeNodeHeight - rightChild.getHeight();
-                tipwardFreedom.set(connectedComponentDescendantBranchLength);
-                connectingNodes.add(geneTreeNode);
-                return descendsThrough.BOTH;
+                locusTipwardFreedom[locus].set(connectedComponentDescendantBranchLength);
+                addConnectingNode(locus, geneTreeNode);
+                return BOTH;
             }
-        } else if (rightDescent == descendsThrough.BOTH) { // the gene tree node right child is a member of a connected component
-            if (leftDescent == descendsThrough.NEITHER) { // the gene tree node right child is the root node of a connected component
+        } else if (rightDescent == BOTH) { // the gene tree node right child is a member of a connected component
+            if (leftDescent == NEITHER) { // the gene tree node right child is the root node of a connected component
                 final double connectedComponentRootFreedom = geneTreeNodeHeight - rightChild.getHeight();
-                rootwardFreedom.set(connectedComponentRootFreedom);
-                return descendsThrough.NEITHER;
+                locusRootwardFreedom[locus].set(connectedComponentRootFreedom);
+                return NEITHER;
             } else { // the gene tree node left child descends exclusively through the left XOR right child of the species tree node of interest
 // so the current gene tree node is part of a connected component but the left child is not
                 final double connectedComponentTipFreedom = geneTreeNodeHeight - leftChild.getHeight();
-                tipwardFreedom.set(connectedComponentTipFreedom);
-                connectingNodes.add(geneTreeNode);
-                return descendsThrough.BOTH;
+                locusTipwardFreedom[locus].set(connectedComponentTipFreedom);
+                addConnectingNode(locus, geneTreeNode);
+                return BOTH;
             }
-        } else if (leftDescent == descendsThrough.NEITHER || rightDescent == descendsThrough.NEITHER) {
-            return descendsThrough.NEITHER; // the current gene tree node does not descend exclusively through the species tree node of interest
+        } else if (leftDescent == NEITHER || rightDescent == NEITHER) {
+            return NEITHER; // the current gene tree node does not descend exclusively through the species tree node of interest
         } else { // this is a tip node of a connected component
             final double leftChildBranchLength = geneTreeNodeHeight - leftChild.getHeight();
             final double rightChildBranchLength = geneTreeNodeHeight - rightChild.getHeight();
-            tipwardFreedom.set(leftChildBranchLength);
-            tipwardFreedom.set(rightChildBranchLength);
-            connectingNodes.add(geneTreeNode);
-            return descendsThrough.BOTH;
+            locusTipwardFreedom[locus].set(leftChildBranchLength);
+            locusTipwardFreedom[locus].set(rightChildBranchLength);
+            addConnectingNode(locus, geneTreeNode);
+            return BOTH;
         }
     }
 }
@@ -6,6 +6,7 @@ import java.util.List;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.ProgramStatus;
 import beast.base.inference.Operator;
 import beast.base.inference.StateNode;
 import beast.base.inference.parameter.RealParameter;
@@ -14,6 +15,7 @@ import beast.base.inference.operator.kernel.KernelDistribution;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
+import starbeast3.core.ParallelLoci;
 import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
 
 @Description("Scale operator that scales random epoch in a tree")
@@ -29,18 +31,26 @@ public class EpochOperator extends Operator {
     
     final public Input<Boolean> optimiseInput = new Input<>("optimise", "flag to indicate that the scale factor is automatically changed in order to achieve a good acceptance rate (default true)", true);
     final public Input<Double> scaleFactorInput = new Input<>("scaleFactor", "scaling factor -- positive number that determines size of the jump: higher means bigger jumps.", 0.1);
+    final public Input<Boolean> parallelInput = new Input<>("parallel", "whether to scale the trees in parallel", false);
 
     
     Tree speciesTree;
     KernelDistribution kernelDistribution;
     double scaleFactor;
     final double updownFactor = 1.0/3.0;
+    ParallelLoci parallelLoci = null;
+    
+    // Per tree results of scaling: number of nodes scaled, total number of nodes, and whether the tree is still valid
+    int[] treeScaled = new int[0];
+    int[] treeNodes = new int[0];
+    boolean[] treeValid = new boolean[0];
     
     @Override
 	public void initAndValidate() {
     	kernelDistribution = kernelDistributionInput.get();
     	//kernelDistribution = new KernelDistribution.Bactrian(KernelDistribution.Bactrian.mode.uniform); // Uniform only
     	scaleFactor = scaleFactorInput.get();
+    	if (parallelInput.get() && ProgramStatus.m_nThreads > 1) parallelLoci = new ParallelLoci();
     	
     	//if (genesInput.get().isEmpty()) throw new IllegalArgumentException("Please provide at least 1 gene tree distribution");
     	
@@ -166,60 +176,31 @@ public class EpochOperator extends Operator {
 		
 		
 		int scaled=0, totalNodes=0, goingUp=0, goingDown=0;
-		double oldLength = 0, newLength = 0;
 		
 		
 		// Scale the trees
-		for (Tree tree : trees) {
-			
-			Node [] nodes = tree.getNodesAsArray();
-
-			for (int i = tree.getLeafNodeCount(); i < nodes.length; i++) {
-			
-				
-				oldLength += 2*nodes[i].getHeight() - nodes[i].getChild(0).getHeight() - nodes[i].getChild(1).getHeight();
-				
-				Node node = nodes[i];
-				//if (node.isRoot()) continue; //tmp
-				double h = node.getHeight();
-				totalNodes ++;
-				
-				// If above u, then sum by constant amount
-				if (h > u) {
-					h = h + delta;
-					node.setHeight(h);
-				}
-				
-				
-				// If between l and u, scale it
-				else if (h > l && h < u) {
-					h = l + scale*(h - l);
-					node.setHeight(h);
-					scaled++;
-				}
-				
-				
-				newLength += 2*nodes[i].getHeight() - nodes[i].getChild(0).getHeight() - nodes[i].getChild(1).getHeight();
-				
-				// If under l then leave it
-				
-				/*
-				if (h > lowerFwd && h < l) {
-					h = lowerFwd + scale * (h-lowerFwd);
-					node.setHeight(h);
-					scaled++;
-				} else if (h > l) {				
-					h += delta;
-					node.setHeight(h);
-				}
-				*/
-			}
-	
-			for (Node node0 : nodes) {
-				if (node0.getLength() < 0) {
-					return Double.NEGATIVE_INFINITY;
-				}
+		final int treeCount = trees.size();
+		if (treeScaled.length < treeCount) {
+			treeScaled = new int[treeCount];
+			treeNodes = new int[treeCount];
+			treeValid = new boolean[treeCount];
+		}
+		if (parallelLoci == null) {
+			for (int t = 0; t < treeCount; t++) {
+				scaleTree(t, trees.get(t), l, u, scale, delta);
+				if (!treeValid[t]) return Double.NEGATIVE_INFINITY;
 			}
+		}else {
+			
+			// The trees are independent of one another
+			ParallelLoci.startEditing(trees, this);
+			final double l_ = l, u_ = u;
+			parallelLoci.forEach(treeCount, t -> scaleTree(t, trees.get(t), l_, u_, scale, delta));
+		}
+		for (int t = 0; t < treeCount; t++) {
+			if (!treeValid[t]) return Double.NEGATIVE_INFINITY;
+			scaled += treeScaled[t];
+			totalNodes += treeNodes[t];
 		}
 		
 		
@@ -292,6 +273,68 @@ public class EpochOperator extends Operator {
     }
     
     
+    /**
+     * Scale the node heights of tree t which are between l and u, and shift those above u
+     * @param t
+     * @param tree
+     * @param l
+     * @param u
+     * @param scale
+     * @param delta
+     */
+    private void scaleTree(int t, Tree tree, double l, double u, double scale, double delta) {
+    	
+		int scaled=0, totalNodes=0;
+		Node [] nodes = tree.getNodesAsArray();
+
+		for (int i = tree.getLeafNodeCount(); i < nodes.length; i++) {
+		
+			Node node = nodes[i];
+			//if (node.isRoot()) continue; //tmp
+			double h = node.getHeight();
+			totalNodes ++;
+			
+			// If above u, then sum by constant amount
+			if (h > u) {
+				h = h + delta;
+				node.setHeight(h);
+			}
+			
+			
+			// If between l and u, scale it
+			else if (h > l && h < u) {
+				h = l + scale*(h - l);
+				node.setHeight(h);
+				scaled++;
+			}
+			
+			// If under l then leave it
+			
+			/*
+			if (h > lowerFwd && h < l) {
+				h = lowerFwd + scale * (h-lowerFwd);
+				node.setHeight(h);
+				scaled++;
+			} else if (h > l) {				
+				h += delta;
+				node.setHeight(h);
+			}
+			*/
+		}
+		
+		treeScaled[t] = scaled;
+		treeNodes[t] = totalNodes;
+		treeValid[t] = true;
+		for (Node node0 : nodes) {
+			if (node0.getLength() < 0) {
+				treeValid[t] = false;
+				return;
+			}
+		}
+    	
+    }
+    
+    
     /**
      * Get lower scale limit 
      * @param l
@@ -0,0 +1,291 @@
+package starbeast3.operators;
+
+
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.evolution.tree.Node;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+
+
+
+/**
+ * Join heights of pairs of species tree leaves, for the maximum height bound of NodeReheight2.
+ *
+ * The join height of species s and t is the height of the lowest gene tree node, across loci, which has gene tree leaves
+ * of both s and t as descendants. Each locus only keeps the pairs which its gene tree joins, one per pair, sorted by pair,
+ * so that a locus with a few species does not take a row for every pair of species. The minimum across loci is kept
+ * for every pair, together with the locus which attains it.
+ *
+ * Loci are compared by the gene tree versions of their distributions, so only the loci whose gene tree has changed are
+ * gathered again. A pair is only minimised afresh across loci if the locus which attained its minimum has risen, or no
+ * longer joins the pair. Join heights do not depend on the species tree.
+ */
+public class JoinHeightIndex {
+
+
+	private final int speciesLeafCount;
+	private int locusCount;
+
+	// Lowest join height of each pair s < t across loci, indexed by s * speciesLeafCount + t, and the locus which attains it (or -1)
+	private final double[] joinHeights;
+	private final int[] joinLoci;
+
+	// Per locus: the pairs joined by its gene tree, in increasing order, and their join heights
+	private int[][] locusPairs;
+	private double[][] locusHeights;
+	private int[] locusPairCounts;
+
+	// The gene tree distribution of each locus, and its gene tree version, when it was last gathered
+	private GeneTreeForSpeciesTreeDistribution[] genes;
+	private long[] versions;
+
+
+	// Working space for gathering a locus: the join height of each pair (infinite if the pair has not been joined),
+	// the pairs which have been joined, and the species tree leaves below each gene tree node, as bitsets of speciesLeafWords words
+	private final double[] pairHeights;
+	private final int[] joinedPairs;
+	private int joinedPairCount;
+	private final int speciesLeafWords;
+	private long[] descendantSpecies = new long[0];
+
+	// Previous pairs and heights of the locus being gathered
+	private int[] previousPairs = new int[0];
+	private double[] previousHeights = new double[0];
+
+
+	public JoinHeightIndex(int speciesLeafCount) {
+		this.speciesLeafCount = speciesLeafCount;
+		this.locusCount = -1;
+		final int pairCount = speciesLeafCount * speciesLeafCount;
+		joinHeights = new double[pairCount];
+		joinLoci = new int[pairCount];
+		pairHeights = new double[pairCount];
+		joinedPairs = new int[pairCount];
+		Arrays.fill(pairHeights, Double.POSITIVE_INFINITY);
+		speciesLeafWords = (speciesLeafCount + 63) / 64;
+	}
+
+
+	/**
+	 * Bring the join heights up to date with the gene trees
+	 * @param geneTreeDistributions one per locus
+	 */
+	public void update(List<GeneTreeForSpeciesTreeDistribution> geneTreeDistributions) {
+		final int n = geneTreeDistributions.size();
+		if (n != locusCount) {
+			locusCount = n;
+			locusPairs = new int[n][0];
+			locusHeights = new double[n][0];
+			locusPairCounts = new int[n];
+			genes = new GeneTreeForSpeciesTreeDistribution[n];
+			versions = new long[n];
+		}
+
+		int changedCount = 0;
+		for (int i = 0; i < locusCount; i++) {
+			if (isStale(geneTreeDistributions, i)) changedCount++;
+		}
+		if (changedCount == 0) return;
+
+		// If most loci have changed, gather them all and take the minimum afresh
+		if (changedCount > locusCount / 2) {
+			for (int i = 0; i < locusCount; i++) {
+				if (isStale(geneTreeDistributions, i)) gather(geneTreeDistributions.get(i), i);
+			}
+			Arrays.fill(joinHeights, Double.POSITIVE_INFINITY);
+			Arrays.fill(joinLoci, -1);
+			for (int i = 0; i < locusCount; i++) {
+				final int[] pairs = locusPairs[i];
+				final double[] heights = locusHeights[i];
+				for (int k = 0; k < locusPairCounts[i]; k++) {
+					final int p = pairs[k];
+					if (heights[k] < joinHeights[p]) {
+						joinHeights[p] = heights[k];
+						joinLoci[p] = i;
+					}
+				}
+			}
+			return;
+		}
+
+		for (int i = 0; i < locusCount; i++) {
+			if (!isStale(geneTreeDistributions, i)) continue;
+
+			// Keep the previous pairs of this locus, to find those it no longer joins
+			final int previousCount = locusPairCounts[i];
+			if (previousPairs.length < previousCount) {
+				previousPairs = new int[locusPairs[i].length];
+				previousHeights = new double[locusPairs[i].length];
+			}
+			System.arraycopy(locusPairs[i], 0, previousPairs, 0, previousCount);
+			System.arraycopy(locusHeights[i], 0, previousHeights, 0, previousCount);
+			gather(geneTreeDistributions.get(i), i);
+
+			// Merge the previous and current pairs, which are both in increasing order
+			final int[] pairs = locusPairs[i];
+			final double[] heights = locusHeights[i];
+			final int count = locusPairCounts[i];
+			int k = 0;
+			for (int j = 0; j < previousCount; j++) {
+				final int previous = previousPairs[j];
+				while (k < count && pairs[k] < previous) {
+					updatePair(i, pairs[k], heights[k]);
+					k++;
+				}
+				if (k < count && pairs[k] == previous) {
+					updatePair(i, pairs[k], heights[k]);
+					k++;
+				} else if (joinLoci[previous] == i) {
+					// This locus no longer joins the pair
+					minimisePair(previous);
+				}
+			}
+			while (k < count) {
+				updatePair(i, pairs[k], heights[k]);
+				k++;
+			}
+		}
+	}
+
+
+	// Locus i now joins pair p at this height
+	private void updatePair(final int i, final int p, final double height) {
+		if (height < joinHeights[p]) {
+			joinHeights[p] = height;
+			joinLoci[p] = i;
+		} else if (joinLoci[p] == i && height > joinHeights[p]) {
+			// This locus may no longer attain the minimum
+			minimisePair(p);
+		}
+	}
+
+
+	// Find the lowest join height of pair p across loci
+	private void minimisePair(final int p) {
+		joinHeights[p] = Double.POSITIVE_INFINITY;
+		joinLoci[p] = -1;
+		for (int j = 0; j < locusCount; j++) {
+			final int k = Arrays.binarySearch(locusPairs[j], 0, locusPairCounts[j], p);
+			if (k >= 0 && locusHeights[j][k] < joinHeights[p]) {
+				joinHeights[p] = locusHeights[j][k];
+				joinLoci[p] = j;
+			}
+		}
+	}
+
+
+	private boolean isStale(final List<GeneTreeForSpeciesTreeDistribution> geneTreeDistributions, final int locus) {
+		final GeneTreeForSpeciesTreeDistribution gene = geneTreeDistributions.get(locus);
+		return gene != genes[locus] || gene.getGeneTreeVersion() != versions[locus];
+	}
+
+
+	private void gather(final GeneTreeForSpeciesTreeDistribution gene, final int locus) {
+		final int geneNodeCount = gene.getGeneTree().getNodeCount();
+		if (descendantSpecies.length < geneNodeCount * speciesLeafWords) {
+			descendantSpecies = new long[geneNodeCount * speciesLeafWords];
+		}
+
+		joinedPairCount = 0;
+		recurseJoinHeights(gene.getGeneTree().getRoot(), gene.getTipNumberMap());
+
+		// Copy the joined pairs into the locus in increasing order, and clear the working space for the next locus
+		Arrays.sort(joinedPairs, 0, joinedPairCount);
+		if (locusPairs[locus].length < joinedPairCount) {
+			locusPairs[locus] = new int[joinedPairCount];
+			locusHeights[locus] = new double[joinedPairCount];
+		}
+		final int[] pairs = locusPairs[locus];
+		final double[] heights = locusHeights[locus];
+		for (int k = 0; k < joinedPairCount; k++) {
+			final int p = joinedPairs[k];
+			pairs[k] = p;
+			heights[k] = pairHeights[p];
+			pairHeights[p] = Double.POSITIVE_INFINITY;
+		}
+		locusPairCounts[locus] = joinedPairCount;
+
+		genes[locus] = gene;
+		versions[locus] = gene.getGeneTreeVersion();
+	}
+
+
+	/* Post-order traversal, which fills in the species below each gene tree node, and the lowest node joining each
+	   pair of species with one below each child */
+	private void recurseJoinHeights(final Node node, final int[] leafNodeMap) {
+		final int offset = node.getNr() * speciesLeafWords;
+		Arrays.fill(descendantSpecies, offset, offset + speciesLeafWords, 0L);
+		if (node.isLeaf()) {
+			final int species = leafNodeMap[node.getNr()];
+			descendantSpecies[offset + (species >> 6)] |= 1L << species;
+			return;
+		}
+
+		final Node leftChild = node.getLeft();
+		final Node rightChild = node.getRight();
+		recurseJoinHeights(leftChild, leafNodeMap);
+		recurseJoinHeights(rightChild, leafNodeMap);
+
+		final int leftOffset = leftChild.getNr() * speciesLeafWords;
+		final int rightOffset = rightChild.getNr() * speciesLeafWords;
+		final double height = node.getHeight();
+		for (int a = 0; a < speciesLeafWords; a++) {
+			long leftWord = descendantSpecies[leftOffset + a];
+			while (leftWord != 0) {
+				final int s = (a << 6) + Long.numberOfTrailingZeros(leftWord);
+				leftWord &= leftWord - 1;
+				for (int b = 0; b < speciesLeafWords; b++) {
+					long rightWord = descendantSpecies[rightOffset + b];
+					while (rightWord != 0) {
+						final int t = (b << 6) + Long.numberOfTrailingZeros(rightWord);
+						rightWord &= rightWord - 1;
+						if (s == t) continue;
+						final int p = s < t ? s * speciesLeafCount + t : t * speciesLeafCount + s;
+						if (pairHeights[p] == Double.POSITIVE_INFINITY) {
+							joinedPairs[joinedPairCount++] = p;
+							pairHeights[p] = height;
+						} else if (height < pairHeights[p]) {
+							pairHeights[p] = height;
+						}
+					}
+				}
+			}
+		}
+		for (int a = 0; a < speciesLeafWords; a++) {
+			descendantSpecies[offset + a] = descendantSpecies[leftOffset + a] | descendantSpecies[rightOffset + a];
+		}
+	}
+
+
+	/**
+	 * @return the lowest join height of the species tree leaves s and t across loci, or infinity if no locus joins them
+	 */
+	public double getJoinHeight(int s, int t) {
+		return s < t ? joinHeights[s * speciesLeafCount + t] : joinHeights[t * speciesLeafCount + s];
+	}
+
+
+	/**
+	 * The lowest join height between a species on the left and a species on the right, which is the maximum height of a
+	 * species tree node with these species on either side of it in the canonical order
+	 * @param leftSpecies species tree leaf numbers
+	 * @param leftCount
+	 * @param rightSpecies species tree leaf numbers
+	 * @param rightCount
+	 * @param maxHeight the bound if no gene tree node is lower
+	 * @return
+	 */
+	public double getMaxHeight(int[] leftSpecies, int leftCount, int[] rightSpecies, int rightCount, double maxHeight) {
+		for (int l = 0; l < leftCount; l++) {
+			final int s = leftSpecies[l];
+			for (int r = 0; r < rightCount; r++) {
+				final double height = getJoinHeight(s, rightSpecies[r]);
+				if (height < maxHeight) maxHeight = height;
+			}
+		}
+		return maxHeight;
+	}
+
+
+}
@@ -3,9 +3,6 @@ package starbeast3.operators;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.RejectedExecutionException;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.Description;
@@ -20,6 +17,7 @@ import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
 import starbeast3.core.OperatorScheduleRecalculator;
 import starbeast3.core.ParallelMCMC;
+import starbeast3.core.SharedWorkerPool;
 
 @Description("Operator that does proposals that count for one step or more steps in the MCMC")
 public abstract class MultiStepOperator extends Operator {
@@ -29,7 +27,7 @@ public abstract class MultiStepOperator extends Operator {
 	
 	
     final public Input<Long> chainLengthInput =
-            new Input<>("chainLength", "Length of the MCMC chain: each individual ParallelMCMC performs chainLength/nrOfThreads samples");
+            new Input<>("chainLength", "Length of the MCMC chain: the chain lengths of the individual ParallelMCMCs add up to this");
     
     final public Input<Double> coverageInput =
             new Input<>("chainCoverage", "The MCMC chain length is the coverage times the number of parameters",
@@ -57,6 +55,10 @@ public abstract class MultiStepOperator extends Operator {
     		+ "set to -1, then chain lengths are sampled instead of runtimes.", -1.0);
     
     
+    final public Input<Integer> rebalanceEveryInput =  new Input<>("rebalanceEvery", "Number of operator calls between re-balancing the chain lengths using the running runtime estimates "
+    		+ "of each chain, once every chain has been timed (and after the initial regression, if there is one). Set to 0 to keep the chain lengths fixed (default).", 0);
+    
+    
     final public Input<Tree> dummyInput = new Input<>("speciesTree", "an optional dummy input so that beauti can load the template (hack)", Input.Validate.OPTIONAL);
     
       //final public Input<CompoundDistribution> likelihoodInput = new Input<>("likelihood", "the likelihood", Input.Validate.REQUIRED);
@@ -67,10 +69,12 @@ public abstract class MultiStepOperator extends Operator {
     
     protected State otherState;
     protected boolean useMCMC;
-	protected ExecutorService exec;
-    protected CountDownLatch countDown;
     protected List<ParallelMCMC> mcmcs;
     protected List<CoreRunnable> runnables;
+    protected CoreRunnable[] runnableArray;
+    
+    // If true, the chains are dispatched most expensive first, using their measured runtimes, rather than in a fixed order
+    protected boolean scheduleByCost = false;
     
     
     
@@ -88,6 +92,17 @@ public abstract class MultiStepOperator extends Operator {
     boolean appliedRegression;
     
     long nproposals;
+    
+    // Number of calls since the chain lengths were last re-balanced
+    long callsSinceRebalance;
+    
+    // Cumulative counters for ChainCostLogger, updated by the calling thread once the chains have finished
+    long dispatchCount;
+    long dispatchNanos; // wall time from handing the chains to the pool until the last one finished
+    long dispatchOverheadNanos; // wall time minus the runtime of the longest chain
+    long threadBusyNanos;
+    long threadAvailableNanos;
+    long chainLengthUpdates; // number of times the chain lengths were set by the regression or re-balanced
 	
 	/** number of steps to be performed by operator **/
 	public int stepCount() {
@@ -104,9 +119,17 @@ public abstract class MultiStepOperator extends Operator {
 		
 		
 		this.nproposals = 0;
+		this.callsSinceRebalance = 0;
+		this.dispatchCount = 0;
+		this.dispatchNanos = 0;
+		this.dispatchOverheadNanos = 0;
+		this.threadBusyNanos = 0;
+		this.threadAvailableNanos = 0;
+		this.chainLengthUpdates = 0;
 		
 		// Doing regression on chainlengths?
-		if (nregressionInput.get() >= 5 && this.mcmcs.size() > 1) {
+		// Not needed if the chains are scheduled by cost, since they will not run in lockstep
+		if (nregressionInput.get() >= 5 && this.mcmcs.size() > 1 && !this.scheduleByCost) {
 			this.doRegression = true;
 			if (targetCPUInput.get() >= 1) {
 				throw new IllegalArgumentException("targetCPU must be less than 1");
@@ -158,6 +181,7 @@ public abstract class MultiStepOperator extends Operator {
 	    	CoreRunnable runnable = new CoreRunnable(mcmc);
 	    	this.runnables.add(runnable);
 	    }
+	    this.runnableArray = this.runnables.toArray(new CoreRunnable[0]);
 		  
 	}
 	
@@ -239,7 +263,7 @@ public abstract class MultiStepOperator extends Operator {
 			
 			// Set the runtime of the slowest thread to match the user-specified chain length
 			else {
-				targetRuntime = this.mcmcs.get(slowestThread).predict(this.chainLength / this.nrOfThreads);
+				targetRuntime = this.mcmcs.get(slowestThread).predict(this.chainLength / this.mcmcs.size());
 				
 				
 				
@@ -253,7 +277,7 @@ public abstract class MultiStepOperator extends Operator {
 			// Set the runtime of all chains to that of the slowest
 			for (ParallelMCMC mcmc : this.mcmcs) {
 				if (targetRuntime > 0) mcmc.setChainlengthToTargetRuntime(targetRuntime);
-				else mcmc.setChainlengthToTargetRuntime(chainLength*1.0 / this.nrOfThreads);
+				else mcmc.setChainlengthToTargetRuntime(chainLength*1.0 / this.mcmcs.size());
 			}
 			
 			
@@ -280,6 +304,7 @@ public abstract class MultiStepOperator extends Operator {
 
 		
 			this.appliedRegression = true;
+			this.chainLengthUpdates++;
 			
 			
 			// Can start learning threads now that the chain lengths have optimised
@@ -287,6 +312,86 @@ public abstract class MultiStepOperator extends Operator {
 			
 		}
 		
+		
+		// Periodically re-balance the chain lengths, as the runtimes drift after burnin.
+		// This also applies when there is no regression, eg. when the chains are scheduled by cost
+		else if (rebalanceEveryInput.get() > 0 && (this.appliedRegression || !this.doRegression)) {
+			this.callsSinceRebalance++;
+			if (this.callsSinceRebalance >= rebalanceEveryInput.get()) {
+				rebalance();
+				this.callsSinceRebalance = 0;
+			}
+		}
+		
+	}
+	
+	
+	/**
+	 * Set the chain lengths from the running cost estimates of each chain, using the same targets as the initial regression
+	 */
+	private void rebalance() {
+		
+		// Wait until every chain has a cost estimate
+		for (ParallelMCMC mcmc : this.mcmcs) {
+			if (!mcmc.hasCostEstimate()) return;
+		}
+		
+		// Find the slowest chain, and the mean costs (ns)
+		int slowestThread = 0;
+		double meanRunCost = 0;
+		double meanStepCost = 0;
+		for (int i = 0; i < this.mcmcs.size(); i ++) {
+			ParallelMCMC mcmc = this.mcmcs.get(i);
+			meanRunCost += mcmc.getRunCost() / this.mcmcs.size();
+			meanStepCost += mcmc.getStepCost() / this.mcmcs.size();
+			if (mcmc.getStepCost() > this.mcmcs.get(slowestThread).getStepCost()) slowestThread = i;
+		}
+		if (meanStepCost <= 0) return;
+		
+		
+		// Runtime of every chain
+		double targetRuntime;
+		if (targetCPUInput.get() > 0) {
+			
+			// The slowest chain is as long as it needs to be for the target overhead
+			double maximumOverhead = (this.nrOfThreads-1.0) / this.nrOfThreads;
+			double targetOverhead = maximumOverhead * (1 - targetCPUInput.get());
+			if (targetOverhead <= 0) return;
+			long targetChainLength = Math.max(1, (long)((meanRunCost/targetOverhead - meanRunCost) / meanStepCost));
+			targetRuntime = this.mcmcs.get(slowestThread).predictRuntime(targetChainLength);
+			
+		} else {
+			
+			// The chain lengths add up to the user-specified chain length. This is over all of the chains, of which there 
+			// may be more than there are threads: sum_i (targetRuntime - runCost_i) / stepCost_i = chainLength
+			double stepsPerNs = 0;
+			double runCostInSteps = 0;
+			for (ParallelMCMC mcmc : this.mcmcs) {
+				stepsPerNs += 1.0 / mcmc.getStepCost();
+				runCostInSteps += mcmc.getRunCost() / mcmc.getStepCost();
+			}
+			targetRuntime = (this.chainLength + runCostInSteps) / stepsPerNs;
+		}
+		
+		
+		// Set the runtime of all chains to the target
+		for (ParallelMCMC mcmc : this.mcmcs) {
+			mcmc.setChainLengthToRuntime(targetRuntime);
+		}
+		this.chainLengthUpdates++;
+		
+		
+		// Keep the effective weight of this operator
+		if (targetWeightInput.get() > 0) {
+			long chainLengthSum = 0;
+			for (ParallelMCMC mcmc : this.mcmcs) {
+				chainLengthSum += mcmc.getChainLength();
+			}
+			if (this.learnThreads) this.learner.setChainLength(chainLengthSum);
+			this.m_pWeight.set(targetWeightInput.get() / chainLengthSum);
+			this.scheduleInput.get().reweight();
+		}
+		
 	}
 	
 	
@@ -314,6 +419,11 @@ public abstract class MultiStepOperator extends Operator {
 			
 		// Run 1 or more MCMCs
 		} else {
+			
+			// The chains take new random number streams if the analysis has been (re)started since they last ran
+			for (ParallelMCMC mcmc : this.mcmcs) {
+				mcmc.refreshRandomStream();
+			}
 		
 			
 			// Do not waste time creating threads if there is only 1 thread
@@ -343,43 +453,89 @@ public abstract class MultiStepOperator extends Operator {
 	}
 	
     private void proposeUsingThreads() {
-        try {
-        	
-            countDown = new CountDownLatch(mcmcs.size());
-            
-            // Sample runtime
-            if (!this.appliedRegression && this.doRegression && runtimeInput.get() > 0) {
-            	double runtime = Randomizer.nextDouble() * runtimeInput.get();
-            	//Log.warning("Runtime " + runtime);
-	            for (ParallelMCMC mcmc : mcmcs) {
-	            	if (runtimeInput.get() > 0) {
-	            		mcmc.setRuntime((long)runtime);
-	            	}
-	            }
-            }
-            
-            // Kick off the threads
-            for (CoreRunnable runnable : this.runnables) {
-                exec.execute(runnable);
-            }
-            
-            
-            countDown.await();
-            
-            
+    	
+        // Sample runtime
+        if (!this.appliedRegression && this.doRegression && runtimeInput.get() > 0) {
+        	double runtime = Randomizer.nextDouble() * runtimeInput.get();
+        	//Log.warning("Runtime " + runtime);
             for (ParallelMCMC mcmc : mcmcs) {
-            	//Log.warning("there were " + mcmc.getChainLength() + " proposals");
-            	nproposals += mcmc.getChainLength();
+            	if (runtimeInput.get() > 0) {
+            		mcmc.setRuntime((long)runtime);
+            	}
             }
-            
-        } catch (RejectedExecutionException | InterruptedException e) {
-            Log.err.println("Stop using threads: " + e.getMessage());
         }
+        
+        // Most expensive chains first, so that threads which finish early take the cheap ones
+        if (this.scheduleByCost) {
+        	sortRunnablesByCost();
+        }
+        
+        // Run the chains on the shared worker pool, and wait for them all to finish.
+        // A chain which fails stops BEAST in CoreRunnable, so there is nothing to recover from here
+        SharedWorkerPool pool = SharedWorkerPool.getInstance();
+        final long dispatchStartTime = System.nanoTime();
+        pool.invokeAll(this.runnableArray, this.runnableArray.length, this.nrOfThreads);
+        updateDispatchMetrics(System.nanoTime() - dispatchStartTime, pool.getWorkerCount() + 1);
+        
+        
+        for (ParallelMCMC mcmc : mcmcs) {
+        	//Log.warning("there were " + mcmc.getChainLength() + " proposals");
+        	nproposals += mcmc.getChainLength();
+        }
+        
+    }
+    
+    
+    /**
+     * Merge the runtimes of the chains which have just finished into the dispatch counters
+     * @param wallTime time (ns) taken by invokeAll
+     * @param poolThreads number of threads of the pool, including the calling thread
+     */
+    private void updateDispatchMetrics(long wallTime, int poolThreads) {
+    	long longestRuntime = 0;
+    	for (CoreRunnable runnable : this.runnableArray) {
+    		longestRuntime = Math.max(longestRuntime, runnable.lastRuntime);
+    		this.threadBusyNanos += runnable.lastRuntime;
+    		runnable.barrierWaitNanos += Math.max(0, wallTime - runnable.lastRuntime);
+    	}
+    	int threads = Math.min(Math.min(this.nrOfThreads, poolThreads), this.runnableArray.length);
+    	this.threadAvailableNanos += Math.max(1, threads) * wallTime;
+    	this.dispatchOverheadNanos += Math.max(0, wallTime - longestRuntime);
+    	this.dispatchNanos += wallTime;
+    	this.dispatchCount++;
+    }
+    
+    
+    /**
+     * Insertion sort of the runnables by decreasing cost. The order changes little between calls, 
+     * so this is close to linear time, and it is stable so ties keep their initial order
+     */
+    private void sortRunnablesByCost() {
+    	for (int i = 1; i < this.runnableArray.length; i++) {
+    		CoreRunnable runnable = this.runnableArray[i];
+    		int j = i - 1;
+    		while (j >= 0 && this.runnableArray[j].cost < runnable.cost) {
+    			this.runnableArray[j+1] = this.runnableArray[j];
+    			j--;
+    		}
+    		this.runnableArray[j+1] = runnable;
+    	}
     }
     
     
     public class CoreRunnable implements Runnable {
+    	
+    	// Weight of the most recent runtime in the running cost estimate
+    	private static final double COST_DECAY = 0.2;
+    	
         MCMC mcmc;
+        
+        // Running estimate of the runtime of this chain (ns)
+        double cost = 0;
+        
+        // Runtime of the last run, and the total time spent waiting at the barrier for the other chains (ns)
+        long lastRuntime = 0;
+        long barrierWaitNanos = 0;
 
         CoreRunnable(MCMC core) {
         	mcmc = core;
@@ -387,6 +543,7 @@ public abstract class MultiStepOperator extends Operator {
 
         @Override
 		public void run() {
+        	long startTime = System.nanoTime();
             try {
             	mcmc.run();
             } catch (Exception e) {
@@ -394,7 +551,9 @@ public abstract class MultiStepOperator extends Operator {
                 e.printStackTrace();
                 System.exit(1);
             }
-            countDown.countDown();
+            lastRuntime = System.nanoTime() - startTime;
+            double runtime = lastRuntime;
+            cost = cost == 0 ? runtime : (1 - COST_DECAY) * cost + COST_DECAY * runtime;
         }
 
     } // CoreRunnable
@@ -405,6 +564,75 @@ public abstract class MultiStepOperator extends Operator {
     public long getNrProposals() {
     	return nproposals;
     }
+    
+    
+    public List<ParallelMCMC> getParallelMCMCs() {
+    	return mcmcs;
+    }
+    
+    
+    /**
+     * Number of times the chains were run in parallel
+     * @return
+     */
+    public long getDispatchCount() {
+    	return dispatchCount;
+    }
+    
+    
+    /**
+     * Total wall time (ns) of running the chains in parallel
+     * @return
+     */
+    public long getDispatchTime() {
+    	return dispatchNanos;
+    }
+    
+    
+    /**
+     * Total time (ns) of handing the chains over to the threads and waiting for them, beyond the runtime of the longest chain
+     * @return
+     */
+    public long getDispatchOverhead() {
+    	return dispatchOverheadNanos;
+    }
+    
+    
+    /**
+     * Total time (ns) spent running chains, summed across threads
+     * @return
+     */
+    public long getThreadBusyTime() {
+    	return threadBusyNanos;
+    }
+    
+    
+    /**
+     * Total time (ns) the threads were available for running chains, ie. the wall time times the number of threads
+     * @return
+     */
+    public long getThreadAvailableTime() {
+    	return threadAvailableNanos;
+    }
+    
+    
+    /**
+     * Total time (ns) the i-th chain spent waiting for the other chains to finish, including waiting for a free thread
+     * @param i
+     * @return
+     */
+    public long getBarrierWaitTime(int i) {
+    	return runnables.get(i).barrierWaitNanos;
+    }
+    
+    
+    /**
+     * Number of times the chain lengths were set from the regression model or re-balanced
+     * @return
+     */
+    public long getChainLengthUpdateCount() {
+    	return chainLengthUpdates;
+    }
 
 
     
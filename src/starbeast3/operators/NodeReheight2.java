@@ -29,13 +29,8 @@ public class NodeReheight2 extends GTKOperator {
 
     
     
-    private enum RelativePosition {LEFT, RIGHT, BOTH}
-    
     private int nextIndex;
     private int nodeCount;
-    private int geneTreeCount;
-    private int[][] leafNodeMaps;
-    private RelativePosition[][] leafPositionArrays;
     private int trueBifurcationCount;
     private Node[] canonicalOrder;
     private int[] canonicalMap;
@@ -48,6 +43,13 @@ public class NodeReheight2 extends GTKOperator {
     private double maxHeight;
     private double window;
     private boolean originSpecified;
+    
+    // Lowest gene tree node joining each pair of species tree leaves. The maximum height of a node in the canonical
+    // order is the lowest join height between a species to its left and one to its right, which does not depend on the
+    // canonical order, so these are only gathered again for loci whose gene tree has changed
+    private JoinHeightIndex joinHeights;
+    private int[] leftLeaves;
+    private int[] rightLeaves;
 
     @Override
     public void initAndValidate() {
@@ -60,6 +62,9 @@ public class NodeReheight2 extends GTKOperator {
         leftChildren = new Node[nodeCount];
         rightChildren = new Node[nodeCount];
         parents = new Node[nodeCount];
+        joinHeights = new JoinHeightIndex(speciesTree.getLeafNodeCount());
+        leftLeaves = new int[speciesTree.getLeafNodeCount()];
+        rightLeaves = new int[speciesTree.getLeafNodeCount()];
         window = windowInput.get();
         originSpecified = originInput.get() != null;
 
@@ -71,25 +76,6 @@ public class NodeReheight2 extends GTKOperator {
         // If a gene tree kernel is being used, then initialise the gene trees here to those in the kernel
         super.initAndValidate();
         
-        // Assumption: if there is a gene tree kernel, all trees in the kernel have the same taxonset and tip number map
-        // Therefore only need to cache these maps once and not every time
-        this.calculateMaps();
-        
-    }
-    
-    
-    
-    private void calculateMaps() {
-    	
-    	
-    	geneTreeCount = geneTreeDistributions.size();
-        leafNodeMaps = new int[geneTreeCount][];
-        leafPositionArrays = new RelativePosition[geneTreeCount][];
-        for (int i = 0; i < geneTreeCount; i++) {
-            leafNodeMaps[i] = geneTreeDistributions.get(i).getTipNumberMap();
-            leafPositionArrays[i] = new RelativePosition[leafNodeMaps[i].length];
-        }
-    	
     }
     
 
@@ -102,8 +88,7 @@ public class NodeReheight2 extends GTKOperator {
     public double proposal() {
     	
     	geneTreeDistributions = this.getTreeDistributions(this);
-    	//geneTreeCount = geneTreeDistributions.size();
-    	calculateMaps();
+    	joinHeights.update(geneTreeDistributions);
     	
     	
     	
@@ -178,6 +163,9 @@ public class NodeReheight2 extends GTKOperator {
         return 0.0;
     }
 
+    /* The gene tree nodes which constrain the height of the center node are those which join gene tree leaves
+       of species to its left and right in the canonical order. The lowest of these is the lowest join height
+       between such a pair of species */
     private void recalculateMaxHeight(final int centerIndex) {
         if (originSpecified) {
             maxHeight = originInput.get().getValue();
@@ -185,51 +173,17 @@ public class NodeReheight2 extends GTKOperator {
             maxHeight = Double.POSITIVE_INFINITY;
         }
 
-        for (int i = 0; i < geneTreeCount; i++) {
-            final int[] leafNodeMap = leafNodeMaps[i];
-            final RelativePosition[] leafPositions = leafPositionArrays[i];
-            for (int j = 0; j < leafNodeMap.length; j++) {
-                final int speciesNodeNumber = leafNodeMap[j];
-                final int speciesIndex = canonicalMap[speciesNodeNumber];
-                if (speciesIndex < centerIndex) {
-                    leafPositions[j] = RelativePosition.LEFT;
-                } else {
-                    leafPositions[j] = RelativePosition.RIGHT;
-                }
-            }
-
-            final Node geneTreeRoot = geneTreeDistributions.get(i).getGeneTree().getRoot();
-            recurseMaxHeight(geneTreeRoot, leafPositions);
+        // Species tree leaves are at the even positions of the canonical order
+        int leftCount = 0;
+        for (int i = 0; i < centerIndex; i = i + 2) {
+            leftLeaves[leftCount++] = canonicalOrder[i].getNr();
         }
-    }
-
-    private RelativePosition recurseMaxHeight(final Node node, final RelativePosition[] leafPositions) {
-        final Node leftChild = node.getLeft();
-        final Node rightChild = node.getRight();
-
-        RelativePosition leftDescendantPosition;
-        if (leftChild.isLeaf()) {
-            leftDescendantPosition = leafPositions[leftChild.getNr()];
-        } else {
-            leftDescendantPosition = recurseMaxHeight(leftChild, leafPositions);
+        int rightCount = 0;
+        for (int i = centerIndex + 1; i < nodeCount; i = i + 2) {
+            rightLeaves[rightCount++] = canonicalOrder[i].getNr();
         }
 
-        RelativePosition rightDescendantPosition;
-        if (rightChild.isLeaf()) {
-            rightDescendantPosition = leafPositions[rightChild.getNr()];
-        } else {
-            rightDescendantPosition = recurseMaxHeight(rightChild, leafPositions);
-        }
-
-        if (leftDescendantPosition == rightDescendantPosition) {
-            return leftDescendantPosition;
-        } else {
-            // if all descendants of one child are on the left, and all descendants of the other child are on the right
-            if (leftDescendantPosition != RelativePosition.BOTH && rightDescendantPosition != RelativePosition.BOTH) {
-                maxHeight = Double.min(maxHeight, node.getHeight());
-            }
-            return RelativePosition.BOTH;
-        }
+        maxHeight = joinHeights.getMaxHeight(leftLeaves, leftCount, rightLeaves, rightCount, maxHeight);
     }
 
     /* Performs an in-order traversal of the species tree, randomly shuffling left and right nodes, to produce
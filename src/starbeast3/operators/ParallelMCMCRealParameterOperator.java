@@ -6,7 +6,6 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Executors;
 
 
 import beastfx.app.beast.BeastMCMC;
@@ -55,7 +54,6 @@ public class ParallelMCMCRealParameterOperator extends MultiStepOperator {
 		if (nrOfThreads > distributions.size()) {
 			nrOfThreads = distributions.size();
 		}
-	    exec = Executors.newFixedThreadPool(nrOfThreads);
 	    mcmcs = new ArrayList<>();
 	    
 
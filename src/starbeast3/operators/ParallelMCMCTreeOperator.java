@@ -6,10 +6,10 @@ package starbeast3.operators;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
 
 import beast.base.core.BEASTInterface;
 import beast.base.core.BEASTObject;
@@ -35,7 +35,11 @@ import beast.base.inference.operator.kernel.BactrianIntervalOperator;
 import beast.base.inference.operator.kernel.BactrianRandomWalkOperator;
 import beast.base.inference.operator.kernel.Transform;
 import starbeast3.core.ParallelMCMC;
+import starbeast3.evolution.speciation.CoalescentStatistics;
 import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.IntegratedPopulationConditionalPrior;
+import starbeast3.evolution.speciation.IntegratedPopulationPrior;
+import starbeast3.evolution.speciation.IntegratedPopulations;
 
 @Description("Run MCMC on different gene tree parts of the model in parallel before combining them in a single Gibbs move")
 public class ParallelMCMCTreeOperator extends MultiStepOperator {
@@ -55,6 +59,9 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 			new ArrayList<>());
     
 	
+	final public Input<Boolean> dynamicInput = new Input<>("dynamic", "flag to run each distribution as its own chain, with threads taking the next remaining chain "
+			+ "(most expensive first, by measured runtime), instead of assigning distributions to threads once at the start", false);
+	
 	final public Input<Boolean> unthreadInput = new Input<>("unthread", "flag to convert ThreadedTreeLikelihood back into TreeLikelihood when this is called", false);
 	  
 
@@ -62,12 +69,16 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
     
     List<ParallelDistSet> distributions;
     
+    // Densities of the gene trees of each chain given the other gene trees, when the population sizes are integrated out
+    List<IntegratedPopulationConditionalPrior> conditionalPriors;
+    
 
     
 	@Override
 	public void initAndValidate() {
 		this.distributions = distributionInput.get();
 		mcmcs = new ArrayList<>();
+		conditionalPriors = new ArrayList<>();
 		
 		
 
@@ -97,7 +108,6 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 		nrOfThreads = Math.min(nrOfThreads, distributions.size());
 		Log.warning("Running " + this.getID() + " with " + this.nrOfThreads + " threads");
 		//System.exit(1);
-	    exec = Executors.newFixedThreadPool(nrOfThreads);
 	    
 	    
 	    
@@ -107,11 +117,16 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 	    
 	    
 	    
+	    // Dynamic load balancing. One chain per distribution, and threads take the next remaining chain
+	    this.scheduleByCost = dynamicInput.get() && nrOfThreads > 1 && distributions.size() > nrOfThreads;
+	    int nrOfChains = this.scheduleByCost ? distributions.size() : nrOfThreads;
+	    
+	    
 	    // Load balancing. Ensure a roughly equal distribution of site patterns across all threads
 	    int totalDim = 0;
 	    Collections.sort(distributions);
 	    List<List<ParallelMCMCTreeOperatorTreeDistribution>> balancedDistributions = new ArrayList<>();
-	    for (int i = 0; i < nrOfThreads; i++) balancedDistributions.add(new ArrayList<>());
+	    for (int i = 0; i < nrOfChains; i++) balancedDistributions.add(new ArrayList<>());
 	    int threadNum = 0;
 	    for (int i = 0; i < distributions.size(); i ++) {
 	    	ParallelDistSet d = distributions.get(i);
@@ -119,7 +134,7 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 	    	//System.out.println("patterns " + d.getNumberPatterns());
 	    	balancedDistributions.get(threadNum).addAll(d.getDists());
 	    	threadNum++;
-	    	if (threadNum >= nrOfThreads) threadNum = 0;
+	    	if (threadNum >= nrOfChains) threadNum = 0;
 	    }
 	    
 	    
@@ -161,8 +176,8 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 	    
 	    
 	    // Create parallel MCMCs
-	    for (int i = 0; i < nrOfThreads; i++) {
-	    	mcmcs.add(createParallelMCMC(balancedDistributions.get(i), (int)(1.0*chainLength / this.nrOfThreads), doNotInclude));
+	    for (int i = 0; i < nrOfChains; i++) {
+	    	mcmcs.add(createParallelMCMC(balancedDistributions.get(i), (int)(1.0*chainLength / nrOfChains), doNotInclude));
 	    }
 	    Log.warning(this.getClass().getCanonicalName() + ": total chain length is " + chainLength);
 
@@ -246,6 +261,7 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 		List<Distribution> distrs = new ArrayList<>();
 		List<StateNode> stateNodes = new ArrayList<>();
 		List<Operator> operators = new ArrayList<>();
+		Map<IntegratedPopulationPrior, List<GeneTreeForSpeciesTreeDistribution>> integratedGenes = new LinkedHashMap<>();
 		for (ParallelMCMCTreeOperatorTreeDistribution d : distributions) {
 			
 			
@@ -254,6 +270,16 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 			if (!distrs.contains(d.geneprior)) {
 				Log.warning("Adding dist " + d.getGeneprior().getID());
 				distrs.add(d.getGeneprior());
+				
+				// With integrated population sizes, the gene tree density is not in the gene prior but in the prior of all loci
+				if (d.geneprior.popModelInput.get() instanceof IntegratedPopulations) {
+					IntegratedPopulationPrior prior = getIntegratedPopulationPrior(d.geneprior);
+					if (prior == null) {
+						throw new IllegalArgumentException(d.geneprior.getID() + " has integrated population sizes, but its gene tree is not "
+								+ "in the coalescent statistics of an IntegratedPopulationPrior");
+					}
+					integratedGenes.computeIfAbsent(prior, p -> new ArrayList<>()).add(d.geneprior);
+				}
 			}
 			for (Distribution d2 : d.getOtherDists()) {
 				if (!distrs.contains(d2)) {
@@ -518,6 +544,17 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 			}
 		}
 		
+		// The density of the gene trees of this chain given the other gene trees, which stay fixed while the chain runs
+		for (IntegratedPopulationPrior prior : integratedGenes.keySet()) {
+			IntegratedPopulationConditionalPrior conditionalPrior = new IntegratedPopulationConditionalPrior();
+			conditionalPrior.initByName("gene", integratedGenes.get(prior));
+			conditionalPrior.setID(prior.getID() + ".conditional" + conditionalPriors.size());
+			conditionalPrior.setPrior(prior);
+			Log.warning("Adding dist " + conditionalPrior.getID());
+			distrs.add(conditionalPrior);
+			conditionalPriors.add(conditionalPrior);
+		}
+		
 		CompoundDistribution sampleDistr = new CompoundDistribution();
 		sampleDistr.initByName("distribution", distrs);
 		
@@ -539,7 +576,7 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 		
 		
 		// Learn the chain length
-		int nregression = this.nrOfThreads > 1 ? nregressionInput.get() : 0;
+		int nregression = this.nrOfThreads > 1 && !this.scheduleByCost ? nregressionInput.get() : 0;
 
 		ParallelMCMC mcmc = new ParallelMCMC();
 		mcmc.initByName("state", state, "operator", operators, "distribution", sampleDistr, "chainLength", chainLength, "robust", false, "nregression", nregression);
@@ -550,6 +587,23 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 	
 	
 	
+	/**
+	 * The prior which integrates out the population sizes of this gene tree, through the coalescent statistics of its locus
+	 * @param gene
+	 * @return the prior, or null if there is none
+	 */
+	private static IntegratedPopulationPrior getIntegratedPopulationPrior(GeneTreeForSpeciesTreeDistribution gene) {
+		for (BEASTInterface o : gene.getOutputs()) {
+			if (!(o instanceof CoalescentStatistics)) continue;
+			for (BEASTInterface o2 : o.getOutputs()) {
+				if (o2 instanceof IntegratedPopulationPrior) return (IntegratedPopulationPrior) o2;
+			}
+		}
+		return null;
+	}
+	
+	
+	
 	/**
 	 * Get list of state nodes which appear in more than 1 family, or are not part of the state
 	 * These should not be operated on
@@ -671,6 +725,12 @@ public class ParallelMCMCTreeOperator extends MultiStepOperator {
 			}
 		}
 		*/
+		
+		// The other loci of each chain, the species tree and the population size prior may have changed since the chains last ran
+		for (IntegratedPopulationConditionalPrior conditionalPrior : conditionalPriors) {
+			conditionalPrior.updateOtherLoci();
+		}
+		
 		double logHR = super.proposal();
 		
 		
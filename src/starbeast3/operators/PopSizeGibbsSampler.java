@@ -3,9 +3,6 @@ package starbeast3.operators;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.commons.math3.distribution.GammaDistribution;
-import org.apache.commons.math3.exception.NotStrictlyPositiveException;
-
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
@@ -19,7 +16,9 @@ import beast.base.evolution.tree.TreeIntervals;
 import beast.base.inference.distribution.Gamma;
 import beast.base.inference.distribution.InverseGamma;
 import beast.base.inference.distribution.ParametricDistribution;
+import starbeast3.evolution.speciation.CoalescentStatistics;
 import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.MultiLocusCoalescent;
 import starbeast3.genekernel.GTKOperator;
 import starbeast3.genekernel.GTKPrior;
 import starbeast3.util.*;
@@ -66,6 +65,7 @@ public class PopSizeGibbsSampler extends GTKOperator {
 	final public Input<RealParameter> popSizesInput = new Input<>("popSizes", "constant population size parameter, one dimension for each branch of the species tree", Validate.REQUIRED);
 	final public Input<ParametricDistribution> priorInput = new Input<>("gammaprior", "gamma distributed prior for population sizes", Validate.REQUIRED);
 	final public Input<TreeIntervals> treeIntervalsInput = new Input<>("intervals", "tree intervals for use with single tree -- should not be used if gene-attribute is used");
+	final public Input<CoalescentStatistics> statisticsInput = new Input<>("statistics", "cached coalescent statistics of the genes. If not specified, these are gathered on every proposal");
 	
 	
 	RealParameter popSizes;
@@ -73,8 +73,11 @@ public class PopSizeGibbsSampler extends GTKOperator {
 	ParametricDistribution prior;
 	TreeIntervals treeIntervals;
 
-	// used to sample a gamma distribution
-	MyRandomizer myRandomizer = new MyRandomizer();
+	// coalescent statistics of the current genes, either the cached ones or those gathered by this operator
+	MultiLocusCoalescent coalescent;
+	MultiLocusCoalescent gatheredCoalescent;
+	
+	double[] newPopSizes;
 	
 	@Override
 	public void initAndValidate() {
@@ -109,9 +112,20 @@ public class PopSizeGibbsSampler extends GTKOperator {
 	public double proposal() {
 		
 		geneTreeDistributions = this.getTreeDistributions(this);
+		if (treeIntervals == null && statisticsInput.get() != null && statisticsInput.get().hasGenes(geneTreeDistributions)) {
+			coalescent = statisticsInput.get().getCoalescent();
+		} else if (treeIntervals == null) {
+			if (gatheredCoalescent == null) {
+				gatheredCoalescent = new MultiLocusCoalescent(popSizes.getDimension());
+			}
+			gatheredCoalescent.gatherModified(geneTreeDistributions);
+			coalescent = gatheredCoalescent;
+		}
 		
 		
-		double[] newPopSizes = new double[popSizes.getDimension()];
+		if (newPopSizes == null || newPopSizes.length != popSizes.getDimension()) {
+			newPopSizes = new double[popSizes.getDimension()];
+		}
 		double lower = popSizes.getLower();
 		double upper = popSizes.getUpper();
 		for (int i = 0; i < popSizes.getDimension(); i++) {
@@ -152,30 +166,14 @@ public class PopSizeGibbsSampler extends GTKOperator {
 			return constantCoalescentSample();
 		}
 		
-		double a = 0; // = sum_j k_{jb}
-		for (GeneTreeForSpeciesTreeDistribution prior : geneTreeDistributions) {
-			a += prior.getCoalescentCount(branch);
-		}
-		
-		double b = 0; // = sum_j 1/ploidy \sum_i c_jbi(2 choose (n_jb - i))
-		for (GeneTreeForSpeciesTreeDistribution prior : geneTreeDistributions) {
-			double c = 0;
-			double [] times = prior.getTimes(branch);
-			double nbj = prior.getLineageCount(branch);
-			for (int i = 0; i < times.length - 1; i++) {
-				c += (times[i+1] - times[i]) * (nbj - i) * (nbj - i - 1) / 2;
-			}
-			double ploidy = prior.getPloidy();
-			c /= ploidy;
-			b += c;
-		}
+		double a = coalescent.getCoalescentCount(branch); // = sum_j k_{jb}
+		double b = coalescent.getPloidyWeightedIntervalSum(branch); // = sum_j 1/ploidy \sum_i c_jbi(2 choose (n_jb - i))
 		
 		
 		double alpha = priorAlpha.getArrayValue() + a;
 		double beta = priorBeta.getArrayValue() + b;
 		
-		GammaDistribution g = new GammaDistribution(myRandomizer, alpha, 1.0/beta, GammaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-		double newN = 1.0/g.sample();
+		double newN = 1.0/ChainRandomizer.nextGamma(alpha, 1.0/beta);
 		return newN;
 		
 	}
@@ -222,8 +220,7 @@ public class PopSizeGibbsSampler extends GTKOperator {
 		double alpha = priorAlpha.getArrayValue() + a;
 		double beta = priorBeta.getArrayValue() + b;
 		
-		GammaDistribution g = new GammaDistribution(myRandomizer, alpha, 1.0/beta, GammaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-		double newN = 1.0/g.sample();
+		double newN = 1.0/ChainRandomizer.nextGamma(alpha, 1.0/beta);
 		return newN;
 	}	
 }
@@ -15,6 +15,8 @@ public class BinaryNode extends Node {
 	public BinaryNode(int labelNr, BinaryTree tree) {
 		this.labelNr = labelNr;
 		this.tree = tree;
+		// Node.startEditing and Node.getTree use the tree of the base class
+		super.tree = tree;
 		if (labelNr < tree.getTaxaNames().length) {
 			this.ID = tree.getTaxaNames()[labelNr];
 		}
@@ -38,6 +40,26 @@ public class BinaryNode extends Node {
     public void setHeight(final double height) {
         tree.startEditing();
         tree.height[labelNr] = height;
+        makeDirty(Tree.IS_DIRTY);
+        if (!isLeaf()) {
+        	getLeft().makeDirty(Tree.IS_DIRTY);
+        	if (getRight() != null) {
+        		getRight().makeDirty(Tree.IS_DIRTY);
+        	}
+        }
+    }
+    
+    @Override
+    public double getLength() {
+    	if (isRoot()) {
+    		return 0;
+    	}
+    	return getParent().getHeight() - getHeight();
+    }
+    
+    @Override
+    public double getDate() {
+    	return tree.getDate(getHeight());
     }
 
     @Override
@@ -118,6 +140,22 @@ public class BinaryNode extends Node {
     	return children;
     }
 
+    @Override
+    public int getLeafNodeCount() {
+		if (isLeaf()) {
+			return 1;
+		}
+		return getLeft().getLeafNodeCount() + getRight().getLeafNodeCount();
+    }
+    
+    @Override
+    public int getInternalNodeCount() {
+		if (isLeaf()) {
+			return 0;
+		}
+		return 1 + getLeft().getInternalNodeCount() + getRight().getInternalNodeCount();
+    }
+
     @Override
     public int getNodeCount() {
 		if (isLeaf()) {
@@ -132,16 +170,30 @@ public class BinaryNode extends Node {
     @Override
     public void removeChild(Node child) {
         startEditing();
+        // As in Node, the remaining child becomes the left child, and the next child added becomes the right child
         if (tree.left[labelNr] == child.getNr()) {
-        	tree.left[labelNr] = -1;
-        } else {
-        	tree.right[labelNr] = -1;
+        	tree.left[labelNr] = tree.right[labelNr];
         }
+        tree.right[labelNr] = -1;
+        makeDirty(Tree.IS_FILTHY);
+    }
+    
+    /**
+     * Set the dirtiness of this node only, replacing the old value
+     * @param dirty
+     */
+    void setDirty(final int dirty) {
+    	isDirty = dirty;
     }
     
     @Override
     public void removeAllChildren(final boolean inOperator) {
-    	throw new RuntimeException("Not implemented yet");
+    	if (inOperator) {
+    		startEditing();
+    	}
+    	tree.left[labelNr] = -1;
+    	tree.right[labelNr] = -1;
+        makeDirty(Tree.IS_FILTHY);
     }
 
     @Override
@@ -153,15 +205,18 @@ public class BinaryNode extends Node {
     	} else {
     		tree.right[labelNr] = child.getNr();
     	}
+        makeDirty(Tree.IS_FILTHY);
+        child.makeDirty(Tree.IS_FILTHY);
     }
     
     @Override
     public void setParent(Node parent) {
-    	if (parent == null) {
-    		tree.parent[labelNr] = -1;
-    	} else {
-    		tree.parent[labelNr] = parent.getNr();
-    	}
+        startEditing();
+        final int parentNr = parent == null ? -1 : parent.getNr();
+        if (tree.parent[labelNr] != parentNr) {
+        	tree.parent[labelNr] = parentNr;
+        	makeDirty(Tree.IS_FILTHY);
+        }
     }
     
     @Override
@@ -182,7 +237,7 @@ public class BinaryNode extends Node {
             if (getRight() != null) {
                 dof += getRight().scale(scale);
             }
-            if (height < getLeft().getHeight() || height < getRight().getHeight()) {
+            if (getHeight() < getLeft().getHeight() || getHeight() < getRight().getHeight()) {
                 throw new IllegalArgumentException("Scale gives negative branch length");
             }
         }
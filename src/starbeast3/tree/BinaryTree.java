@@ -53,8 +53,13 @@ public class BinaryTree extends Tree implements TreeInterface {
 		nodes = new BinaryNode[nodeCount];
 		for (int i = 0; i < nodeCount; i++) {
 			nodes[i] = new BinaryNode(i, this);
+			parent[i] = -1;
+			left[i] = -1;
+			right[i] = -1;
 		}
 		
+		// Methods inherited from Tree read the node array and root directly
+		m_nodes = nodes;
 		root = nodes[nodeCount - 1];
 	}
 
@@ -187,7 +192,7 @@ public class BinaryTree extends Tree implements TreeInterface {
 
 	@Override
 	public Node[] getNodesAsArray() {
-		return nodes.clone();
+		return nodes;
 	}
 
 	@Override
@@ -268,14 +273,9 @@ public class BinaryTree extends Tree implements TreeInterface {
 	@Override
 	public void setEverythingDirty(boolean isDirty) {
         setSomethingIsDirty(isDirty);
-        if (!isDirty) {
-            for( Node n : nodes ) {
-                n.makeDirty(IS_CLEAN);
-            }
-        } else {
-            for( Node n : nodes ) {
-                n.makeDirty(IS_FILTHY);
-            }
+        // makeDirty would OR the flag into the old one, so that the nodes are never cleaned
+        for (BinaryNode n : nodes) {
+            n.setDirty(isDirty ? IS_FILTHY : IS_CLEAN);
         }
 	}
 
@@ -294,7 +294,42 @@ public class BinaryTree extends Tree implements TreeInterface {
 
 	@Override
 	public void assignTo(StateNode other) {
-		throw new RuntimeException("Not implemented yet");
+		if (other instanceof BinaryTree) {
+			final BinaryTree tree = (BinaryTree) other;
+			tree.initByName("taxonset", m_taxonset.get());
+			tree.setID(getID());
+			tree.index = index;
+			tree.assignFromFragile(this);
+		} else if (other instanceof Tree) {
+			other.assignFrom(toTree());
+			other.setID(getID());
+		} else {
+			throw new IllegalArgumentException("Expected state node of type tree");
+		}
+	}
+
+
+	/**
+	 * An object graph copy of this tree, with the same node numbers
+	 * @return
+	 */
+	public Tree toTree() {
+		final Node[] newNodes = new Node[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			newNodes[i] = new Node();
+			newNodes[i].setNr(i);
+			newNodes[i].setHeight(height[i]);
+			if (i < leafNodeCount) {
+				newNodes[i].setID(m_sTaxaNames[i]);
+			}
+		}
+		for (int i = 0; i < nodeCount; i++) {
+			if (left[i] >= 0) newNodes[i].addChild(newNodes[left[i]]);
+			if (right[i] >= 0) newNodes[i].addChild(newNodes[right[i]]);
+		}
+		final Tree tree = new Tree(newNodes[nodeCount - 1]);
+		tree.setID(getID());
+		return tree;
 	}
 
 	@Override
@@ -323,6 +358,12 @@ public class BinaryTree extends Tree implements TreeInterface {
 		}
 	}
 
+	@Override
+	public void assignFromWithoutID(StateNode other) {
+		assignFromFragile(other);
+		setEverythingDirty(true);
+	}
+
 	@Override
 	public void assignFromFragile(StateNode other) {
 		if (other instanceof BinaryTree) {
@@ -372,10 +413,38 @@ public class BinaryTree extends Tree implements TreeInterface {
 	@Override
 	public int scale(double scale) {
         startEditing();
-        for (int i = m_sTaxaNames.length; i < m_sTaxaNames.length * 2 -1 ; i++) {
+        for (int i = leafNodeCount; i < nodeCount; i++) {
         	height[i] *= scale;
         }
-		return m_sTaxaNames.length - 1;
+        
+        // Internal nodes are scaled, but tips may be dated
+        for (int i = leafNodeCount; i < nodeCount; i++) {
+        	if (height[i] < height[left[i]] || height[i] < height[right[i]]) {
+        		throw new IllegalArgumentException("Scale gives negative branch length");
+        	}
+        }
+        for (Node n : nodes) {
+        	n.makeDirty(IS_DIRTY);
+        }
+		return internalNodeCount;
+	}
+	
+	
+	@Override
+	public void makeCaterpillar(final double minInternalHeight, final double step, final boolean finalise) {
+		startEditing();
+		int previous = 0;
+		for (int i = leafNodeCount; i < nodeCount; i++) {
+			final int leaf = i - leafNodeCount + 1;
+			left[i] = previous;
+			right[i] = leaf;
+			parent[previous] = i;
+			parent[leaf] = i;
+			height[i] = minInternalHeight + (i - leafNodeCount) * step;
+			previous = i;
+		}
+		parent[nodeCount - 1] = -1;
+		setEverythingDirty(true);
 	}
 
 	@Override
@@ -448,6 +517,9 @@ public class BinaryTree extends Tree implements TreeInterface {
         	nodes[m] = tmp3;
         	nodes[n].setNr(n);
         	nodes[m].setNr(m);
+        	root = nodes[n];
+        	nodes[n].makeDirty(IS_FILTHY);
+        	nodes[m].makeDirty(IS_FILTHY);
         }
     }
 
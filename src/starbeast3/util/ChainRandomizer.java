@@ -0,0 +1,199 @@
+package starbeast3.util;
+
+import java.util.SplittableRandom;
+
+import beast.base.util.Randomizer;
+
+/**
+ * Per-chain random number streams for chains which run in parallel, such as ParallelMCMC.
+ *
+ * Each chain takes its own stream, split off a master generator. The master is seeded from the BEAST seed and the
+ * number of times it has been reseeded, and is reseeded when the seed changes and at the start of each analysis
+ * (see reset), so a second analysis in the same JVM does not continue the streams of the first.
+ * Streams are handed out in the order in which the chains ask for them, so a rerun with the same seed gets the same streams.
+ * Each thread that runs an analysis (eg. those of ShortChainsMCMC) has its own master.
+ * While a chain runs it binds its stream to the current thread, and the static methods below draw from that stream.
+ * On a thread without a stream (eg. the main MCMC chain) they draw from the BEAST Randomizer as before, so
+ * the main chain remains deterministic.
+ *
+ * Only code that draws through this class uses the stream of the chain: the operator selection and accept/reject step
+ * of ParallelMCMC, and the starbeast3 classes that call it (eg. PopSizeGibbsSampler). The BEAST operators which
+ * ParallelMCMCTreeOperator and ParallelMCMCRealParameterOperator give the chains (eg. Exchange, WilsonBalding and the
+ * Bactrian kernel operators) still draw from the BEAST Randomizer, which all threads share. So parallel chains still
+ * contend for it, and a run with more than one thread is not reproducible.
+ */
+public class ChainRandomizer {
+
+	private static final ThreadLocal<Master> master = ThreadLocal.withInitial(Master::new);
+	private static final ThreadLocal<SplittableRandom> current = new ThreadLocal<>();
+
+
+	private static class Master {
+		SplittableRandom random = null;
+		long seed; // the BEAST seed the master was last seeded from
+		int epoch = 0; // incremented whenever the master is reseeded
+	}
+
+
+	/**
+	 * A new independent stream, split off the master generator of the analysis on this thread
+	 * @return
+	 */
+	public static SplittableRandom newStream() {
+		Master m = master.get();
+		if (m.random == null || m.seed != Randomizer.getSeed()) {
+			reseed(m);
+		}
+		return m.random.split();
+	}
+
+
+	/**
+	 * Reseed the master generator of the analysis on this thread. To be called by the analysis once its state is set up,
+	 * before the chains run. Chains that took their stream before this should take a new one, see getEpoch
+	 */
+	public static void reset() {
+		reseed(master.get());
+	}
+
+
+	// Seed the master from the BEAST seed, and take the next epoch. The master of each epoch is split off a generator
+	// seeded from the BEAST seed, so that the masters of different epochs are independent of one another
+	private static void reseed(Master m) {
+		m.seed = Randomizer.getSeed();
+		m.epoch++;
+		SplittableRandom seeded = new SplittableRandom(m.seed);
+		for (int e = 0; e < m.epoch; e++) {
+			m.random = seeded.split();
+		}
+	}
+
+
+	/**
+	 * @return The number of times the master generator of the analysis on this thread has been reseeded.
+	 * A stream taken under an earlier epoch belongs to a previous seed or analysis
+	 */
+	public static int getEpoch() {
+		return master.get().epoch;
+	}
+
+
+	/**
+	 * Draw from this stream on the current thread, until unbind is called
+	 * @param stream
+	 * @return the stream that was previously bound, if any
+	 */
+	public static SplittableRandom bind(SplittableRandom stream) {
+		SplittableRandom previous = current.get();
+		current.set(stream);
+		return previous;
+	}
+
+
+	/**
+	 * Restore the stream that was bound before bind was called
+	 * @param previous
+	 */
+	public static void unbind(SplittableRandom previous) {
+		if (previous == null) {
+			current.remove();
+		} else {
+			current.set(previous);
+		}
+	}
+
+
+	public static double nextDouble() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextDouble() : stream.nextDouble();
+	}
+
+	public static float nextFloat() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextFloat() : stream.nextFloat();
+	}
+
+	public static int nextInt() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextInt() : stream.nextInt();
+	}
+
+	public static int nextInt(int n) {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextInt(n) : stream.nextInt(n);
+	}
+
+	public static long nextLong() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextLong() : stream.nextLong();
+	}
+
+	public static boolean nextBoolean() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextBoolean() : stream.nextBoolean();
+	}
+
+	public static double nextGaussian() {
+		SplittableRandom stream = current.get();
+		return stream == null ? Randomizer.nextGaussian() : stream.nextGaussian();
+	}
+
+	/**
+	 * Draw from a gamma distribution, using the method of Marsaglia and Tsang (2000), which does not allocate.
+	 * Shapes below 1 are boosted, using Gamma(a) = Gamma(a+1) U^(1/a)
+	 * @param shape
+	 * @param scale
+	 * @return
+	 */
+	public static double nextGamma(double shape, double scale) {
+		if (!(shape > 0) || !(scale > 0)) {
+			throw new IllegalArgumentException("Gamma shape and scale should be positive, not " + shape + " and " + scale);
+		}
+		double boost = 1.0;
+		if (shape < 1.0) {
+			boost = Math.pow(nextDouble(), 1.0 / shape);
+			shape += 1.0;
+		}
+		final double d = shape - 1.0 / 3.0;
+		final double c = 1.0 / Math.sqrt(9.0 * d);
+		while (true) {
+			double x, v;
+			do {
+				x = nextGaussian();
+				v = 1.0 + c * x;
+			} while (v <= 0);
+			v = v * v * v;
+			final double u = nextDouble();
+			if (u < 1.0 - 0.0331 * x * x * x * x || Math.log(u) < 0.5 * x * x + d * (1.0 - v + Math.log(v))) {
+				return boost * d * v * scale;
+			}
+		}
+	}
+
+	/**
+	 * As nextGamma, but drawing from this stream, whatever stream is bound to the current thread
+	 * @param stream
+	 * @param shape
+	 * @param scale
+	 * @return
+	 */
+	public static double nextGamma(SplittableRandom stream, double shape, double scale) {
+		SplittableRandom previous = bind(stream);
+		try {
+			return nextGamma(shape, scale);
+		} finally {
+			unbind(previous);
+		}
+	}
+
+	public static void nextBytes(byte[] bytes) {
+		SplittableRandom stream = current.get();
+		if (stream == null) {
+			Randomizer.nextBytes(bytes);
+		} else {
+			stream.nextBytes(bytes);
+		}
+	}
+
+
+}
@@ -5,28 +5,28 @@ import beast.base.util.Randomizer;
 /**
  *  this class is used to make sure the apache library uses random numbers from the BEAST Randomizer
  *  so that the MCMC chain remains deterministic and starting with a certain seed twice will result in
- *  the same sequence.
+ *  the same sequence. Within a parallel chain, numbers come from the chain's own stream (see ChainRandomizer).
  */
 public class MyRandomizer implements org.apache.commons.math3.random.RandomGenerator {
 
 	@Override
 	public double nextDouble() {
-		return Randomizer.nextDouble();
+		return ChainRandomizer.nextDouble();
 	}
 
 	@Override
 	public float nextFloat() {
-		return Randomizer.nextFloat();
+		return ChainRandomizer.nextFloat();
 	}
 
 	@Override
 	public int nextInt() {
-		return Randomizer.nextInt();
+		return ChainRandomizer.nextInt();
 	}
 
 	@Override
 	public long nextLong() {
-		return Randomizer.nextLong();
+		return ChainRandomizer.nextLong();
 	}
 
 	@Override
@@ -47,22 +47,22 @@ public class MyRandomizer implements org.apache.commons.math3.random.RandomGener
 
 	@Override
 	public void nextBytes(byte[] bytes) {
-		Randomizer.nextBytes(bytes);
+		ChainRandomizer.nextBytes(bytes);
 	}
 
 	@Override
 	public int nextInt(int n) {
-		return Randomizer.nextInt(n);
+		return ChainRandomizer.nextInt(n);
 	}
 
 	@Override
 	public boolean nextBoolean() {
-		return Randomizer.nextBoolean();
+		return ChainRandomizer.nextBoolean();
 	}
 
 	@Override
 	public double nextGaussian() {
-		return Randomizer.nextGaussian();
+		return ChainRandomizer.nextGaussian();
 	}
 	
 }
@@ -0,0 +1,403 @@
+package test.starbeast3;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Sequence;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.JukesCantor;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.CompoundDistribution;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.RealParameter;
+import starbeast3.evolution.speciation.ConstantPopulations;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.IntegratedPopulations;
+import starbeast3.evolution.speciation.PopulationModel;
+import starbeast3.evolution.speciation.SpeciesTreePrior;
+import starbeast3.tree.SpeciesTree;
+
+
+/**
+ * A small multispecies coalescent model for tests: a fixed four species tree, and gene trees simulated within it.
+ * Each gene tree has two distributions, one which patches its mapping to the species tree incrementally and one which
+ * always rebuilds it, so that tests can check one against the other.
+ *
+ * The model is driven like MCMC drives it: a proposal edits the state, the calculation nodes are stored and checked,
+ * the posterior is calculated, and the proposal is then accepted or rejected.
+ */
+public class MultispeciesCoalescentModel {
+
+
+	public static final String[] SPECIES = {"A", "B", "C", "D"};
+
+	// Population size used to simulate the gene trees
+	private static final double SIMULATION_POP_SIZE = 0.5;
+
+
+	public final Random random;
+	public final int lineagesPerSpecies;
+
+	public final TaxonSet taxonSuperset;
+	public final SpeciesTree speciesTree;
+	public final RealParameter popSizes; // null for integrated population sizes
+	public final PopulationModel populationModel;
+	public final SpeciesTreePrior speciesTreePrior;
+
+	public final List<Tree> geneTrees = new ArrayList<>();
+	public final List<GeneTreeForSpeciesTreeDistribution> genes = new ArrayList<>();
+	public final List<GeneTreeForSpeciesTreeDistribution> referenceGenes = new ArrayList<>();
+
+	public State state;
+	public CompoundDistribution posterior;
+
+	private final List<StateNode> stateNodes = new ArrayList<>();
+	private final List<Distribution> distributions = new ArrayList<>();
+	private long sample = 0;
+
+
+	/**
+	 * @param seed
+	 * @param locusCount
+	 * @param lineagesPerSpecies
+	 * @param integrated whether the population sizes are integrated out (IntegratedPopulations), or in the state (ConstantPopulations)
+	 */
+	public MultispeciesCoalescentModel(long seed, int locusCount, int lineagesPerSpecies, boolean integrated) {
+		this.random = new Random(seed);
+		this.lineagesPerSpecies = lineagesPerSpecies;
+
+		// Species and their lineages
+		List<Taxon> speciesSets = new ArrayList<>();
+		for (String species : SPECIES) {
+			List<String> lineages = new ArrayList<>();
+			for (int i = 1; i <= lineagesPerSpecies; i++) {
+				lineages.add(species + i);
+			}
+			TaxonSet speciesSet = new TaxonSet(Taxon.createTaxonList(lineages));
+			speciesSet.setID(species);
+			speciesSets.add(speciesSet);
+		}
+		taxonSuperset = new TaxonSet(speciesSets);
+		taxonSuperset.setID("taxonsuperset");
+
+
+		// ((A:1.0,B:1.0):0.5,(C:0.7,D:0.7):0.8)
+		Node[] leaves = new Node[SPECIES.length];
+		for (int i = 0; i < SPECIES.length; i++) {
+			leaves[i] = newNode(i, 0.0);
+			leaves[i].setID(SPECIES[i]);
+		}
+		Node ab = newNode(4, 1.0, leaves[0], leaves[1]);
+		Node cd = newNode(5, 0.7, leaves[2], leaves[3]);
+		Node root = newNode(6, 1.5, ab, cd);
+		speciesTree = new SpeciesTree();
+		speciesTree.initByName("initial", new Tree(root), "taxonset", taxonSuperset);
+		speciesTree.setID("Species");
+		stateNodes.add(speciesTree);
+
+
+		// Population model
+		RealParameter gammaParameter = new RealParameter(new Double[] {0.5});
+		speciesTreePrior = new SpeciesTreePrior();
+		if (integrated) {
+			popSizes = null;
+			populationModel = new IntegratedPopulations();
+			((IntegratedPopulations) populationModel).initByName("speciesTree", speciesTree);
+			speciesTreePrior.initByName("tree", speciesTree, "gammaParameter", gammaParameter,
+					"populationModel", populationModel, "taxonset", taxonSuperset);
+		} else {
+			Double[] values = new Double[speciesTree.getNodeCount()];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = 0.3 + 0.1 * i;
+			}
+			popSizes = new RealParameter(values);
+			popSizes.setID("popSize");
+			populationModel = new ConstantPopulations();
+			((ConstantPopulations) populationModel).initByName("speciesTree", speciesTree, "populationSizes", popSizes);
+			speciesTreePrior.initByName("tree", speciesTree, "bottomPopSize", popSizes, "gammaParameter", gammaParameter,
+					"populationModel", populationModel, "taxonset", taxonSuperset);
+			stateNodes.add(popSizes);
+		}
+
+
+		// Gene trees, each with an incremental and a reference distribution
+		for (int j = 0; j < locusCount; j++) {
+			Tree geneTree = new Tree(simulateGeneTree());
+			geneTree.setID("gene" + j);
+			geneTrees.add(geneTree);
+			stateNodes.add(geneTree);
+
+			GeneTreeForSpeciesTreeDistribution gene = new GeneTreeForSpeciesTreeDistribution();
+			gene.initByName("tree", geneTree, "speciesTree", speciesTree, "speciesTreePrior", speciesTreePrior,
+					"populationModel", populationModel, "incremental", true);
+			gene.setID("treePrior.gene" + j);
+			genes.add(gene);
+
+			GeneTreeForSpeciesTreeDistribution reference = new GeneTreeForSpeciesTreeDistribution();
+			reference.initByName("tree", geneTree, "speciesTree", speciesTree, "speciesTreePrior", speciesTreePrior,
+					"populationModel", populationModel, "incremental", false);
+			reference.setID("referencePrior.gene" + j);
+			referenceGenes.add(reference);
+		}
+		distributions.addAll(genes);
+		distributions.addAll(referenceGenes);
+	}
+
+
+	/**
+	 * Add a distribution to the posterior. Must be called before initialise
+	 */
+	public void addDistribution(Distribution distribution) {
+		distributions.add(distribution);
+	}
+
+
+	/**
+	 * Add a Jukes Cantor tree likelihood of random sequences to each gene tree. Must be called before initialise
+	 * @param siteCount
+	 * @return the tree likelihoods, in the order of the gene trees
+	 */
+	public List<TreeLikelihood> addTreeLikelihoods(int siteCount) {
+		SiteModel siteModel = newJukesCantorSiteModel();
+		List<TreeLikelihood> likelihoods = new ArrayList<>();
+		for (Tree geneTree : geneTrees) {
+			TreeLikelihood likelihood = new TreeLikelihood();
+			likelihood.initByName("data", randomAlignment(geneTree, siteCount), "tree", geneTree, "siteModel", siteModel);
+			likelihood.setID("treeLikelihood." + geneTree.getID());
+			likelihoods.add(likelihood);
+			distributions.add(likelihood);
+		}
+		return likelihoods;
+	}
+
+
+	public static SiteModel newJukesCantorSiteModel() {
+		JukesCantor substitutionModel = new JukesCantor();
+		substitutionModel.initAndValidate();
+		SiteModel siteModel = new SiteModel();
+		siteModel.initByName("substModel", substitutionModel);
+		return siteModel;
+	}
+
+
+	/**
+	 * @return random nucleotide sequences for the taxa of this tree
+	 */
+	public Alignment randomAlignment(Tree tree, int siteCount) {
+		final String nucleotides = "ACGT";
+		List<Sequence> sequences = new ArrayList<>();
+		for (String taxon : tree.getTaxaNames()) {
+			StringBuilder data = new StringBuilder();
+			for (int i = 0; i < siteCount; i++) {
+				data.append(nucleotides.charAt(random.nextInt(nucleotides.length())));
+			}
+			sequences.add(new Sequence(taxon, data.toString()));
+		}
+		Alignment alignment = new Alignment();
+		alignment.initByName("sequence", sequences, "dataType", "nucleotide");
+		alignment.setID("alignment." + tree.getID());
+		return alignment;
+	}
+
+
+	/**
+	 * Add a state node. Must be called before initialise
+	 */
+	public void addStateNode(StateNode stateNode) {
+		stateNodes.add(stateNode);
+	}
+
+
+	/**
+	 * Set up the state and posterior, and calculate the posterior of the initial state
+	 * @return the log posterior
+	 */
+	public double initialise() {
+		posterior = new CompoundDistribution();
+		posterior.initByName("distribution", distributions);
+		posterior.setID("posterior");
+		state = new State();
+		state.initByName("stateNode", stateNodes);
+		state.initialise();
+		state.setPosterior(posterior);
+		return state.robustlyCalcPosterior(posterior);
+	}
+
+
+	/**
+	 * Make a random proposal and calculate the posterior, as MCMC does. Follow with accept or reject
+	 * @return the log posterior of the proposed state
+	 */
+	public double propose() {
+		return propose(() -> {
+			final double u = random.nextDouble();
+			if (u < 0.15) {
+				moveSpeciesNode();
+			} else if (u < 0.25 && popSizes != null) {
+				scalePopSize();
+			} else if (u < 0.5) {
+				while (!exchangeGeneNodes());
+			} else {
+				moveGeneNode();
+			}
+		});
+	}
+
+
+	/**
+	 * As above, but with the given proposal
+	 * @param proposal edits the state
+	 * @return the log posterior of the proposed state
+	 */
+	public double propose(Runnable proposal) {
+		state.store(sample++);
+		proposal.run();
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		return posterior.calculateLogP();
+	}
+
+
+	public void accept() {
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+
+	public void reject() {
+		state.restore();
+		state.restoreCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+
+	// Move an internal node of a random gene tree between its children and its parent
+	public void moveGeneNode() {
+		moveGeneNode(geneTrees.get(random.nextInt(geneTrees.size())));
+	}
+
+
+	// Move an internal node of this gene tree between its children and its parent
+	public void moveGeneNode(Tree tree) {
+		tree.startEditing(null);
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		final double upper = node.isRoot() ? 2 * node.getHeight() - lower : node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+	}
+
+
+	// Narrow exchange on a random gene tree. Returns false if the chosen node cannot be exchanged
+	public boolean exchangeGeneNodes() {
+		Tree tree = geneTrees.get(random.nextInt(geneTrees.size()));
+		Node node = tree.getNode(random.nextInt(tree.getNodeCount()));
+		if (node.isRoot() || node.getParent().isRoot()) return false;
+		Node parent = node.getParent();
+		Node grandparent = parent.getParent();
+		Node uncle = grandparent.getLeft() == parent ? grandparent.getRight() : grandparent.getLeft();
+		if (uncle.getHeight() >= parent.getHeight()) return false;
+
+		tree.startEditing(null);
+		parent.removeChild(node);
+		grandparent.removeChild(uncle);
+		parent.addChild(uncle);
+		grandparent.addChild(node);
+		parent.makeDirty(Tree.IS_FILTHY);
+		grandparent.makeDirty(Tree.IS_FILTHY);
+		node.makeDirty(Tree.IS_FILTHY);
+		uncle.makeDirty(Tree.IS_FILTHY);
+		return true;
+	}
+
+
+	// Move an internal species tree node between its children and its parent
+	public void moveSpeciesNode() {
+		speciesTree.startEditing(null);
+		Node node = speciesTree.getNode(speciesTree.getLeafNodeCount() + random.nextInt(speciesTree.getInternalNodeCount()));
+		final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		final double upper = node.isRoot() ? lower + 1.0 : node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+	}
+
+
+	public void scalePopSize() {
+		final int i = random.nextInt(popSizes.getDimension());
+		popSizes.setValue(i, popSizes.getValue(i) * Math.exp(random.nextGaussian() * 0.5));
+	}
+
+
+	/**
+	 * Simulate a gene tree within the species tree under the constant population coalescent.
+	 * The leaves are numbered in the order of the taxa, and the internal nodes in the order they coalesce
+	 * @return the root of the gene tree
+	 */
+	public Node simulateGeneTree() {
+		int[] nextNr = {SPECIES.length * lineagesPerSpecies};
+		return simulateGeneTree(speciesTree.getRoot(), nextNr).get(0);
+	}
+
+
+	// The lineages leaving the top of this species branch
+	private List<Node> simulateGeneTree(Node speciesNode, int[] nextNr) {
+		List<Node> lineages = new ArrayList<>();
+		if (speciesNode.isLeaf()) {
+			final int s = speciesNode.getNr();
+			for (int i = 1; i <= lineagesPerSpecies; i++) {
+				Node leaf = newNode(s * lineagesPerSpecies + i - 1, 0.0);
+				leaf.setID(speciesNode.getID() + i);
+				lineages.add(leaf);
+			}
+		} else {
+			lineages.addAll(simulateGeneTree(speciesNode.getLeft(), nextNr));
+			lineages.addAll(simulateGeneTree(speciesNode.getRight(), nextNr));
+		}
+
+		final double top = speciesNode.isRoot() ? Double.POSITIVE_INFINITY : speciesNode.getParent().getHeight();
+		double time = speciesNode.getHeight();
+		while (lineages.size() > 1) {
+			final int n = lineages.size();
+			time += -Math.log(random.nextDouble()) * SIMULATION_POP_SIZE / (n * (n - 1) / 2.0);
+			if (time >= top) break;
+			Node left = lineages.remove(random.nextInt(n));
+			Node right = lineages.remove(random.nextInt(n - 1));
+			lineages.add(newNode(nextNr[0]++, time, left, right));
+		}
+		return lineages;
+	}
+
+
+	private static Node newNode(int nr, double height, Node... children) {
+		Node node = new Node();
+		node.setNr(nr);
+		node.setHeight(height);
+		for (Node child : children) {
+			node.addChild(child);
+		}
+		return node;
+	}
+
+
+	/**
+	 * @return the parent and height of every node, so that two states of a tree can be compared
+	 */
+	public static String describe(Tree tree) {
+		StringBuilder buf = new StringBuilder();
+		for (Node node : tree.getNodesAsArray()) {
+			buf.append(node.getNr()).append(':');
+			buf.append(node.isRoot() ? -1 : node.getParent().getNr()).append(':');
+			buf.append(node.getHeight()).append(' ');
+		}
+		return buf.toString();
+	}
+
+
+}
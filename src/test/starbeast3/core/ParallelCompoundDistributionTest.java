@@ -0,0 +1,85 @@
+package test.starbeast3.core;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.inference.Distribution;
+import starbeast3.core.ParallelCompoundDistribution;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The gene tree priors and tree likelihoods calculated in parallel by ParallelCompoundDistribution should add up to
+ * those calculated one by one, in the proposed state and after it is accepted or rejected
+ */
+public class ParallelCompoundDistributionTest {
+
+
+	@BeforeAll
+	public static void setUp() {
+		ProgramStatus.m_nThreads = Math.max(ProgramStatus.m_nThreads, 4);
+	}
+
+
+	@Test
+	public void testSumOfSerialCalculations() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(99, 8, 3, false);
+		List<TreeLikelihood> likelihoods = model.addTreeLikelihoods(50);
+
+		// The same densities and likelihoods, on the same trees and data, calculated in parallel
+		List<Distribution> distributions = new ArrayList<>();
+		for (int j = 0; j < model.geneTrees.size(); j++) {
+			GeneTreeForSpeciesTreeDistribution gene = new GeneTreeForSpeciesTreeDistribution();
+			gene.initByName("tree", model.geneTrees.get(j), "speciesTree", model.speciesTree, "speciesTreePrior", model.speciesTreePrior,
+					"populationModel", model.populationModel, "incremental", true);
+			gene.setID("parallelPrior.gene" + j);
+			distributions.add(gene);
+
+			TreeLikelihood likelihood = new TreeLikelihood();
+			likelihood.initByName("data", likelihoods.get(j).dataInput.get(), "tree", model.geneTrees.get(j),
+					"siteModel", likelihoods.get(j).siteModelInput.get());
+			likelihood.setID("parallelLikelihood.gene" + j);
+			distributions.add(likelihood);
+		}
+		ParallelCompoundDistribution parallel = new ParallelCompoundDistribution();
+		parallel.initByName("distribution", distributions);
+		parallel.setID("parallel");
+		model.addDistribution(parallel);
+		model.initialise();
+		check(model, likelihoods, parallel);
+
+		Random random = new Random(99);
+		for (int step = 0; step < 2000; step++) {
+			model.propose();
+			check(model, likelihoods, parallel);
+			if (random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+			check(model, likelihoods, parallel);
+		}
+	}
+
+
+	private static void check(MultispeciesCoalescentModel model, List<TreeLikelihood> likelihoods, ParallelCompoundDistribution parallel) {
+		double expected = 0;
+		for (int j = 0; j < model.geneTrees.size(); j++) {
+			expected += model.referenceGenes.get(j).getCurrentLogP();
+			expected += likelihoods.get(j).getCurrentLogP();
+		}
+		assertEquals(expected, parallel.getCurrentLogP(), 1e-8);
+	}
+
+
+}
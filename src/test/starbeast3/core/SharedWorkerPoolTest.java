@@ -0,0 +1,148 @@
+package test.starbeast3.core;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import starbeast3.core.SharedWorkerPool;
+
+
+/**
+ * Every task of a batch should run exactly once, the results should not depend on which thread ran which task,
+ * a failing task should be rethrown to the caller without leaving the pool unusable, and a nested call from
+ * within a task should run its tasks on that task's thread
+ */
+public class SharedWorkerPoolTest {
+
+
+	private static SharedWorkerPool pool;
+
+
+	@BeforeAll
+	public static void setUp() {
+		// The pool has one fewer worker than the number of threads, so make sure there are some workers
+		ProgramStatus.m_nThreads = Math.max(ProgramStatus.m_nThreads, 4);
+		pool = SharedWorkerPool.getInstance();
+	}
+
+
+	@Test
+	public void testEveryTaskRunsOnce() {
+		for (int batch = 0; batch < 200; batch++) {
+			final int n = 1 + batch % 50;
+			AtomicIntegerArray runs = new AtomicIntegerArray(n);
+			Runnable[] tasks = new Runnable[n];
+			for (int i = 0; i < n; i++) {
+				final int task = i;
+				tasks[i] = () -> runs.incrementAndGet(task);
+			}
+			pool.invokeAll(tasks, n, 1 + batch % 5);
+			for (int i = 0; i < n; i++) {
+				assertEquals(1, runs.get(i));
+			}
+		}
+	}
+
+
+	@Test
+	public void testResultsAreDeterministic() {
+		final int n = 64;
+		double[] serial = runRandomTasks(n, 1);
+		for (int repeat = 0; repeat < 20; repeat++) {
+			assertArrayEquals(serial, runRandomTasks(n, pool.getWorkerCount() + 1), 0.0);
+		}
+	}
+
+
+	// Each task draws from its own stream, as the parallel chains do
+	private static double[] runRandomTasks(int n, int maxThreads) {
+		double[] results = new double[n];
+		Runnable[] tasks = new Runnable[n];
+		for (int i = 0; i < n; i++) {
+			final int task = i;
+			tasks[i] = () -> {
+				SplittableRandom random = new SplittableRandom(task);
+				double sum = 0;
+				for (int k = 0; k < 10000; k++) {
+					sum += random.nextDouble();
+				}
+				results[task] = sum;
+			};
+		}
+		pool.invokeAll(tasks, n, maxThreads);
+		return results;
+	}
+
+
+	@Test
+	public void testFailureIsRethrown() {
+		final int n = 32;
+		for (int failing = 0; failing < n; failing++) {
+			final int failingTask = failing;
+			Runnable[] tasks = new Runnable[n];
+			for (int i = 0; i < n; i++) {
+				final int task = i;
+				tasks[i] = () -> {
+					if (task == failingTask) throw new IllegalStateException("task " + task);
+				};
+			}
+			IllegalStateException e = assertThrows(IllegalStateException.class, () -> pool.invokeAll(tasks, n));
+			assertEquals("task " + failingTask, e.getMessage());
+
+			// The pool is still usable
+			AtomicInteger count = new AtomicInteger();
+			Runnable[] next = new Runnable[n];
+			for (int i = 0; i < n; i++) {
+				next[i] = count::incrementAndGet;
+			}
+			pool.invokeAll(next, n);
+			assertEquals(n, count.get());
+		}
+	}
+
+
+	@Test
+	public void testNestedCallRunsOnCallingThread() {
+		final int n = 8, m = 16;
+		AtomicInteger innerRuns = new AtomicInteger();
+		Thread[][] innerThreads = new Thread[n][m];
+		Thread[] outerThreads = new Thread[n];
+
+		Runnable[] tasks = new Runnable[n];
+		for (int i = 0; i < n; i++) {
+			final int task = i;
+			tasks[i] = () -> {
+				outerThreads[task] = Thread.currentThread();
+				Runnable[] inner = new Runnable[m];
+				for (int j = 0; j < m; j++) {
+					final int innerTask = j;
+					inner[j] = () -> {
+						innerThreads[task][innerTask] = Thread.currentThread();
+						innerRuns.incrementAndGet();
+					};
+				}
+				pool.invokeAll(inner, m);
+			};
+		}
+		pool.invokeAll(tasks, n);
+
+		assertEquals(n * m, innerRuns.get());
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < m; j++) {
+				assertSame(outerThreads[i], innerThreads[i][j]);
+			}
+		}
+	}
+
+
+}
@@ -0,0 +1,167 @@
+package test.starbeast3.evolution.branchratemodel;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Distribution;
+import beast.base.inference.State;
+import beast.base.inference.parameter.RealParameter;
+import starbeast3.evolution.branchratemodel.StarBeast3Clock;
+import starbeast3.evolution.branchratemodel.UCRelaxedClockModelSB3;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The gene tree branch rates, which are only recomputed for the branches whose occupancy or species rates have changed,
+ * should match the rates computed from a mapping rebuilt from scratch, and should be restored on a reject
+ */
+public class StarBeast3ClockTest {
+
+
+	private static final double EPSILON = 1e-10;
+
+
+	@Description("Stands in for a tree likelihood, so that the clock model is part of the posterior")
+	public static class BranchRateSum extends Distribution {
+		final public Input<BranchRateModel> clockInput = new Input<>("clock", "branch rate model", Input.Validate.REQUIRED);
+		final public Input<Tree> treeInput = new Input<>("tree", "gene tree", Input.Validate.REQUIRED);
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double calculateLogP() {
+			logP = 0;
+			for (Node node : treeInput.get().getNodesAsArray()) {
+				logP -= clockInput.get().getRateForBranch(node) * node.getLength();
+			}
+			return logP;
+		}
+
+		@Override
+		public List<String> getArguments() {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public List<String> getConditions() {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public void sample(State state, Random random) {
+		}
+	}
+
+
+	@Test
+	public void testRatesMatchFullRecompute() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(2024, 4, 6, false);
+
+		// Species tree branch rates
+		final int speciesNodeCount = model.speciesTree.getNodeCount();
+		Double[] rates = new Double[speciesNodeCount];
+		for (int i = 0; i < speciesNodeCount; i++) {
+			rates[i] = 0.5 + 0.25 * i;
+		}
+		RealParameter realRates = new RealParameter(rates);
+		realRates.setID("speciesRates");
+		UCRelaxedClockModelSB3 speciesTreeRates = new UCRelaxedClockModelSB3();
+		speciesTreeRates.initByName("tree", model.speciesTree, "realRates", realRates, "stdev", new RealParameter(new Double[] {0.3}),
+				"estimateRoot", true);
+		model.addStateNode(realRates);
+
+		List<StarBeast3Clock> clocks = new ArrayList<>();
+		for (int j = 0; j < model.genes.size(); j++) {
+			StarBeast3Clock clock = new StarBeast3Clock();
+			clock.initByName("speciesTreeRates", speciesTreeRates, "geneTree", model.genes.get(j),
+					"clock.rate", new RealParameter(new Double[] {1.3}));
+			clocks.add(clock);
+
+			BranchRateSum likelihood = new BranchRateSum();
+			likelihood.initByName("clock", clock, "tree", model.geneTrees.get(j));
+			model.addDistribution(likelihood);
+		}
+		model.initialise();
+
+		for (int step = 0; step < 2000; step++) {
+			double[][] before = new double[clocks.size()][];
+			for (int j = 0; j < clocks.size(); j++) {
+				before[j] = getRates(clocks.get(j), model.geneTrees.get(j));
+			}
+
+			// Propose a change to the trees or to one of the species tree rates
+			final double logP;
+			if (model.random.nextDouble() < 0.2) {
+				logP = model.propose(() -> {
+					final int i = model.random.nextInt(speciesNodeCount);
+					realRates.setValue(i, realRates.getValue(i) * Math.exp(model.random.nextGaussian() * 0.5));
+				});
+			} else {
+				logP = model.propose();
+			}
+
+			if (logP > Double.NEGATIVE_INFINITY) {
+				for (int j = 0; j < clocks.size(); j++) {
+					assertArrayEquals(getReferenceRates(model.referenceGenes.get(j), speciesTreeRates.getRatesArray(), 1.3),
+							getRates(clocks.get(j), model.geneTrees.get(j)), EPSILON);
+				}
+			}
+
+			if (logP > Double.NEGATIVE_INFINITY && model.random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+				for (int j = 0; j < clocks.size(); j++) {
+					assertArrayEquals(before[j], getRates(clocks.get(j), model.geneTrees.get(j)), EPSILON);
+				}
+			}
+		}
+	}
+
+
+	private static double[] getRates(StarBeast3Clock clock, Tree tree) {
+		double[] rates = new double[tree.getNodeCount()];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = clock.getRateForBranch(tree.getNode(i));
+		}
+		return rates;
+	}
+
+
+	// Rate of each gene branch averaged over the species branches it overlaps, from the mapping of the reference distribution
+	private static double[] getReferenceRates(GeneTreeForSpeciesTreeDistribution reference, double[] speciesRates, double geneTreeRate) {
+		reference.calculateLogP();
+		final int nodeCount = reference.getNodeCount();
+		final int rootNr = reference.getGeneTree().getRoot().getNr();
+		double[] rates = new double[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			if (i == rootNr) {
+				rates[i] = geneTreeRate;
+				continue;
+			}
+			double weightedSum = 0, length = 0;
+			for (int k = 0; k < reference.getOccupancyCount(i); k++) {
+				weightedSum += speciesRates[reference.getOccupancySpeciesNr(i, k)] * reference.getOccupancyLength(i, k);
+				length += reference.getOccupancyLength(i, k);
+			}
+			rates[i] = geneTreeRate * weightedSum / length;
+		}
+		return rates;
+	}
+
+
+}
@@ -0,0 +1,73 @@
+package test.starbeast3.evolution.speciation;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import starbeast3.evolution.speciation.CoalescentStatistics;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.MultiLocusCoalescent;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The branch statistics pooled across loci should give the same density as the sum of the per-locus densities,
+ * and gathering only the changed loci should give the same statistics as gathering every locus afresh
+ */
+public class CoalescentStatisticsTest {
+
+
+	private static final double EPSILON = 1e-9;
+
+
+	@Test
+	public void testPooledDensityMatchesPerLocusSum() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(789, 5, 4, false);
+		CoalescentStatistics statistics = new CoalescentStatistics();
+		statistics.initByName("gene", model.genes);
+		model.initialise();
+
+		for (int step = 0; step < 2000; step++) {
+			final double logP = model.propose();
+			if (logP > Double.NEGATIVE_INFINITY) {
+				assertStatistics(model, statistics);
+			}
+			if (logP > Double.NEGATIVE_INFINITY && model.random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+
+			// The statistics are not in the posterior here, so after a reject they are gathered again from the restored loci
+			assertStatistics(model, statistics);
+		}
+	}
+
+
+	private static void assertStatistics(MultispeciesCoalescentModel model, CoalescentStatistics statistics) {
+		final MultiLocusCoalescent coalescent = statistics.getCoalescent();
+
+		// Against the density of each locus
+		double logP = 0;
+		for (GeneTreeForSpeciesTreeDistribution gene : model.genes) {
+			logP += gene.calculateLogP();
+		}
+		assertEquals(logP, coalescent.calculateLogP(model.popSizes), EPSILON * Math.max(1.0, Math.abs(logP)));
+
+		// Against all loci gathered afresh
+		MultiLocusCoalescent reference = new MultiLocusCoalescent(model.speciesTree.getNodeCount());
+		reference.gather(model.referenceGenes);
+		for (int b = 0; b < model.speciesTree.getNodeCount(); b++) {
+			assertEquals(reference.getCoalescentCount(b), coalescent.getCoalescentCount(b));
+			assertEquals(reference.getLogPloidySum(b), coalescent.getLogPloidySum(b), EPSILON);
+			assertEquals(reference.getPartialLogP(b), coalescent.getPartialLogP(b), EPSILON);
+			assertEquals(reference.getPloidyWeightedIntervalSum(b), coalescent.getPloidyWeightedIntervalSum(b), EPSILON);
+
+			final double popSize = model.popSizes.getValue(b);
+			assertEquals(reference.calculateBranchLogP(b, popSize), statistics.calculateBranchLogP(b, popSize), EPSILON);
+		}
+	}
+
+
+}
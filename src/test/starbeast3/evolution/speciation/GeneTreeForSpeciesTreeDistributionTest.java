@@ -0,0 +1,135 @@
+package test.starbeast3.evolution.speciation;
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The incrementally patched gene tree to species tree mapping, and its store and restore of the modified ranges,
+ * should agree with a mapping which is rebuilt from scratch every time
+ */
+public class GeneTreeForSpeciesTreeDistributionTest {
+
+
+	private static final double EPSILON = 1e-10;
+
+
+	@Test
+	public void testIncrementalMappingMatchesFullRebuild() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(123, 4, 6, false);
+		model.initialise();
+		assertSameMapping(model);
+
+		int incrementalUpdates = 0;
+		for (int step = 0; step < 2000; step++) {
+			final double logP = model.propose();
+			for (GeneTreeForSpeciesTreeDistribution gene : model.genes) {
+				if (gene.getModifiedGeneNodeCount() >= 0) incrementalUpdates++;
+			}
+			assertSameMapping(model);
+
+			if (logP > Double.NEGATIVE_INFINITY && model.random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+			assertSameMapping(model);
+		}
+
+		// Make sure the incremental path was taken, rather than always falling back to a full rebuild
+		assertTrue(incrementalUpdates > 0);
+	}
+
+
+	@Test
+	public void testRestoreReturnsToStoredState() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(456, 4, 6, false);
+		model.initialise();
+
+		final int locusCount = model.genes.size();
+		for (int step = 0; step < 2000; step++) {
+
+			// Density and mapping before the proposal
+			double[] logPs = new double[locusCount];
+			int[][] coalescentCounts = new int[locusCount][];
+			double[][][] times = new double[locusCount][][];
+			for (int j = 0; j < locusCount; j++) {
+				GeneTreeForSpeciesTreeDistribution gene = model.genes.get(j);
+				logPs[j] = gene.calculateLogP();
+				coalescentCounts[j] = getCoalescentCounts(gene);
+				times[j] = getCoalescentTimes(gene);
+			}
+
+			final double logP = model.propose();
+			if (logP > Double.NEGATIVE_INFINITY && model.random.nextBoolean()) {
+				model.accept();
+				continue;
+			}
+			model.reject();
+
+			for (int j = 0; j < locusCount; j++) {
+				GeneTreeForSpeciesTreeDistribution gene = model.genes.get(j);
+				assertEquals(logPs[j], gene.calculateLogP(), EPSILON);
+				assertArrayEquals(coalescentCounts[j], getCoalescentCounts(gene));
+				for (int b = 0; b < times[j].length; b++) {
+					assertArrayEquals(times[j][b], gene.getCoalescentTimes(b), EPSILON);
+				}
+			}
+		}
+	}
+
+
+	// The incremental and reference distributions of each locus should have the same density, coalescent times and occupancies
+	private static void assertSameMapping(MultispeciesCoalescentModel model) {
+		for (int j = 0; j < model.genes.size(); j++) {
+			GeneTreeForSpeciesTreeDistribution gene = model.genes.get(j);
+			GeneTreeForSpeciesTreeDistribution reference = model.referenceGenes.get(j);
+
+			assertEquals(reference.calculateLogP(), gene.calculateLogP(), EPSILON);
+			if (reference.getCurrentLogP() == Double.NEGATIVE_INFINITY) continue;
+
+			final int speciesNodeCount = model.speciesTree.getNodeCount();
+			for (int b = 0; b < speciesNodeCount; b++) {
+				assertEquals(reference.getCoalescentCount(b), gene.getCoalescentCount(b));
+				assertEquals(reference.getLineageCount(b), gene.getLineageCount(b));
+				assertArrayEquals(reference.getCoalescentTimes(b), gene.getCoalescentTimes(b), EPSILON);
+			}
+
+			for (int i = 0; i < gene.getNodeCount() - 1; i++) {
+				final int occupancyCount = reference.getOccupancyCount(i);
+				assertEquals(occupancyCount, gene.getOccupancyCount(i));
+				for (int k = 0; k < occupancyCount; k++) {
+					assertEquals(reference.getOccupancySpeciesNr(i, k), gene.getOccupancySpeciesNr(i, k));
+					assertEquals(reference.getOccupancyLength(i, k), gene.getOccupancyLength(i, k), EPSILON);
+				}
+			}
+		}
+	}
+
+
+	private static int[] getCoalescentCounts(GeneTreeForSpeciesTreeDistribution gene) {
+		int[] counts = new int[gene.speciesTreeInput.get().getNodeCount()];
+		for (int b = 0; b < counts.length; b++) {
+			counts[b] = gene.getCoalescentCount(b);
+		}
+		return counts;
+	}
+
+
+	private static double[][] getCoalescentTimes(GeneTreeForSpeciesTreeDistribution gene) {
+		double[][] times = new double[gene.speciesTreeInput.get().getNodeCount()][];
+		for (int b = 0; b < times.length; b++) {
+			times[b] = gene.getCoalescentTimes(b);
+		}
+		return times;
+	}
+
+
+}
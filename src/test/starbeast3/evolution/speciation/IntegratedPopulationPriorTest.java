@@ -0,0 +1,211 @@
+package test.starbeast3.evolution.speciation;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+
+import org.apache.commons.math.special.Gamma;
+import org.junit.jupiter.api.Test;
+
+import beast.base.inference.distribution.InverseGamma;
+import beast.base.inference.parameter.RealParameter;
+import starbeast3.evolution.speciation.CoalescentStatistics;
+import starbeast3.evolution.speciation.ConstantPopulations;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.evolution.speciation.IntegratedPopulationConditionalPrior;
+import starbeast3.evolution.speciation.IntegratedPopulationPrior;
+import starbeast3.evolution.speciation.MultiLocusCoalescent;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The analytically integrated density should match the per-locus constant population density integrated numerically
+ * over the inverse gamma prior of each branch, and should be kept up to date through proposals, stores and restores
+ */
+public class IntegratedPopulationPriorTest {
+
+
+	private static final double ALPHA = 3.0;
+	private static final double BETA = 1.0;
+
+
+	@Test
+	public void testMatchesNumericalIntegration() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(321, 3, 4, true);
+		IntegratedPopulationPrior prior = newPrior(model);
+		model.addDistribution(prior);
+		model.initialise();
+
+		ConstantPopulations constantPopulations = new ConstantPopulations();
+		constantPopulations.initByName("speciesTree", model.speciesTree,
+				"populationSizes", new RealParameter(new Double[] {1.0}));
+
+		for (int step = 0; step < 50; step++) {
+			final double logP = model.propose();
+			if (logP > Double.NEGATIVE_INFINITY) {
+				assertEquals(integrateNumerically(model, constantPopulations), prior.calculateLogP(), 1e-6);
+				model.accept();
+			} else {
+				model.reject();
+			}
+		}
+	}
+
+
+	@Test
+	public void testStoreRestore() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(654, 5, 4, true);
+		IntegratedPopulationPrior prior = newPrior(model);
+		model.addDistribution(prior);
+		model.initialise();
+
+		for (int step = 0; step < 2000; step++) {
+			final double before = prior.getCurrentLogP();
+			final double logP = model.propose();
+			if (logP > Double.NEGATIVE_INFINITY) {
+				assertEquals(calculateFromScratch(model), prior.getCurrentLogP(), 1e-9);
+			}
+			if (logP > Double.NEGATIVE_INFINITY && model.random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+				assertEquals(before, prior.getCurrentLogP(), 0.0);
+				assertEquals(before, prior.calculateLogP(), 1e-9);
+			}
+		}
+	}
+
+
+	/**
+	 * The density of some loci given the others should be the integrated density of all loci divided by that of the others,
+	 * while only the given loci change, and again after the other loci have changed and been taken up
+	 */
+	@Test
+	public void testConditionalPrior() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(987, 5, 4, true);
+		IntegratedPopulationPrior prior = newPrior(model);
+		model.addDistribution(prior);
+
+		final int conditionalLocusCount = 2;
+		IntegratedPopulationConditionalPrior conditionalPrior = new IntegratedPopulationConditionalPrior();
+		conditionalPrior.initByName("gene", model.genes.subList(0, conditionalLocusCount));
+		conditionalPrior.setID("conditionalPrior");
+		conditionalPrior.setPrior(prior);
+		model.initialise();
+		conditionalPrior.updateOtherLoci();
+
+		final List<GeneTreeForSpeciesTreeDistribution> otherLoci = model.referenceGenes.subList(conditionalLocusCount, model.genes.size());
+		double otherLogP = calculateFromScratch(model, otherLoci);
+		for (int step = 0; step < 2000; step++) {
+
+			// Every so often change the other loci or the species tree, as the main chain does between runs of the parallel chains
+			final boolean changeOthers = step % 100 == 99;
+			final double logP = model.propose(() -> {
+				if (changeOthers) {
+					model.moveSpeciesNode();
+					model.moveGeneNode(model.geneTrees.get(conditionalLocusCount + model.random.nextInt(otherLoci.size())));
+				} else {
+					model.moveGeneNode(model.geneTrees.get(model.random.nextInt(conditionalLocusCount)));
+				}
+			});
+			if (logP == Double.NEGATIVE_INFINITY) {
+				model.reject();
+				continue;
+			}
+			if (changeOthers) {
+				model.accept();
+				conditionalPrior.updateOtherLoci();
+				otherLogP = calculateFromScratch(model, otherLoci);
+			}
+
+			assertEquals(calculateFromScratch(model, model.referenceGenes) - otherLogP, conditionalPrior.calculateLogP(), 1e-9);
+			if (changeOthers) continue;
+			if (model.random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+			assertEquals(calculateFromScratch(model, model.referenceGenes) - otherLogP, conditionalPrior.calculateLogP(), 1e-9);
+		}
+	}
+
+
+	private static IntegratedPopulationPrior newPrior(MultispeciesCoalescentModel model) {
+		CoalescentStatistics statistics = new CoalescentStatistics();
+		statistics.initByName("gene", model.genes);
+		statistics.setID("statistics");
+
+		InverseGamma gammaPrior = new InverseGamma();
+		gammaPrior.initByName("alpha", new RealParameter(new Double[] {ALPHA}), "beta", new RealParameter(new Double[] {BETA}));
+
+		IntegratedPopulationPrior prior = new IntegratedPopulationPrior();
+		prior.initByName("statistics", statistics, "gammaprior", gammaPrior);
+		prior.setID("integratedPopulationPrior");
+		return prior;
+	}
+
+
+	// The closed form density, from the statistics of all loci gathered afresh
+	private static double calculateFromScratch(MultispeciesCoalescentModel model) {
+		return calculateFromScratch(model, model.referenceGenes);
+	}
+
+
+	// The closed form density of these loci, from their statistics gathered afresh
+	private static double calculateFromScratch(MultispeciesCoalescentModel model, List<GeneTreeForSpeciesTreeDistribution> loci) {
+		MultiLocusCoalescent coalescent = new MultiLocusCoalescent(model.speciesTree.getNodeCount());
+		coalescent.gather(loci);
+		double logP = 0;
+		for (int b = 0; b < model.speciesTree.getNodeCount(); b++) {
+			final int k = coalescent.getCoalescentCount(b);
+			final double c = coalescent.getPloidyWeightedIntervalSum(b);
+			logP += ALPHA * Math.log(BETA) - Gamma.logGamma(ALPHA) + Gamma.logGamma(ALPHA + k)
+					- (ALPHA + k) * Math.log(BETA + c) - coalescent.getLogPloidySum(b);
+		}
+		return logP;
+	}
+
+
+	/**
+	 * Sum across branches of log int prod_j P(gene tree j on branch | N) InverseGamma(N | alpha, beta) dN,
+	 * with the per-locus branch densities taken from ConstantPopulations, and the integral taken over log N
+	 */
+	private static double integrateNumerically(MultispeciesCoalescentModel model, ConstantPopulations constantPopulations) {
+		final double from = -12, to = 8, step = 2e-3;
+		final int n = (int) Math.round((to - from) / step);
+
+		// Bring the mappings up to date, since the lineage counts are read directly
+		for (GeneTreeForSpeciesTreeDistribution gene : model.referenceGenes) {
+			gene.calculateLogP();
+		}
+
+		double logP = 0;
+		for (int b = 0; b < model.speciesTree.getNodeCount(); b++) {
+			double[] logIntegrand = new double[n + 1];
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i <= n; i++) {
+				final double u = from + i * step;
+				final double popSize = Math.exp(u);
+				double value = ALPHA * Math.log(BETA) - Gamma.logGamma(ALPHA) - (ALPHA + 1) * u - BETA / popSize + u;
+				for (GeneTreeForSpeciesTreeDistribution gene : model.referenceGenes) {
+					value += constantPopulations.calculateBranchLogP(gene.getLineageCount(b), gene.getPloidy(), popSize,
+							gene.getBranchBottomHeight(b), gene.getSortedCoalescentTimes(), gene.getCoalescentTimesOffset(b),
+							gene.getCoalescentCount(b), gene.getBranchTopHeight(b));
+				}
+				logIntegrand[i] = value;
+				max = Math.max(max, value);
+			}
+
+			// Trapezoidal rule
+			double sum = 0;
+			for (int i = 0; i <= n; i++) {
+				sum += (i == 0 || i == n ? 0.5 : 1.0) * Math.exp(logIntegrand[i] - max);
+			}
+			logP += max + Math.log(sum * step);
+		}
+		return logP;
+	}
+
+
+}
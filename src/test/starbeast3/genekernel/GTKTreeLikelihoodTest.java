@@ -0,0 +1,225 @@
+package test.starbeast3.genekernel;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.BEASTInterface;
+import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Distribution;
+import beast.base.inference.parameter.IntegerParameter;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.genekernel.GTKGeneTree;
+import starbeast3.genekernel.GTKPointerTree;
+import starbeast3.genekernel.GTKPrior;
+import starbeast3.genekernel.GTKTreeLikelihood;
+import starbeast3.genekernel.GeneTreeKernel;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * Pointing back to a kernel tree takes the tree likelihood and gene tree density from their caches. The proposals
+ * which follow should still give the same likelihoods and densities as a calculation from scratch
+ */
+public class GTKTreeLikelihoodTest {
+
+
+	private static final int KERNEL_SIZE = 3;
+	private static final int SITE_COUNT = 50;
+
+
+	MultispeciesCoalescentModel model;
+	Random random;
+	GeneTreeKernel kernel;
+	IntegerParameter indicator;
+	List<GTKPointerTree> pointers;
+	GTKPrior prior;
+	List<GTKTreeLikelihood> likelihoods;
+	List<Alignment> alignments;
+	SiteModel siteModel;
+
+
+	@Test
+	public void testCacheHitThenLaterMove() {
+		setUp(new Integer[] {0, 0, 1, 2});
+
+		// Pointer 0 moves to kernel tree 1, which it has not seen before
+		model.propose(() -> indicator.setValue(0, 1));
+		model.accept();
+		check();
+
+		// Back to kernel tree 0, which has not changed: the likelihood of pointer 0 and every density come from the caches
+		model.propose(() -> indicator.setValue(0, 0));
+		model.accept();
+		check();
+
+		// A later move of kernel tree 0 has to be calculated from the tips for pointer 0, whose partials are of kernel tree 1
+		model.propose(() -> moveKernelNode(0));
+		model.accept();
+		check();
+		model.propose(() -> model.moveSpeciesNode());
+		model.accept();
+		check();
+
+		// A cache hit which is rejected, followed by a move of the kernel tree which was hit
+		model.propose(() -> indicator.setValue(0, 1));
+		check();
+		model.reject();
+		check();
+		model.propose(() -> moveKernelNode(1));
+		model.accept();
+		check();
+	}
+
+
+	@Test
+	public void testRandomProposals() {
+		setUp(new Integer[] {0, 1, 2, 1, 0});
+		for (int step = 0; step < 2000; step++) {
+			final double u = random.nextDouble();
+			if (u < 0.4) {
+				model.propose(() -> indicator.setValue(random.nextInt(pointers.size()), random.nextInt(KERNEL_SIZE)));
+			} else if (u < 0.8) {
+				model.propose(() -> moveKernelNode(random.nextInt(KERNEL_SIZE)));
+			} else if (u < 0.9) {
+				model.propose(() -> model.moveSpeciesNode());
+			} else {
+				model.propose(() -> model.scalePopSize());
+			}
+
+			// Also check the proposed state, which will then be restored if the proposal is rejected
+			if (random.nextInt(4) == 0) check();
+			if (random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+			check();
+		}
+	}
+
+
+	private void setUp(Integer[] indicatorValues) {
+		model = new MultispeciesCoalescentModel(404, 0, 2, false);
+		random = model.random;
+		Tree simulated = new Tree(model.simulateGeneTree());
+		TaxonSet lineages = new TaxonSet(Taxon.createTaxonList(Arrays.asList(simulated.getTaxaNames())));
+
+		kernel = new GeneTreeKernel();
+		kernel.initByName();
+		kernel.setID("kernel");
+		indicator = new IntegerParameter(indicatorValues);
+		indicator.setID("indicator");
+		IntegerParameter geneKernelSize = new IntegerParameter(new Integer[] {KERNEL_SIZE});
+		geneKernelSize.setID("geneKernelSize");
+
+		pointers = new ArrayList<>();
+		for (int i = 0; i < indicatorValues.length; i++) {
+			GTKPointerTree pointer = new GTKPointerTree();
+			pointer.initByName("kernel", kernel, "indicator", indicator, "index", i, "taxonset", lineages);
+			pointer.setID("pointer" + i);
+			pointers.add(pointer);
+		}
+
+		prior = new GTKPrior();
+		prior.initByName("pointer", pointers, "kernel", kernel, "geneKernelSize", geneKernelSize, "indicator", indicator,
+				"speciesTree", model.speciesTree, "speciesTreePrior", model.speciesTreePrior, "populationModel", model.populationModel);
+		prior.setID("kernelPrior");
+
+		// Start each kernel tree from a simulated gene tree, rather than a caterpillar
+		for (GTKGeneTree kernelTree : kernel.getTrees()) {
+			kernelTree.assignFromFragile(new Tree(model.simulateGeneTree()));
+		}
+
+		siteModel = MultispeciesCoalescentModel.newJukesCantorSiteModel();
+		likelihoods = new ArrayList<>();
+		alignments = new ArrayList<>();
+		for (GTKPointerTree pointer : pointers) {
+			Alignment alignment = model.randomAlignment(pointer, SITE_COUNT);
+			GTKTreeLikelihood likelihood = new GTKTreeLikelihood();
+			likelihood.initByName("data", alignment, "tree", pointer, "siteModel", siteModel, "kernel", prior, "cacheSize", 4);
+			likelihood.setID("treeLikelihood." + pointer.getID());
+			likelihoods.add(likelihood);
+			alignments.add(alignment);
+		}
+
+		model.addStateNode(kernel);
+		model.addStateNode(indicator);
+		for (GTKPointerTree pointer : pointers) model.addStateNode(pointer);
+		model.addDistribution(prior);
+		for (GTKTreeLikelihood likelihood : likelihoods) model.addDistribution(likelihood);
+		model.initialise();
+		check();
+	}
+
+
+	// Move an internal node of a kernel tree between its children and its parent
+	private void moveKernelNode(int kernelIndex) {
+		kernel.startEditing(null);
+		GTKGeneTree tree = kernel.getTrees().get(kernelIndex);
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		final double upper = node.isRoot() ? 2 * node.getHeight() - lower : node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+	}
+
+
+	// The densities and likelihoods should be those of a calculation from scratch
+	private void check() {
+		double expected = 0;
+		for (int k = 0; k < KERNEL_SIZE; k++) {
+			GeneTreeForSpeciesTreeDistribution reference = new GeneTreeForSpeciesTreeDistribution();
+			reference.initByName("tree", copy(kernel.getTree(k)), "speciesTree", model.speciesTree, "speciesTreePrior", model.speciesTreePrior,
+					"populationModel", model.populationModel, "incremental", false);
+			final double density = calculateAfresh(reference);
+			assertEquals(density, prior.getGeneTreeDistributions(k).getCurrentLogP(), 1e-8, "kernel tree " + k);
+
+			int pointerCount = 0;
+			for (int i = 0; i < pointers.size(); i++) {
+				if (indicator.getValue(i) == k) pointerCount++;
+			}
+			expected += pointerCount * density;
+		}
+		expected -= pointers.size() * Math.log(KERNEL_SIZE);
+		assertEquals(expected, prior.getCurrentLogP(), 1e-8);
+
+		for (int i = 0; i < pointers.size(); i++) {
+			GTKPointerTree pointer = pointers.get(i);
+			assertSame(kernel.getTree(indicator.getValue(i)).getRoot(), pointer.getRoot(), "pointer " + i);
+
+			TreeLikelihood reference = new TreeLikelihood();
+			reference.initByName("data", alignments.get(i), "tree", copy(pointer), "siteModel", siteModel);
+			assertEquals(calculateAfresh(reference), likelihoods.get(i).getCurrentLogP(), 1e-8, "pointer " + i);
+		}
+	}
+
+
+	private static Tree copy(Tree tree) {
+		return new Tree(tree.getRoot().copy());
+	}
+
+
+	// Calculate a distribution, and detach it from its inputs so that the state does not take it to be part of the model
+	private static double calculateAfresh(Distribution distribution) {
+		final double logP = distribution.calculateLogP();
+		for (BEASTInterface input : distribution.listActiveBEASTObjects()) {
+			input.getOutputs().remove(distribution);
+		}
+		return logP;
+	}
+
+
+}
@@ -0,0 +1,83 @@
+package test.starbeast3.genekernel;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
+import starbeast3.genekernel.GTKGeneTree;
+import starbeast3.genekernel.GeneTreeKernel;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * Kernel trees are stored copy-on-write: a reject should return every edited tree to its state at the last store,
+ * including edits accepted in earlier steps, and leave the trees which were not edited untouched
+ */
+public class GeneTreeKernelTest {
+
+
+	@Test
+	public void testCopyOnWriteStoreRestore() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(99, 0, 4, false);
+		Random random = model.random;
+
+		GeneTreeKernel kernel = new GeneTreeKernel();
+		kernel.initByName();
+		kernel.setID("kernel");
+		final int treeCount = 5;
+		for (int t = 0; t < treeCount; t++) {
+			kernel.addTree(new GTKGeneTree(model.simulateGeneTree()));
+		}
+
+		State state = new State();
+		state.initByName("stateNode", kernel);
+		state.initialise();
+
+		for (int step = 0; step < 2000; step++) {
+			String[] before = new String[treeCount];
+			Node[] roots = new Node[treeCount];
+			for (int t = 0; t < treeCount; t++) {
+				before[t] = MultispeciesCoalescentModel.describe(kernel.getTrees().get(t));
+				roots[t] = kernel.getTrees().get(t).getRoot();
+			}
+
+			// Move an internal node of one or two kernel trees
+			state.store(step);
+			kernel.startEditing(null);
+			final int edited = random.nextInt(treeCount);
+			moveNode(kernel.getTrees().get(edited), random);
+			final int alsoEdited = random.nextBoolean() ? random.nextInt(treeCount) : edited;
+			moveNode(kernel.getTrees().get(alsoEdited), random);
+
+			if (random.nextBoolean()) {
+				state.setEverythingDirty(false);
+				continue;
+			}
+			state.restore();
+			state.setEverythingDirty(false);
+
+			for (int t = 0; t < treeCount; t++) {
+				assertEquals(before[t], MultispeciesCoalescentModel.describe(kernel.getTrees().get(t)));
+				if (t != edited && t != alsoEdited) {
+					assertSame(roots[t], kernel.getTrees().get(t).getRoot());
+				}
+			}
+		}
+	}
+
+
+	private static void moveNode(GTKGeneTree tree, Random random) {
+		Node node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		final double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+		final double upper = node.isRoot() ? 2 * node.getHeight() - lower : node.getParent().getHeight();
+		node.setHeight(lower + random.nextDouble() * (upper - lower));
+	}
+
+
+}
@@ -0,0 +1,248 @@
+package test.starbeast3.operators;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import starbeast3.operators.CoordinatedExponential;
+import starbeast3.operators.CoordinatedUniform;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The coordinated operators should move exactly the gene tree nodes which connect the two children of the species tree
+ * node, by the same amount as the species tree node, within the freedoms of the connected components. These are found
+ * here by the names of the species below each child, as the operators did before the tip bitsets, and the species tree
+ * topology is changed now and then so that the bitsets have to be brought up to date
+ */
+public class CoordinatedOperatorTest {
+
+
+	private static final int NEITHER = 0;
+	private static final int LEFT_ONLY = 1;
+	private static final int RIGHT_ONLY = 2;
+	private static final int BOTH = 3;
+
+
+	@Test
+	public void testCoordinatedUniform() {
+		checkConnectingNodes(model -> {
+			CoordinatedUniform operator = new CoordinatedUniform();
+			operator.initByName("speciesTree", model.speciesTree, "gene", model.genes, "weight", 1.0);
+			return operator;
+		}, true);
+	}
+
+
+	@Test
+	public void testCoordinatedExponential() {
+		checkConnectingNodes(model -> {
+			CoordinatedExponential operator = new CoordinatedExponential();
+			operator.initByName("speciesTree", model.speciesTree, "gene", model.genes, "optimise", false, "weight", 1.0);
+			return operator;
+		}, false);
+	}
+
+
+	/**
+	 * @param createOperator
+	 * @param boundedRootward whether the shift is also bounded by the rootward freedom (CoordinatedUniform), and not only the tipward one
+	 */
+	private static void checkConnectingNodes(Function<MultispeciesCoalescentModel, Operator> createOperator, boolean boundedRootward) {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(2112, 6, 3, false);
+		model.initialise();
+		Operator operator = createOperator.apply(model);
+		Randomizer.setSeed(2112);
+		Random random = model.random;
+		Map<String, String> speciesOf = getSpeciesOfLineages(model.taxonSuperset);
+		final int speciesNodeCount = model.speciesTree.getNodeCount();
+
+		for (int step = 0; step < 1000; step++) {
+			if (random.nextInt(10) == 0) {
+				model.propose(() -> exchangeSpeciesLeaves(model));
+				if (random.nextBoolean()) {
+					model.accept();
+				} else {
+					model.reject();
+				}
+				continue;
+			}
+
+			// The connecting nodes of every internal species tree node, before the proposal
+			final double[] speciesHeights = getHeights(model.speciesTree);
+			final double[][] geneHeights = new double[model.geneTrees.size()][];
+			for (int j = 0; j < geneHeights.length; j++) {
+				geneHeights[j] = getHeights(model.geneTrees.get(j));
+			}
+			final List<List<Set<Integer>>> connecting = new ArrayList<>();
+			final double[][] freedoms = new double[speciesNodeCount][];
+			for (int s = 0; s < speciesNodeCount; s++) {
+				List<Set<Integer>> sets = new ArrayList<>();
+				for (int j = 0; j < geneHeights.length; j++) {
+					sets.add(new HashSet<>());
+				}
+				connecting.add(sets);
+				if (s >= model.speciesTree.getLeafNodeCount()) {
+					freedoms[s] = findAllConnectingNodes(model.speciesTree.getNode(s), model.geneTrees, speciesOf, sets);
+				}
+			}
+
+			final double[] logHR = new double[1];
+			model.propose(() -> logHR[0] = operator.proposal());
+
+			// The species tree node which moved, and by how much
+			int moved = -1;
+			for (int s = 0; s < speciesNodeCount; s++) {
+				if (model.speciesTree.getNode(s).getHeight() != speciesHeights[s]) {
+					assertEquals(-1, moved, "step " + step + ": more than one species tree node moved");
+					moved = s;
+				}
+			}
+			if (moved >= 0) {
+				final double shift = model.speciesTree.getNode(moved).getHeight() - speciesHeights[moved];
+				assertTrue(shift >= -freedoms[moved][0] - 1e-12, "step " + step + ": shift beyond the tipward freedom");
+				if (boundedRootward) {
+					assertTrue(shift <= freedoms[moved][1] + 1e-12, "step " + step + ": shift beyond the rootward freedom");
+				}
+				for (int j = 0; j < geneHeights.length; j++) {
+					Tree geneTree = model.geneTrees.get(j);
+					for (int i = 0; i < geneTree.getNodeCount(); i++) {
+						final double expected = geneHeights[j][i] + (connecting.get(moved).get(j).contains(i) ? shift : 0);
+						assertEquals(expected, geneTree.getNode(i).getHeight(), 1e-12, "step " + step + ", gene tree " + j + ", node " + i);
+					}
+				}
+			}
+
+			if (logHR[0] != Double.NEGATIVE_INFINITY && random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+		}
+	}
+
+
+	/**
+	 * Find the connecting nodes of every gene tree, as the operators did before the tip bitsets
+	 * @return the tipward and rootward freedoms, including those of the species tree node
+	 */
+	private static double[] findAllConnectingNodes(Node speciesNode, List<Tree> geneTrees, Map<String, String> speciesOf, List<Set<Integer>> connecting) {
+		Set<String> leftSpecies = new HashSet<>();
+		Set<String> rightSpecies = new HashSet<>();
+		for (Node leaf : speciesNode.getLeft().getAllLeafNodes()) leftSpecies.add(leaf.getID());
+		for (Node leaf : speciesNode.getRight().getAllLeafNodes()) rightSpecies.add(leaf.getID());
+
+		double[] freedoms = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+		for (int j = 0; j < geneTrees.size(); j++) {
+			findConnectingNodes(geneTrees.get(j).getRoot(), leftSpecies, rightSpecies, speciesOf, connecting.get(j), freedoms);
+		}
+		freedoms[0] = Math.min(freedoms[0], speciesNode.getHeight() - speciesNode.getLeft().getHeight());
+		freedoms[0] = Math.min(freedoms[0], speciesNode.getHeight() - speciesNode.getRight().getHeight());
+		if (!speciesNode.isRoot()) {
+			freedoms[1] = Math.min(freedoms[1], speciesNode.getParent().getHeight() - speciesNode.getHeight());
+		}
+		return freedoms;
+	}
+
+
+	private static int findConnectingNodes(Node geneNode, Set<String> leftSpecies, Set<String> rightSpecies, Map<String, String> speciesOf,
+			Set<Integer> connecting, double[] freedoms) {
+		if (geneNode.isLeaf()) {
+			final String species = speciesOf.get(geneNode.getID());
+			if (leftSpecies.contains(species)) return LEFT_ONLY;
+			if (rightSpecies.contains(species)) return RIGHT_ONLY;
+			return NEITHER;
+		}
+
+		final Node left = geneNode.getLeft();
+		final Node right = geneNode.getRight();
+		final int leftDescent = findConnectingNodes(left, leftSpecies, rightSpecies, speciesOf, connecting, freedoms);
+		final int rightDescent = findConnectingNodes(right, leftSpecies, rightSpecies, speciesOf, connecting, freedoms);
+		final double height = geneNode.getHeight();
+
+		if (leftDescent == rightDescent) {
+			if (leftDescent == BOTH) connecting.add(geneNode.getNr());
+			return leftDescent;
+		}
+		if (leftDescent == BOTH || rightDescent == BOTH) {
+			final Node inComponent = leftDescent == BOTH ? left : right;
+			final Node other = leftDescent == BOTH ? right : left;
+			final int otherDescent = leftDescent == BOTH ? rightDescent : leftDescent;
+			if (otherDescent == NEITHER) {
+				// The root of a connected component
+				freedoms[1] = Math.min(freedoms[1], height - inComponent.getHeight());
+				return NEITHER;
+			}
+			freedoms[0] = Math.min(freedoms[0], height - other.getHeight());
+			connecting.add(geneNode.getNr());
+			return BOTH;
+		}
+		if (leftDescent == NEITHER || rightDescent == NEITHER) {
+			return NEITHER;
+		}
+
+		// A tip of a connected component, with one child on each side
+		freedoms[0] = Math.min(freedoms[0], height - left.getHeight());
+		freedoms[0] = Math.min(freedoms[0], height - right.getHeight());
+		connecting.add(geneNode.getNr());
+		return BOTH;
+	}
+
+
+	// Swap a species tree leaf below the left child of the root with one below the right child
+	private static void exchangeSpeciesLeaves(MultispeciesCoalescentModel model) {
+		Tree speciesTree = model.speciesTree;
+		speciesTree.startEditing(null);
+		Node left = speciesTree.getRoot().getLeft();
+		Node right = speciesTree.getRoot().getRight();
+		Node x = left.getChild(model.random.nextInt(2));
+		Node y = right.getChild(model.random.nextInt(2));
+		left.removeChild(x);
+		right.removeChild(y);
+		left.addChild(y);
+		right.addChild(x);
+		left.makeDirty(Tree.IS_FILTHY);
+		right.makeDirty(Tree.IS_FILTHY);
+		x.makeDirty(Tree.IS_FILTHY);
+		y.makeDirty(Tree.IS_FILTHY);
+	}
+
+
+	private static Map<String, String> getSpeciesOfLineages(TaxonSet taxonSuperset) {
+		Map<String, String> speciesOf = new HashMap<>();
+		for (Taxon species : taxonSuperset.taxonsetInput.get()) {
+			for (String lineage : ((TaxonSet) species).asStringList()) {
+				speciesOf.put(lineage, species.getID());
+			}
+		}
+		return speciesOf;
+	}
+
+
+	private static double[] getHeights(Tree tree) {
+		double[] heights = new double[tree.getNodeCount()];
+		for (int i = 0; i < heights.length; i++) {
+			heights[i] = tree.getNode(i).getHeight();
+		}
+		return heights;
+	}
+
+
+}
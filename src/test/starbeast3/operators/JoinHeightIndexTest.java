@@ -0,0 +1,115 @@
+package test.starbeast3.operators;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.tree.Node;
+import starbeast3.evolution.speciation.GeneTreeForSpeciesTreeDistribution;
+import starbeast3.operators.JoinHeightIndex;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The NodeReheight2 bound from the join height index should equal the bound found by walking every gene tree, as
+ * NodeReheight2 did before the index, and the index should not drift from one built afresh as the gene trees change
+ */
+public class JoinHeightIndexTest {
+
+
+	private static final int SPECIES_COUNT = MultispeciesCoalescentModel.SPECIES.length;
+
+
+	@Test
+	public void testBoundEqualsRecursion() {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(2024, 8, 3, false);
+		model.initialise();
+		JoinHeightIndex index = new JoinHeightIndex(SPECIES_COUNT);
+		index.update(model.genes);
+		Random random = new Random(11);
+
+		for (int step = 0; step < 3000; step++) {
+			model.propose();
+
+			// Also check the proposed state, which will then be restored if the proposal is rejected
+			if (random.nextInt(4) == 0) {
+				check(index, model.genes, random);
+			}
+
+			if (random.nextBoolean()) {
+				model.accept();
+			} else {
+				model.reject();
+			}
+			check(index, model.genes, random);
+		}
+	}
+
+
+	private static void check(JoinHeightIndex index, List<GeneTreeForSpeciesTreeDistribution> genes, Random random) {
+		index.update(genes);
+
+		// Incremental updates give the same join heights as a new index
+		JoinHeightIndex fresh = new JoinHeightIndex(SPECIES_COUNT);
+		fresh.update(genes);
+		for (int s = 0; s < SPECIES_COUNT; s++) {
+			for (int t = s + 1; t < SPECIES_COUNT; t++) {
+				assertEquals(fresh.getJoinHeight(s, t), index.getJoinHeight(s, t), 0.0);
+			}
+		}
+
+		// A random canonical order of the species, split at a random internal node
+		int[] order = new int[SPECIES_COUNT];
+		for (int i = 0; i < SPECIES_COUNT; i++) {
+			final int j = random.nextInt(i + 1);
+			order[i] = order[j];
+			order[j] = i;
+		}
+		final int leftCount = 1 + random.nextInt(SPECIES_COUNT - 1);
+		int[] left = new int[SPECIES_COUNT];
+		int[] right = new int[SPECIES_COUNT];
+		boolean[] isLeft = new boolean[SPECIES_COUNT];
+		for (int i = 0; i < SPECIES_COUNT; i++) {
+			if (i < leftCount) {
+				left[i] = order[i];
+				isLeft[order[i]] = true;
+			} else {
+				right[i - leftCount] = order[i];
+			}
+		}
+
+		double expected = Double.POSITIVE_INFINITY;
+		for (GeneTreeForSpeciesTreeDistribution gene : genes) {
+			expected = Math.min(expected, recurseMaxHeight(gene.getGeneTree().getRoot(), gene.getTipNumberMap(), isLeft)[2]);
+		}
+		assertEquals(expected, index.getMaxHeight(left, leftCount, right, SPECIES_COUNT - leftCount, Double.POSITIVE_INFINITY), 0.0);
+	}
+
+
+	/**
+	 * The bound as NodeReheight2 found it before the index: the lowest gene tree node with all of the gene tree leaves
+	 * below one child on the left and all of those below the other on the right
+	 * @return whether there are leaves on the left and on the right below this node, and the bound below this node
+	 */
+	private static double[] recurseMaxHeight(Node node, int[] leafNodeMap, boolean[] isLeft) {
+		if (node.isLeaf()) {
+			final boolean left = isLeft[leafNodeMap[node.getNr()]];
+			return new double[] {left ? 1 : 0, left ? 0 : 1, Double.POSITIVE_INFINITY};
+		}
+		final double[] l = recurseMaxHeight(node.getLeft(), leafNodeMap, isLeft);
+		final double[] r = recurseMaxHeight(node.getRight(), leafNodeMap, isLeft);
+		double bound = Math.min(l[2], r[2]);
+		final boolean leftChildOnOneSide = l[0] == 0 || l[1] == 0;
+		final boolean rightChildOnOneSide = r[0] == 0 || r[1] == 0;
+		if (leftChildOnOneSide && rightChildOnOneSide && (l[0] != r[0])) {
+			bound = Math.min(bound, node.getHeight());
+		}
+		return new double[] {Math.max(l[0], r[0]), Math.max(l[1], r[1]), bound};
+	}
+
+
+}
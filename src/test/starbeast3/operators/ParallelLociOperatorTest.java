@@ -0,0 +1,125 @@
+package test.starbeast3.operators;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.function.BiFunction;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.inference.Operator;
+import beast.base.util.Randomizer;
+import starbeast3.operators.ConstantDistanceOperatorSpeciesTree;
+import starbeast3.operators.CoordinatedExponential;
+import starbeast3.operators.CoordinatedUniform;
+import starbeast3.operators.EpochOperator;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The species tree operators which process the gene trees on ParallelLoci should propose the same states, with the
+ * same Hastings ratios, as they do serially. Their per-locus work draws no random numbers, so the two runs are given the
+ * same Randomizer seed for every proposal and the same accept or reject decisions
+ */
+public class ParallelLociOperatorTest {
+
+
+	private static final int THREADS = 4;
+
+
+	@BeforeAll
+	public static void setUp() {
+		ProgramStatus.m_nThreads = Math.max(ProgramStatus.m_nThreads, THREADS);
+	}
+
+
+	@Test
+	public void testCoordinatedUniform() {
+		checkSameAsSerial((model, parallel) -> {
+			CoordinatedUniform operator = new CoordinatedUniform();
+			operator.initByName("speciesTree", model.speciesTree, "gene", model.genes, "parallel", parallel, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testCoordinatedExponential() {
+		checkSameAsSerial((model, parallel) -> {
+			CoordinatedExponential operator = new CoordinatedExponential();
+			operator.initByName("speciesTree", model.speciesTree, "gene", model.genes, "optimise", false, "parallel", parallel, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testConstantDistanceOperatorSpeciesTree() {
+		checkSameAsSerial((model, parallel) -> {
+			ConstantDistanceOperatorSpeciesTree operator = new ConstantDistanceOperatorSpeciesTree();
+			operator.initByName("tree", model.speciesTree, "gene", model.genes, "twindowSize", 0.1, "popsizes", model.popSizes,
+					"parallel", parallel, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testEpochOperator() {
+		checkSameAsSerial((model, parallel) -> {
+			EpochOperator operator = new EpochOperator();
+			operator.initByName("gene", model.genes, "moveSpeciesTree", true, "optimise", false, "parallel", parallel, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	private static void checkSameAsSerial(BiFunction<MultispeciesCoalescentModel, Boolean, Operator> createOperator) {
+		MultispeciesCoalescentModel serialModel = new MultispeciesCoalescentModel(777, 12, 3, false);
+		MultispeciesCoalescentModel parallelModel = new MultispeciesCoalescentModel(777, 12, 3, false);
+		serialModel.initialise();
+		parallelModel.initialise();
+		Operator serial = createOperator.apply(serialModel, false);
+		Operator parallel = createOperator.apply(parallelModel, true);
+		Random random = new Random(777);
+
+		for (int step = 0; step < 500; step++) {
+			final long seed = random.nextLong();
+			final double[] logHR = new double[2];
+			Randomizer.setSeed(seed);
+			final double serialLogP = serialModel.propose(() -> logHR[0] = serial.proposal());
+			Randomizer.setSeed(seed);
+			final double parallelLogP = parallelModel.propose(() -> logHR[1] = parallel.proposal());
+
+			// A serial proposal may stop at the first gene tree which becomes invalid, where the parallel one finishes
+			// every gene tree, so only the Hastings ratio is compared for proposals which are rejected outright
+			assertEquals(logHR[0], logHR[1], 0.0, "step " + step);
+			if (logHR[0] == Double.NEGATIVE_INFINITY) {
+				serialModel.reject();
+				parallelModel.reject();
+				continue;
+			}
+
+			assertEquals(MultispeciesCoalescentModel.describe(serialModel.speciesTree), MultispeciesCoalescentModel.describe(parallelModel.speciesTree), "step " + step);
+			for (int j = 0; j < serialModel.geneTrees.size(); j++) {
+				assertEquals(MultispeciesCoalescentModel.describe(serialModel.geneTrees.get(j)),
+						MultispeciesCoalescentModel.describe(parallelModel.geneTrees.get(j)), "step " + step + ", gene tree " + j);
+			}
+			assertEquals(serialModel.popSizes.toString(), parallelModel.popSizes.toString(), "step " + step);
+			assertEquals(serialLogP, parallelLogP, 0.0, "step " + step);
+
+			if (random.nextBoolean()) {
+				serialModel.accept();
+				parallelModel.accept();
+			} else {
+				serialModel.reject();
+				parallelModel.reject();
+			}
+		}
+	}
+
+
+}
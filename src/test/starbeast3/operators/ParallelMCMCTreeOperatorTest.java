@@ -0,0 +1,97 @@
+package test.starbeast3.operators;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import beast.base.core.ProgramStatus;
+import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.util.Randomizer;
+import starbeast3.core.ParallelMCMC;
+import starbeast3.operators.ParallelDistSet;
+import starbeast3.operators.ParallelMCMCTreeOperator;
+import starbeast3.operators.ParallelMCMCTreeOperatorTreeDistribution;
+import starbeast3.util.ChainRandomizer;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The parallel gene tree chains of ParallelMCMCTreeOperator, on the small multispecies coalescent model with a tree likelihood per locus
+ */
+public class ParallelMCMCTreeOperatorTest {
+
+
+	private static final int THREADS = 2;
+
+
+	@BeforeAll
+	public static void setUp() {
+		ProgramStatus.m_nThreads = Math.max(ProgramStatus.m_nThreads, THREADS);
+	}
+
+
+	/**
+	 * With dynamic scheduling there is one chain per locus, which is more chains than threads.
+	 * Re-balancing should keep the chain lengths adding up to the chain length of the operator, and not that of a thread
+	 */
+	@Test
+	public void testRebalanceKeepsTotalChainLength() {
+		final long chainLength = 6000;
+		final int locusCount = 6;
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(135, locusCount, 3, false);
+		List<ParallelDistSet> distributions = getDistributions(model, model.addTreeLikelihoods(50));
+		model.initialise();
+		Randomizer.setSeed(135);
+		ChainRandomizer.reset();
+
+		ParallelMCMCTreeOperator operator = new ParallelMCMCTreeOperator();
+		operator.initByName("distribution", distributions, "otherState", model.state, "chainLength", chainLength,
+				"threads", THREADS, "dynamic", true, "learning", false, "nregression", 0, "targetCPU", 0.0,
+				"rebalanceEvery", 1, "includeRealParameters", false, "weight", 1.0);
+		List<ParallelMCMC> mcmcs = operator.getParallelMCMCs();
+		assertEquals(locusCount, mcmcs.size());
+		assertEquals(chainLength, totalChainLength(mcmcs), mcmcs.size());
+
+		for (int call = 0; call < 20; call++) {
+			operator.proposal();
+			operator.accept();
+			for (ParallelMCMC mcmc : mcmcs) {
+				assertTrue(mcmc.hasCostEstimate());
+			}
+
+			// Each chain loses less than one step to rounding
+			final long total = totalChainLength(mcmcs);
+			assertTrue(total <= chainLength && total > chainLength - mcmcs.size(), "total chain length " + total);
+		}
+	}
+
+
+	private static long totalChainLength(List<ParallelMCMC> mcmcs) {
+		long total = 0;
+		for (ParallelMCMC mcmc : mcmcs) {
+			total += mcmc.getChainLength();
+		}
+		return total;
+	}
+
+
+	// One distribution per locus: its gene tree, gene tree prior and tree likelihood
+	private static List<ParallelDistSet> getDistributions(MultispeciesCoalescentModel model, List<TreeLikelihood> likelihoods) {
+		List<ParallelDistSet> distributions = new ArrayList<>();
+		for (int j = 0; j < model.geneTrees.size(); j++) {
+			ParallelMCMCTreeOperatorTreeDistribution distribution = new ParallelMCMCTreeOperatorTreeDistribution();
+			distribution.initByName("tree", model.geneTrees.get(j), "treelikelihood", likelihoods.get(j), "geneprior", model.genes.get(j));
+			distribution.setID("distribution." + model.geneTrees.get(j).getID());
+			distributions.add(distribution);
+		}
+		return distributions;
+	}
+
+
+}
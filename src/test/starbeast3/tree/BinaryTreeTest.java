@@ -0,0 +1,127 @@
+package test.starbeast3.tree;
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.junit.jupiter.api.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.operator.Exchange;
+import beast.base.evolution.operator.SubtreeSlide;
+import beast.base.evolution.operator.WilsonBalding;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Operator;
+import beast.base.inference.State;
+import beast.base.util.Randomizer;
+import starbeast3.tree.BinaryTree;
+import test.starbeast3.MultispeciesCoalescentModel;
+
+
+/**
+ * The BEAST tree operators should make the same proposals on a BinaryTree as on a Tree, given the same random numbers,
+ * and accepting or rejecting a proposal should leave every node of either tree clean
+ */
+public class BinaryTreeTest {
+
+
+	private static final int PROPOSALS = 2000;
+
+
+	@Test
+	public void testNarrowExchange() {
+		compareOperator(tree -> {
+			Exchange operator = new Exchange();
+			operator.initByName("tree", tree, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testWideExchange() {
+		compareOperator(tree -> {
+			Exchange operator = new Exchange();
+			operator.initByName("tree", tree, "isNarrow", false, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testWilsonBalding() {
+		compareOperator(tree -> {
+			WilsonBalding operator = new WilsonBalding();
+			operator.initByName("tree", tree, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	@Test
+	public void testSubtreeSlide() {
+		compareOperator(tree -> {
+			SubtreeSlide operator = new SubtreeSlide();
+			operator.initByName("tree", tree, "size", 0.5, "weight", 1.0);
+			return operator;
+		});
+	}
+
+
+	private static void compareOperator(Function<Tree, Operator> createOperator) {
+		MultispeciesCoalescentModel model = new MultispeciesCoalescentModel(321, 0, 4, false);
+		Tree tree = new Tree(model.simulateGeneTree());
+		tree.setID("tree");
+
+		BinaryTree binaryTree = new BinaryTree();
+		binaryTree.initByName("taxonset", new TaxonSet(Taxon.createTaxonList(Arrays.asList(tree.getTaxaNames()))));
+		binaryTree.assignFromFragile(tree);
+		binaryTree.setID("tree");
+		assertEquals(MultispeciesCoalescentModel.describe(tree), MultispeciesCoalescentModel.describe(binaryTree));
+
+		List<String> trajectory = run(tree, createOperator.apply(tree), 777);
+		List<String> binaryTrajectory = run(binaryTree, createOperator.apply(binaryTree), 777);
+		for (int i = 0; i < PROPOSALS; i++) {
+			assertEquals(trajectory.get(i), binaryTrajectory.get(i), "proposal " + i);
+		}
+	}
+
+
+	/**
+	 * Make proposals, and accept or reject each one at random
+	 * @return the tree after each proposal
+	 */
+	private static List<String> run(Tree tree, Operator operator, long seed) {
+		State state = new State();
+		state.initByName("stateNode", tree);
+		state.initialise();
+		Randomizer.setSeed(seed);
+		Random acceptance = new Random(seed);
+
+		List<String> trajectory = new ArrayList<>();
+		for (int i = 0; i < PROPOSALS; i++) {
+			state.store(i);
+			final double logHR = operator.proposal();
+			if (logHR != Double.NEGATIVE_INFINITY && acceptance.nextBoolean()) {
+				trajectory.add(MultispeciesCoalescentModel.describe(tree));
+			} else {
+				state.restore();
+				trajectory.add("rejected " + MultispeciesCoalescentModel.describe(tree));
+			}
+			state.setEverythingDirty(false);
+			for (Node node : tree.getNodesAsArray()) {
+				assertEquals(Tree.IS_CLEAN, node.isDirty(), "node " + node.getNr() + " after proposal " + i);
+			}
+		}
+		return trajectory;
+	}
+
+
+}